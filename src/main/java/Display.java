@@ -1,6 +1,13 @@
 
+import com.simreal.VoxEngine.AdaptiveResolution;
+import com.simreal.VoxEngine.BeamPrepass;
 import com.simreal.VoxEngine.Color;
+import com.simreal.VoxEngine.RayMetrics;
+import com.simreal.VoxEngine.Reprojector;
+import com.simreal.VoxEngine.ShadowPass;
+import com.simreal.VoxEngine.ViewFrame;
 import com.simreal.VoxEngine.VoxTree;
+import com.simreal.VoxEngine.events.RenderPhaseEvent;
 
 import javax.swing.JFrame;
 import javax.vecmath.Point3d;
@@ -33,6 +40,21 @@ public class Display extends Canvas implements Runnable {
 
     private static final int imageType = BufferedImage.TYPE_INT_RGB;
 
+    // Pool compaction time allowed between frames
+    private static final long DEFRAG_NANOS = 1000000L;
+
+    // Reuse last frame's pixels where the view allows
+    private static final boolean REPROJECT = Boolean.getBoolean("voxengine.reproject");
+
+    // Shadows from the light, for full frames (not reprojected or adaptive ones)
+    private static final boolean SHADOWS = Boolean.getBoolean("voxengine.shadows");
+
+    // Their cone radius per unit distance, for soft ones; zero for hard shadows
+    private static final double SHADOW_APERTURE = Double.parseDouble(System.getProperty("voxengine.shadowAperture", "0"));
+
+    // Trace time allowed per frame, traded against resolution; zero to trace every pixel
+    private static final double BUDGET_MILLIS = Double.parseDouble(System.getProperty("voxengine.budget", "0"));
+
     public static final String TITLE = "Title";
 
     private boolean running = false;
@@ -40,13 +62,31 @@ public class Display extends Canvas implements Runnable {
     UserInput ui;
 
     private VoxTree tree;
+    private BeamPrepass beams;
+    private Reprojector reprojector;
+    private AdaptiveResolution adaptive;
+    private ShadowPass shadows;
+    private ViewFrame view;
     private int activeNode;
 
     public Display(){
         img = new BufferedImage(WIDTH, HEIGHT, imageType);
 
         activeNode = 0;
+        view = new ViewFrame(WIDTH, HEIGHT);
         tree = new VoxTree(TREE_DEPTH);
+        beams = new BeamPrepass(WIDTH, HEIGHT);
+        if (REPROJECT) {
+            reprojector = new Reprojector(WIDTH, HEIGHT);
+            tree.addEditListener(reprojector);
+        }
+        if (BUDGET_MILLIS > 0.0) {
+            adaptive = new AdaptiveResolution(WIDTH, HEIGHT, BUDGET_MILLIS);
+        }
+        if (SHADOWS) {
+            shadows = new ShadowPass(WIDTH * HEIGHT);
+            shadows.aperture = SHADOW_APERTURE;
+        }
 
         int stride = tree.stride();
         int offset = stride >> 1;
@@ -66,6 +106,7 @@ public class Display extends Canvas implements Runnable {
         tree.setVoxelPoint(new Point3i((1*stride)+offset, (0*stride)+offset, (1*stride)+offset), (int) Color.setColor(0, 0, 192, 255));
         tree.setVoxelPoint(new Point3i((1*stride)+offset, (1*stride)+offset, (0*stride)+offset), (int) Color.setColor(0, 0, 192, 255));
         tree.setVoxelPoint(new Point3i((1*stride)+offset, (1*stride)+offset, (1*stride)+offset), (int) Color.setColor(0, 0, 192, 255));
+        tree.computeShading();
 
         System.out.println("Spread: " + spread);
         System.out.println(tree);
@@ -97,10 +138,11 @@ public class Display extends Canvas implements Runnable {
         while (running){
             render();
             ++count;
+            tree.defragment(DEFRAG_NANOS);
             long newTime = System.currentTimeMillis();
             if ((newTime - time) > 1000){
                 time += 1000;
-                System.out.println("Frames/Second: " + count);
+                System.out.println("Frames/Second: " + count + ((adaptive != null) ? (", stride " + adaptive.stride) : ""));
                 count = 0;
             }
         }
@@ -116,10 +158,20 @@ public class Display extends Canvas implements Runnable {
         }
         Graphics g = bs.getDrawGraphics();
 
-        g.drawImage(createImg(), 0, 0, VIEW_WIDTH, VIEW_HEIGHT, java.awt.Color.BLACK, null);
+        RenderPhaseEvent trace = new RenderPhaseEvent(RenderPhaseEvent.TRACE);
+        trace.begin();
+        BufferedImage frame = createImg();
+        trace.commit();
+        if (RayMetrics.ENABLED) {
+            RayMetrics.endFrame();
+        }
 
+        RenderPhaseEvent blit = new RenderPhaseEvent(RenderPhaseEvent.BLIT);
+        blit.begin();
+        g.drawImage(frame, 0, 0, VIEW_WIDTH, VIEW_HEIGHT, java.awt.Color.BLACK, null);
         g.dispose();
         bs.show();
+        blit.commit();
     }
 
     public static void main(String[] args) {
@@ -140,8 +192,6 @@ public class Display extends Canvas implements Runnable {
     public BufferedImage createImg(){
         int[] pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
 
-        int x;
-
         Point3d viewPoint = new Point3d();
         Vector3d ltVec = new Vector3d();
         Vector3d upVec = new Vector3d();
@@ -149,25 +199,35 @@ public class Display extends Canvas implements Runnable {
         Point3d topLeft = new Point3d();
 
         if (ui != null) ui.getView(WIDTH, HEIGHT, DEPTH, viewPoint, ltVec, upVec, fwVec, topLeft);
+        view.set(viewPoint, topLeft, ltVec, upVec);
 
-        Point3d column0 = new Point3d(topLeft);
-        Point3d at = new Point3d();
         Vector3d facing = new Vector3d();
 
         tree.castRay(viewPoint, fwVec, true);
 
-        for(int i = 0; i < pixels.length;i++){
-            x = i % WIDTH;
-            if (x == 0){
-                at.set(column0);
-                column0.sub(upVec);
-            }
+        // Reprojecting, too few rays are cast to pay for the beam prepass
+        if (reprojector != null) {
+            reprojector.render(tree, view, null, pixels);
+            return img;
+        }
+        beams.trace(tree, view);
 
-            facing.sub(at, viewPoint);
-            facing.normalize();
-            pixels[i] = (int)tree.castRay(viewPoint, facing, false);
+        if (adaptive != null) {
+            adaptive.render(tree, view, beams, pixels);
+            return img;
+        }
 
-            at.sub(ltVec);
+        for(int i = 0; i < pixels.length;i++){
+            int x = i % WIDTH;
+            int y = i / WIDTH;
+            view.pixelRay(x, y, facing);
+            pixels[i] = (int)tree.castRay(viewPoint, facing, beams.start(x, y));
+            if (shadows != null) {
+                shadows.add(i, viewPoint, facing, tree.hitDistance);
+            }
+        }
+        if (shadows != null) {
+            shadows.apply(tree, pixels);
         }
 
         return img;
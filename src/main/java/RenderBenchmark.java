@@ -0,0 +1,269 @@
+
+import com.simreal.VoxEngine.AdaptiveResolution;
+import com.simreal.VoxEngine.BeamPrepass;
+import com.simreal.VoxEngine.Color;
+import com.simreal.VoxEngine.CountingNodePool;
+import com.simreal.VoxEngine.Reprojector;
+import com.simreal.VoxEngine.ShadowPass;
+import com.simreal.VoxEngine.TerrainGenerator;
+import com.simreal.VoxEngine.Texture;
+import com.simreal.VoxEngine.ViewFrame;
+import com.simreal.VoxEngine.VoxTree;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import javax.vecmath.Vector3d;
+import java.util.Random;
+
+/**
+ * Headless render benchmark: generates a terrain, scatters its pool with edit
+ * churn, and times full frames from a fixed camera before and after the pool is
+ * re-laid out, then with the integer grid traversal, with a beam prepass ahead of
+ * each traversal, at an adaptive resolution held to a frame budget, and reprojecting
+ * frames while the camera drifts.  Node reads go through a simulated two-level
+ * cache, so the report includes cache-line misses as well as wall time.
+ *
+ * Usage: RenderBenchmark [treeDepth] [frames] [edits]
+ */
+public class RenderBenchmark {
+    public static final int WIDTH = 320;
+    public static final int HEIGHT = 240;
+
+    private static final double H_FOV = Math.PI / 3.0;  // 60 degrees
+    private static final int DEPTH = (int)(WIDTH / Math.tan(H_FOV * 0.5));
+
+    private VoxTree tree;
+    private CachedNodePool pool;
+    private int[] pixels;
+    private BeamPrepass beams;     // null for no prepass
+    private Reprojector reprojector;    // null to trace every pixel
+    private AdaptiveResolution adaptive;    // likewise
+    private long traced;
+    private ShadowPass shadows;
+    private long shadowNanos;
+    private long shadowRays;
+
+    private Point3d viewPoint;
+    private Vector3d fwVec;
+    private ViewFrame view;
+
+    public RenderBenchmark(int treeDepth) {
+        pool = new CachedNodePool(1024 * 1024);
+        tree = new VoxTree(treeDepth, pool);
+        pixels = new int[WIDTH * HEIGHT];
+
+        Texture texture = new Texture();
+        texture.scale = 4.0 / tree.edgeLength();
+        texture.seaLevel = tree.edgeLength() / 3;
+        texture.quantLevel = 7;
+        texture.transform = Texture.YCLAMP | Texture.INVERT | Texture.QUANT;
+
+        long start = System.currentTimeMillis();
+        new TerrainGenerator(texture).generate(tree);
+        System.out.println("Generated depth " + treeDepth + " terrain in " + (System.currentTimeMillis() - start) + " ms, "
+                + pool.snapshot().numUsed + " nodes");
+
+        // Look across the world from above one corner
+        double edge = tree.edgeLength();
+        viewPoint = new Point3d(-0.25 * edge, 0.9 * edge, -0.25 * edge);
+        fwVec = new Vector3d(0.5 * edge, 0.3 * edge, 0.5 * edge);
+        fwVec.sub(viewPoint);
+        fwVec.normalize();
+        view = new ViewFrame(WIDTH, HEIGHT);
+    }
+
+    /**
+     * Random edits, half of them undone, to scatter tiles the way a long editing session does
+     */
+    public void churn(int edits) {
+        Random rand = new Random(1);
+        int stride = tree.stride();
+        int cells = tree.edgeLength() / stride;
+        for (int cnt=0; cnt<edits; ++cnt) {
+            Point3i voxel = new Point3i(
+                    rand.nextInt(cells) * stride + (stride >> 1),
+                    rand.nextInt(cells) * stride + (stride >> 1),
+                    rand.nextInt(cells) * stride + (stride >> 1));
+            long original = tree.testVoxelPoint(voxel);
+            tree.setVoxelPoint(voxel, (int)Color.setColor(rand.nextInt(256), 0, 0, 255));
+            if ((cnt & 1) == 0) {
+                tree.setVoxelPoint(voxel, (int)original);
+            }
+        }
+    }
+
+    public void render() {
+        view.look(viewPoint, fwVec, DEPTH);
+        Vector3d facing = new Vector3d();
+
+        if (beams != null) {
+            beams.trace(tree, view);
+        }
+        if (adaptive != null) {
+            adaptive.render(tree, view, beams, pixels);
+            traced += adaptive.traced;
+            return;
+        }
+        if (reprojector != null) {
+            reprojector.render(tree, view, beams, pixels);
+            traced += reprojector.traced;
+
+            // Walk slowly along the view, for the next frame
+            viewPoint.scaleAdd(0.5, fwVec, viewPoint);
+            return;
+        }
+        traced += pixels.length;
+        for (int i = 0; i < pixels.length; i++) {
+            int x = i % WIDTH;
+            int y = i / WIDTH;
+            view.pixelRay(x, y, facing);
+            pixels[i] = (beams != null)
+                    ? (int)tree.castRay(viewPoint, facing, beams.start(x, y))
+                    : (int)tree.castRay(viewPoint, facing, false);
+            if (shadows != null) {
+                shadows.add(i, viewPoint, facing, tree.hitDistance);
+            }
+        }
+        if (shadows != null) {
+            long start = System.nanoTime();
+            shadows.apply(tree, pixels);
+            shadowNanos += System.nanoTime() - start;
+            shadowRays += shadows.cast;
+        }
+    }
+
+    public void measure(String label, int frames) {
+        render();   // warm up
+        render();
+        pool.reset();
+        traced = 0;
+        shadowNanos = 0;
+        shadowRays = 0;
+        long start = System.nanoTime();
+        for (int frame=0; frame<frames; ++frame) {
+            render();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(label + ": "
+                + (elapsed / frames / 1000000.0) + " ms/frame, "
+                + (traced / frames) + " pixels traced/frame, "
+                + (pool.reads / frames) + " node reads/frame, "
+                + (pool.l1Misses / frames) + " L1 misses/frame, "
+                + (pool.l2Misses / frames) + " L2 misses/frame");
+    }
+
+    public static void main(String[] args) {
+        int treeDepth = (args.length > 0) ? Integer.parseInt(args[0]) : 6;
+        int frames = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        int edits = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+
+        RenderBenchmark benchmark = new RenderBenchmark(treeDepth);
+        benchmark.churn(edits);
+        benchmark.measure("Scattered", frames);
+
+        long start = System.currentTimeMillis();
+        benchmark.tree.relayout();
+        System.out.println("Relayout in " + (System.currentTimeMillis() - start) + " ms");
+        benchmark.measure("Relaid out", frames);
+
+        benchmark.tree.gridTraversal = true;
+        benchmark.measure("Grid traversal", frames);
+
+        start = System.currentTimeMillis();
+        benchmark.tree.computeShading();
+        System.out.println("Shading computed in " + (System.currentTimeMillis() - start) + " ms");
+        benchmark.measure("Grid, precomputed shading", frames);
+
+        benchmark.beams = new BeamPrepass(WIDTH, HEIGHT);
+        benchmark.tree.gridTraversal = false;
+        benchmark.measure("Beam prepass", frames);
+        benchmark.tree.gridTraversal = true;
+        benchmark.measure("Grid, beam prepass", frames);
+
+        benchmark.shadows = new ShadowPass(WIDTH * HEIGHT);
+        benchmark.measure("Grid, beam prepass, shadows", frames);
+        System.out.println("Shadow rays: " + (benchmark.shadowRays / frames) + "/frame, "
+                + (benchmark.shadowNanos / Math.max(1, benchmark.shadowRays)) + " ns each");
+
+        benchmark.shadows.aperture = 0.05;
+        benchmark.measure("Grid, beam prepass, soft shadows", frames);
+        System.out.println("Shadow cones: " + (benchmark.shadowRays / frames) + "/frame, "
+                + (benchmark.shadowNanos / Math.max(1, benchmark.shadowRays)) + " ns each");
+        benchmark.shadows = null;
+
+        benchmark.adaptive = new AdaptiveResolution(WIDTH, HEIGHT, 10.0);
+        benchmark.measure("Adaptive, 10 ms budget", frames);
+        System.out.println("Settled at stride " + benchmark.adaptive.stride);
+        benchmark.adaptive = null;
+
+        benchmark.beams = null;     // Too few rays left to pay for it
+        benchmark.reprojector = new Reprojector(WIDTH, HEIGHT);
+        benchmark.measure("Reprojected, drifting", frames);
+    }
+
+    /**
+     * A NodePool that also runs every node read through a simulated cache hierarchy:
+     * 32KB L1 and 1MB L2, both 8-way LRU with 64-byte lines (eight nodes).
+     */
+    static class CachedNodePool extends CountingNodePool {
+        long l1Misses;
+        long l2Misses;
+
+        private CacheLevel l1 = new CacheLevel(64, 8);
+        private CacheLevel l2 = new CacheLevel(2048, 8);
+
+        CachedNodePool(int size) {
+            super(size);
+        }
+
+        void reset() {
+            reads = 0;
+            l1Misses = 0;
+            l2Misses = 0;
+        }
+
+        @Override
+        public long node(int index) {
+            long line = index >>> 3;
+            if (!l1.access(line)) {
+                ++l1Misses;
+                if (!l2.access(line)) {
+                    ++l2Misses;
+                }
+            }
+            return super.node(index);
+        }
+    }
+
+    private static class CacheLevel {
+        private int sets;
+        private int ways;
+        private long[] tags;    // per set, most recently used first
+
+        CacheLevel(int sets, int ways) {
+            this.sets = sets;
+            this.ways = ways;
+            tags = new long[sets * ways];
+            java.util.Arrays.fill(tags, -1L);
+        }
+
+        /**
+         * Touch a line; true on a hit
+         */
+        boolean access(long line) {
+            int base = (int)(line % sets) * ways;
+            int way = 0;
+            while ((way < ways) && (tags[base + way] != line)) {
+                ++way;
+            }
+            boolean hit = (way < ways);
+            if (!hit) {
+                way = ways - 1;
+            }
+            System.arraycopy(tags, base, tags, base + 1, way);
+            tags[base] = line;
+            return hit;
+        }
+    }
+}
@@ -1,7 +1,7 @@
 
 import com.simreal.VoxEngine.Color;
-import com.simreal.VoxEngine.Path;
 import com.simreal.VoxEngine.VoxTree;
+import com.simreal.VoxEngine.WidePath;
 
 import javax.swing.JColorChooser;
 import javax.swing.JFrame;
@@ -263,11 +263,12 @@ viewPoint.set(30, 210, -206);
     }
 
     public void mouseClicked(MouseEvent e){
-        long path = tree.pickNodePath;
+        // The render thread keeps updating the pick; work from a copy
+        WidePath path = new WidePath().set(tree.pickNodePath);
         if (e.getButton() == MouseEvent.BUTTON3){
             tree.setVoxelPath(path, 0);
         } else if (e.getButton() == MouseEvent.BUTTON1){
-            Point3i center = Path.toPosition(tree.pickNodePath, tree.edgeLength());
+            Point3i center = path.toPosition(tree.edgeLength());
             switch (tree.pickFacet) {
                 case VoxTree.XY_PLANE:
                     center.add(new Point3i(0, 0, -(int)Math.copySign(tree.stride(), tree.pickRay.z)));
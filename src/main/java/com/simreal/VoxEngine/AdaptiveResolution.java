@@ -0,0 +1,203 @@
+package com.simreal.VoxEngine;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Dynamic resolution: trace every stride-th pixel across and down, fill in the
+ * rest, and pick the stride that keeps a frame inside a time budget.
+ *
+ * Each frame measures what it cost per traced pixel (smoothed over frames), and the
+ * next frame uses the finest stride that cost predicts will fit.  Stepping finer
+ * needs some headroom under the budget, so the stride does not flap back and forth
+ * across it.
+ *
+ * Filling in is edge aware.  Between four traced samples that agree (similar hit
+ * distances, similar colors) the pixels are interpolated; across a silhouette or a
+ * hard color edge each pixel takes its nearest sample instead, so edges stay sharp
+ * rather than smearing one surface into another.
+ */
+public class AdaptiveResolution {
+    public static final int MAX_STRIDE = 4;
+
+    // Neighboring samples are across an edge if their hit distances differ by this
+    // fraction of the nearer, or any color channel by this much
+    private static final double EDGE_DISTANCE = 0.1;
+    private static final int EDGE_COLOR = 48;
+
+    // Weight of the newest frame in the cost per pixel
+    private static final double SMOOTHING = 0.25;
+
+    // Go finer only if the prediction is this far under budget
+    private static final double HEADROOM = 0.8;
+
+    // Pixels traced for the last frame, and the stride it was traced at
+    public int traced;
+    public int stride;
+
+    private final int width;
+    private final int height;
+    private final long budgetNanos;
+    private double pixelNanos;
+
+    // Sampled columns and rows, and what their rays saw
+    private final int[] columns;
+    private final int[] rows;
+    private final int[] colors;
+    private final double[] distances;
+
+    private final Vector3d facing = new Vector3d();
+
+    public AdaptiveResolution(int width, int height, double budgetMillis) {
+        this.width = width;
+        this.height = height;
+        budgetNanos = (long)(budgetMillis * 1000000.0);
+        pixelNanos = 0.0;
+        stride = 1;
+
+        columns = new int[width];
+        rows = new int[height];
+        colors = new int[width * height];
+        distances = new double[width * height];
+    }
+
+    /**
+     * Render a frame into pixels at the current stride, and choose the next frame's.
+     * beams, if not null, must already be traced for this view.
+     */
+    public void render(VoxTree tree, ViewFrame view, BeamPrepass beams, int[] pixels) {
+        long start = System.nanoTime();
+
+        int columnCount = samples(columns, width, stride);
+        int rowCount = samples(rows, height, stride);
+        int idx = 0;
+        for (int row=0; row<rowCount; ++row) {
+            int y = rows[row];
+            for (int column=0; column<columnCount; ++column, ++idx) {
+                int x = columns[column];
+                view.pixelRay(x, y, facing);
+                colors[idx] = (beams != null)
+                        ? (int)tree.castRay(view.viewPoint, facing, beams.start(x, y))
+                        : (int)tree.castRay(view.viewPoint, facing, false);
+                distances[idx] = tree.hitDistance;
+            }
+        }
+        traced = idx;
+
+        if (stride == 1) {
+            System.arraycopy(colors, 0, pixels, 0, traced);
+        } else {
+            for (int row=0; row+1<rowCount; ++row) {
+                for (int column=0; column+1<columnCount; ++column) {
+                    fill(pixels, row, column, rowCount, columnCount);
+                }
+            }
+        }
+
+        update(System.nanoTime() - start, traced);
+    }
+
+    /**
+     * Fold a frame's cost into the estimate, and pick the stride for the next
+     */
+    void update(long nanos, int tracedPixels) {
+        double cost = (double)nanos / Math.max(1, tracedPixels);
+        pixelNanos = (pixelNanos == 0.0) ? cost : (pixelNanos + SMOOTHING * (cost - pixelNanos));
+
+        int next = MAX_STRIDE;
+        for (int candidate=1; candidate<MAX_STRIDE; ++candidate) {
+            double budget = (candidate < stride) ? (budgetNanos * HEADROOM) : budgetNanos;
+            if ((samples(width, candidate) * samples(height, candidate) * pixelNanos) <= budget) {
+                next = candidate;
+                break;
+            }
+        }
+        stride = next;
+    }
+
+    /**
+     * Fill the pixels between one sample and the next across and down, inclusive of
+     * the far side only at the right and bottom of the frame
+     */
+    private void fill(int[] pixels, int row, int column, int rowCount, int columnCount) {
+        int x0 = columns[column];
+        int x1 = columns[column + 1];
+        int y0 = rows[row];
+        int y1 = rows[row + 1];
+        int xEnd = (column + 2 == columnCount) ? x1 : x1 - 1;
+        int yEnd = (row + 2 == rowCount) ? y1 : y1 - 1;
+
+        int sample = row * columnCount + column;
+        int c00 = colors[sample];
+        int c10 = colors[sample + 1];
+        int c01 = colors[sample + columnCount];
+        int c11 = colors[sample + columnCount + 1];
+        boolean edge = edge(distances[sample], distances[sample + 1],
+                            distances[sample + columnCount], distances[sample + columnCount + 1])
+                || edge(c00, c10) || edge(c00, c01) || edge(c00, c11)
+                || edge(c10, c01) || edge(c10, c11) || edge(c01, c11);
+
+        double spanX = x1 - x0;
+        double spanY = y1 - y0;
+        for (int y=y0; y<=yEnd; ++y) {
+            double fy = (y - y0) / spanY;
+            int base = y * width;
+            for (int x=x0; x<=xEnd; ++x) {
+                double fx = (x - x0) / spanX;
+                if (edge) {
+                    pixels[base + x] = (fy < 0.5) ? ((fx < 0.5) ? c00 : c10) : ((fx < 0.5) ? c01 : c11);
+                } else {
+                    pixels[base + x] = bilinear(c00, c10, c01, c11, fx, fy);
+                }
+            }
+        }
+    }
+
+    private static boolean edge(double d00, double d10, double d01, double d11) {
+        double near = Math.min(Math.min(d00, d10), Math.min(d01, d11));
+        double far = Math.max(Math.max(d00, d10), Math.max(d01, d11));
+        if (far == Double.POSITIVE_INFINITY) {
+            return near != Double.POSITIVE_INFINITY;
+        }
+        return (far - near) > (near * EDGE_DISTANCE);
+    }
+
+    private static boolean edge(int c1, int c2) {
+        for (int shift=0; shift<32; shift+=8) {
+            if (Math.abs(((c1 >>> shift) & 0xFF) - ((c2 >>> shift) & 0xFF)) > EDGE_COLOR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Interpolate each byte of the four corner colors on its own
+     */
+    private static int bilinear(int c00, int c10, int c01, int c11, double fx, double fy) {
+        int result = 0;
+        for (int shift=0; shift<32; shift+=8) {
+            double top = ((c00 >>> shift) & 0xFF) * (1.0 - fx) + ((c10 >>> shift) & 0xFF) * fx;
+            double bottom = ((c01 >>> shift) & 0xFF) * (1.0 - fx) + ((c11 >>> shift) & 0xFF) * fx;
+            result |= ((int)(top * (1.0 - fy) + bottom * fy + 0.5)) << shift;
+        }
+        return result;
+    }
+
+    /**
+     * Every stride-th index from zero, and the last one; returns the count
+     */
+    private static int samples(int[] indices, int size, int stride) {
+        int count = 0;
+        for (int idx=0; idx<size; idx+=stride) {
+            indices[count++] = idx;
+        }
+        if (indices[count - 1] != size - 1) {
+            indices[count++] = size - 1;
+        }
+        return count;
+    }
+
+    private static int samples(int size, int stride) {
+        return ((size - 1) / stride) + 1 + ((((size - 1) % stride) != 0) ? 1 : 0);
+    }
+}
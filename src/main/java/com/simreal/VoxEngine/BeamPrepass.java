@@ -0,0 +1,189 @@
+package com.simreal.VoxEngine;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+/**
+ * Coarse depth prepass: before a frame, trace one beam per BLOCK x BLOCK tile of
+ * pixels and record how far every ray in the tile can travel without crossing
+ * anything solid.  The per-pixel rays then start there (castRay(origin, ray, tStart))
+ * rather than walking the empty space in front of the camera again and again.
+ *
+ * A beam is the pyramid spanned by the tile's four corner rays, tested against the
+ * tree front to back.  A node is skipped once it lies outside the pyramid or no
+ * nearer than the best distance found so far; empty leaves are skipped too.  The
+ * descent stops at solid leaves, stubs, tiles still paging in, and at nodes no
+ * bigger than the beam is wide by then, any of which counts as a hit at its nearest
+ * point to the origin.  Distances are therefore never past the first solid cell on
+ * any ray in the tile, only sometimes short of it.
+ */
+public class BeamPrepass {
+    public static final int BLOCK = 8;
+
+    // Pulled back off each distance, against rounding in the per-pixel traversal
+    private static final double MARGIN = 0.5;
+
+    private final int width;
+    private final int height;
+    private final int blocksX;
+    private final double[] starts;
+
+    // The beam being traced: origin, inward normals of its four sides and its back,
+    // and its width per unit distance
+    private VoxTree tree;
+    private double originX;
+    private double originY;
+    private double originZ;
+    private final double[] planes = new double[15];
+    private double spread;
+    private double best;
+
+    private final Vector3d[] corners = { new Vector3d(), new Vector3d(), new Vector3d(), new Vector3d() };
+    private final Vector3d normal = new Vector3d();
+    private final Vector3d center = new Vector3d();
+    private final Vector3d unitA = new Vector3d();
+    private final Vector3d unitB = new Vector3d();
+
+    public BeamPrepass(int width, int height) {
+        this.width = width;
+        this.height = height;
+        blocksX = (width + BLOCK - 1) / BLOCK;
+        int blocksY = (height + BLOCK - 1) / BLOCK;
+        starts = new double[blocksX * blocksY];
+    }
+
+    /**
+     * Trace every tile's beam for a frame of the view
+     */
+    public void trace(VoxTree tree, ViewFrame view) {
+        for (int blockY=0; blockY*BLOCK < height; ++blockY) {
+            int y0 = blockY * BLOCK;
+            int y1 = Math.min(y0 + BLOCK, height) - 1;
+            for (int blockX=0; blockX < blocksX; ++blockX) {
+                int x0 = blockX * BLOCK;
+                int x1 = Math.min(x0 + BLOCK, width) - 1;
+
+                // Corners in order around the tile
+                view.pixelRay(x0, y0, corners[0]);
+                view.pixelRay(x1, y0, corners[1]);
+                view.pixelRay(x1, y1, corners[2]);
+                view.pixelRay(x0, y1, corners[3]);
+                starts[blockY * blocksX + blockX] = start(tree, view.viewPoint, corners);
+            }
+        }
+    }
+
+    /**
+     * The t the ray through pixel (x, y) can safely start at; POSITIVE_INFINITY if
+     * nothing in the tree is in its way at all.
+     */
+    public double start(int x, int y) {
+        return starts[(y / BLOCK) * blocksX + (x / BLOCK)];
+    }
+
+    /**
+     * How far rays between the four corner directions (in order around the beam)
+     * travel from the origin before they can first meet something solid.
+     */
+    public double start(VoxTree tree, Point3d origin, Vector3d[] corners) {
+        this.tree = tree;
+        originX = origin.x;
+        originY = origin.y;
+        originZ = origin.z;
+
+        center.set(0, 0, 0);
+        for (Vector3d corner : corners) {
+            center.add(corner);
+        }
+        spread = 0.0;
+        for (int side=0; side<4; ++side) {
+            Vector3d corner = corners[side];
+            normal.cross(corner, corners[(side + 1) & 3]);
+            if (normal.dot(center) < 0.0) {
+                normal.negate();
+            }
+            planes[3*side] = normal.x;
+            planes[3*side + 1] = normal.y;
+            planes[3*side + 2] = normal.z;
+
+            unitA.normalize(corner);
+            for (int other=side+1; other<4; ++other) {
+                unitB.normalize(corners[other]);
+                unitB.sub(unitA);
+                spread = Math.max(spread, unitB.length());
+            }
+        }
+
+        // The back, through the origin: testing the sides one at a time lets in cells
+        // behind it, where the side planes cross back over one another
+        planes[12] = center.x;
+        planes[13] = center.y;
+        planes[14] = center.z;
+
+        best = Double.POSITIVE_INFINITY;
+        visit(0, tree.nodePool.node(0), 0, 0, 0, tree.edgeLength);
+        this.tree = null;
+
+        return (best == Double.POSITIVE_INFINITY) ? best : Math.max(0.0, best - MARGIN);
+    }
+
+    private void visit(int nodeIndex, long node, int x, int y, int z, int size) {
+        double distance = distance(x, y, z, size);
+        if ((distance >= best) || !inside(x, y, z, size)) {
+            return;
+        }
+        if (Node.isLeaf(node) && !Node.isStub(node)) {
+            if (Node.color(node) != 0) {
+                best = distance;
+            }
+            return;
+        }
+        if (Node.isStub(node)
+                || !tree.nodePool.resident(Node.child(node))
+                || (size <= distance * spread)) {
+            best = distance;
+            return;
+        }
+
+        // Children nearest the origin first
+        int half = size >> 1;
+        int near = ((originX > x + half) ? 4 : 0) | ((originY > y + half) ? 2 : 0) | ((originZ > z + half) ? 1 : 0);
+        int child = Node.child(node);
+        for (int cnt=0; cnt<8; ++cnt) {
+            int octant = cnt ^ near;
+            visit(child + octant, tree.nodePool.node(child + octant),
+                    ((octant & 4) != 0) ? x + half : x,
+                    ((octant & 2) != 0) ? y + half : y,
+                    ((octant & 1) != 0) ? z + half : z,
+                    half);
+        }
+    }
+
+    /**
+     * Whether the cell reaches inside all five planes: test each plane's furthest corner
+     */
+    private boolean inside(int x, int y, int z, int size) {
+        for (int side=0; side<15; side+=3) {
+            double nX = planes[side];
+            double nY = planes[side + 1];
+            double nZ = planes[side + 2];
+            double dot = nX * (((nX > 0.0) ? x + size : x) - originX)
+                    + nY * (((nY > 0.0) ? y + size : y) - originY)
+                    + nZ * (((nZ > 0.0) ? z + size : z) - originZ);
+            if (dot < 0.0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Distance from the origin to the nearest point of the cell
+     */
+    private double distance(int x, int y, int z, int size) {
+        double dX = Math.max(0.0, Math.max(x - originX, originX - (x + size)));
+        double dY = Math.max(0.0, Math.max(y - originY, originY - (y + size)));
+        double dZ = Math.max(0.0, Math.max(z - originZ, originZ - (z + size)));
+        return Math.sqrt(dX*dX + dY*dY + dZ*dZ);
+    }
+}
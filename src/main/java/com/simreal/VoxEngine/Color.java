@@ -31,6 +31,15 @@ public class Color {
     private static final byte COLOR_ALPHA_SHIFT = 24;
 
     private static final int COLOR_BYTE_MASK    = 0xFF;
+    private static final long COLOR_MASK        = 0x00000000FFFFFFFFL;
+
+    // Fixed point for illuminate() and blend()
+    private static final int ILLUMINATION_SHIFT = 16;
+    private static final double ILLUMINATION_ONE = 1 << ILLUMINATION_SHIFT;
+    private static final int BLEND_SHIFT = 40;
+    private static final long BLEND_ONE = 1L << BLEND_SHIFT;
+    private static final long DIVIDE_255 = 0x8081L;     // x * DIVIDE_255 >>> DIVIDE_255_SHIFT == x / 255, for x up to 255*256
+    private static final int DIVIDE_255_SHIFT = 23;
 
     public static int red(long color){
         return (int)((color & COLOR_RED_MASK) >>> COLOR_RED_SHIFT);
@@ -59,28 +68,142 @@ public class Color {
         return setColor(color.getRed(), color.getGreen(), color.getBlue(), color.getAlpha());
     }
 
+    /**
+     * Scale the color channels by illum, saturating at 255 (and with anything below
+     * zero taken as zero).  Fixed point: illum becomes a 16.16 factor once, then each
+     * channel is a multiply and a shift.
+     */
     public static long illuminate(long color, double illum){
-        int red = Color.red(color);
-        int green = Color.green(color);
-        int blue = Color.blue(color);
-        int alpha = Color.alpha(color);
+        long scale = Math.max(0L, (long)(illum * ILLUMINATION_ONE + 0.5));
 
-        red = Math.min(255, (int)(red * illum));
-        green = Math.min(255, (int)(green * illum));
-        blue = Math.min(255, (int)(blue * illum));
+        long red = Math.min(255L, (Color.red(color) * scale) >> ILLUMINATION_SHIFT);
+        long green = Math.min(255L, (Color.green(color) * scale) >> ILLUMINATION_SHIFT);
+        long blue = Math.min(255L, (Color.blue(color) * scale) >> ILLUMINATION_SHIFT);
 
-        return Color.setColor(red, green, blue, alpha);
+        return (red << COLOR_RED_SHIFT)
+                | (green << COLOR_GREEN_SHIFT)
+                | (blue << COLOR_BLUE_SHIFT)
+                | (color & COLOR_ALPHA_MASK);
     }
 
+    /**
+     * c1 over c2.  In alphas out of 255 the result is exactly
+     *
+     *    channel = (c1 * a1*255 + c2 * a2*(255-a1)) / (a1*255 + a2*(255-a1))
+     *    alpha   = (a1*255 + a2*(255-a1)) / 255
+     *
+     * rounded down, so it is worked in integers: one division for the reciprocal
+     * of the shared denominator, then a multiply and a shift per channel.  With 40
+     * fractional bits the reciprocal (rounded up) gives the exact quotient for any
+     * denominator up to 255*255.
+     */
     public static long blend(long c1, long c2){
-        double a1 = (double)Color.alpha(c1) / 255.0;
-        double a2 = (double)Color.alpha(c2) / 255.0;
-        double a3 = a1 + a2*(1.0-a1);
-
-        long red = (long)(((double)Color.red(c1)*a1 + (double)Color.red(c2)*a2*(1.0-a1)) / a3);
-        long green = (long)(((double)Color.green(c1)*a1 + (double)Color.green(c2)*a2*(1.0-a1)) / a3);
-        long blue = (long)(((double)Color.blue(c1)*a1 + (double)Color.blue(c2)*a2*(1.0-a1)) / a3);
-        long alpha = (long)(a3 * 255.0);
+        int a1 = Color.alpha(c1);
+        if (a1 == 255) {
+            return c1 & COLOR_MASK;
+        }
+        int w1 = a1 * 255;
+        int w2 = Color.alpha(c2) * (255 - a1);
+        int weight = w1 + w2;
+        if (weight == 0) {
+            return 0L;
+        }
+        long reciprocal = (BLEND_ONE + weight - 1) / weight;
+
+        long red = ((long)(Color.red(c1) * w1 + Color.red(c2) * w2) * reciprocal) >>> BLEND_SHIFT;
+        long green = ((long)(Color.green(c1) * w1 + Color.green(c2) * w2) * reciprocal) >>> BLEND_SHIFT;
+        long blue = ((long)(Color.blue(c1) * w1 + Color.blue(c2) * w2) * reciprocal) >>> BLEND_SHIFT;
+        long alpha = ((long)weight * DIVIDE_255) >>> DIVIDE_255_SHIFT;
+
+        return (red << COLOR_RED_SHIFT)
+                | (green << COLOR_GREEN_SHIFT)
+                | (blue << COLOR_BLUE_SHIFT)
+                | (alpha << COLOR_ALPHA_SHIFT);
+    }
+
+    // --------------------------------------
+    // Premultiplied alpha
+    // --------------------------------------
+
+    /**
+     * The color with its channels scaled by its alpha, rounded to nearest.  Fully
+     * transparent colors all become zero.
+     */
+    public static long premultiply(long color){
+        long alpha = Color.alpha(color);
+        if (alpha == 255) {
+            return color & COLOR_MASK;
+        }
+        long red = ((Color.red(color) * alpha + 127) * DIVIDE_255) >>> DIVIDE_255_SHIFT;
+        long green = ((Color.green(color) * alpha + 127) * DIVIDE_255) >>> DIVIDE_255_SHIFT;
+        long blue = ((Color.blue(color) * alpha + 127) * DIVIDE_255) >>> DIVIDE_255_SHIFT;
+
+        return (red << COLOR_RED_SHIFT)
+                | (green << COLOR_GREEN_SHIFT)
+                | (blue << COLOR_BLUE_SHIFT)
+                | (alpha << COLOR_ALPHA_SHIFT);
+    }
+
+    /**
+     * Back from premultiplied to straight.  Lossy for small alphas: a channel only
+     * keeps as many levels as its alpha.
+     */
+    public static long unpremultiply(long color){
+        long alpha = Color.alpha(color);
+        if (alpha == 255) {
+            return color & COLOR_MASK;
+        }
+        if (alpha == 0) {
+            return 0L;
+        }
+        long red = Math.min(255L, (Color.red(color) * 255 + (alpha >> 1)) / alpha);
+        long green = Math.min(255L, (Color.green(color) * 255 + (alpha >> 1)) / alpha);
+        long blue = Math.min(255L, (Color.blue(color) * 255 + (alpha >> 1)) / alpha);
+
+        return (red << COLOR_RED_SHIFT)
+                | (green << COLOR_GREEN_SHIFT)
+                | (blue << COLOR_BLUE_SHIFT)
+                | (alpha << COLOR_ALPHA_SHIFT);
+    }
+
+    /**
+     * illuminate() for a premultiplied color: channels saturate at its alpha rather
+     * than 255, which is what illuminating the straight color would come to.
+     */
+    public static long illuminatePremultiplied(long color, double illum){
+        long scale = Math.max(0L, (long)(illum * ILLUMINATION_ONE + 0.5));
+        long alpha = Color.alpha(color);
+
+        long red = Math.min(alpha, (Color.red(color) * scale) >> ILLUMINATION_SHIFT);
+        long green = Math.min(alpha, (Color.green(color) * scale) >> ILLUMINATION_SHIFT);
+        long blue = Math.min(alpha, (Color.blue(color) * scale) >> ILLUMINATION_SHIFT);
+
+        return (red << COLOR_RED_SHIFT)
+                | (green << COLOR_GREEN_SHIFT)
+                | (blue << COLOR_BLUE_SHIFT)
+                | (alpha << COLOR_ALPHA_SHIFT);
+    }
+
+    /**
+     * c1 over c2, both premultiplied: every channel, alpha included, is
+     *
+     *    c1 + c2 * (255-a1) / 255
+     *
+     * rounded to nearest, a multiply and a shift with no division.  Premultiplied
+     * channels never exceed their alpha, so neither does the result's, and no
+     * channel can carry into the next.
+     */
+    public static long blendPremultiplied(long c1, long c2){
+        long a1 = Color.alpha(c1);
+        if (a1 == 255) {
+            return c1 & COLOR_MASK;
+        }
+        long transmit = 255 - a1;
+
+        long red = Color.red(c1) + (((Color.red(c2) * transmit + 127) * DIVIDE_255) >>> DIVIDE_255_SHIFT);
+        long green = Color.green(c1) + (((Color.green(c2) * transmit + 127) * DIVIDE_255) >>> DIVIDE_255_SHIFT);
+        long blue = Color.blue(c1) + (((Color.blue(c2) * transmit + 127) * DIVIDE_255) >>> DIVIDE_255_SHIFT);
+        long alpha = a1 + (((Color.alpha(c2) * transmit + 127) * DIVIDE_255) >>> DIVIDE_255_SHIFT);
 
         return (red << COLOR_RED_SHIFT)
                 | (green << COLOR_GREEN_SHIFT)
@@ -0,0 +1,19 @@
+package com.simreal.VoxEngine;
+
+/**
+ * A NodePool that counts its node reads, for benchmarks and tests to compare how
+ * much of the tree different traversals touch
+ */
+public class CountingNodePool extends NodePool {
+    public long reads;
+
+    public CountingNodePool(int size) {
+        super(size);
+    }
+
+    @Override
+    public long node(int index) {
+        ++reads;
+        return super.node(index);
+    }
+}
@@ -0,0 +1,295 @@
+package com.simreal.VoxEngine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Incremental compaction of a tree's node pool, run a little at a time between frames.
+ *
+ * A pass only starts when the pool has changed since the last one and holds well
+ * more free nodes than a trim would leave, so a static or already compact pool costs
+ * a couple of compares a frame.
+ *
+ * Every phase of a pass stops at the deadline and picks up again on the next step:
+ *
+ *  MAP     Walk the tree from the root with an explicit stack, noting the parent node
+ *          of every child tile.
+ *  MOVE    Walk down from the top of the pool.  For each used tile, pop a tile off
+ *          the free chain; one below takes the used tile, and the parent's child
+ *          pointer is patched, while one above is held back.  Vacated tiles are held
+ *          back too, marked free but kept off the chain, so edits made between steps
+ *          keep filling what holes are left.  The pass moves on once the chain runs
+ *          dry.
+ *  RETURN  The held tiles running up to the top of the pool are cut off, trimming
+ *          the pool to just above the last used node plus some slack, and the rest
+ *          go back on the chain, lowest at the head.  The trim itself is one copy
+ *          of the nodes kept (and a truncate, for a paged pool).
+ *
+ * Edits between steps are fine.  A tile whose parent link no longer checks out (or
+ * was never mapped) is just left where it is until the next pass.
+ */
+class Defragmenter {
+    // Free nodes left above the last used one when the pool is trimmed
+    static final int MIN_SLACK = 512;
+
+    private static final int IDLE = 0;
+    private static final int MAP = 1;
+    private static final int MOVE = 2;
+    private static final int RETURN = 3;
+
+    private VoxTree tree;
+    private NodePool pool;
+
+    private int phase;
+    private int high;           // Next tile down to consider moving
+    private int[] parent;       // Parent node of each tile, by tile slot (0 if unknown)
+
+    // MAP: nodes still to visit
+    private int[] stack;
+    private int numStacked;
+
+    // MOVE and RETURN: free tiles taken off the chain for the pass, by tile slot
+    private BitSet held;
+    private int returnSlot;     // Next slot down to put back
+
+    // The pool as the last pass left it
+    private int lastSize;
+    private int lastUsed;
+
+    Defragmenter(VoxTree tree) {
+        this.tree = tree;
+        this.pool = tree.nodePool;
+        phase = IDLE;
+        lastSize = -1;
+        lastUsed = -1;
+    }
+
+    /**
+     * Work until the deadline (System.nanoTime).  Returns true when the pool is
+     * compact: a pass has just finished, or there was no call to start one.
+     */
+    boolean step(long deadline) {
+        if (phase == IDLE) {
+            if (!warranted()) {
+                return true;
+            }
+            begin();
+        }
+
+        // At least one unit of work per step, however small the budget
+        do {
+            switch (phase) {
+                case MAP:
+                    mapNext();
+                    break;
+                case MOVE:
+                    moveNext();
+                    break;
+                default:
+                    if (returnNext()) {
+                        return true;
+                    }
+                    break;
+            }
+        } while (System.nanoTime() < deadline);
+        return false;
+    }
+
+    /**
+     * Whether the pool has changed since the last pass, and has at least twice the
+     * free nodes a trim would leave behind
+     */
+    private boolean warranted() {
+        int size = pool.size();
+        int used = pool.numUsed;
+        if ((size == lastSize) && (used == lastUsed)) {
+            return false;
+        }
+        return (size - used) > 2 * slack(used);
+    }
+
+    private static int slack(int top) {
+        return Math.max(MIN_SLACK, top >> 3);
+    }
+
+    private void begin() {
+        parent = new int[(pool.size() >>> 3) + 1];
+        stack = new int[64];
+        stack[0] = 0;
+        numStacked = 1;
+        held = new BitSet();
+        phase = MAP;
+    }
+
+    private void mapNext() {
+        if (numStacked == 0) {
+            stack = null;
+            high = lastTile(pool.size());
+            phase = MOVE;
+            return;
+        }
+
+        int nodeIndex = stack[--numStacked];
+        if (nodeIndex >= pool.size()) {
+            return;
+        }
+        long node = pool.node(nodeIndex);
+        if (!Node.isUsed(node) || Node.isLeaf(node)) {
+            return;
+        }
+        int tile = Node.child(node);
+        setParent(tile, nodeIndex);
+        if (numStacked + 8 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        for (int idx=0; idx<8; ++idx) {
+            stack[numStacked++] = tile+idx;
+        }
+    }
+
+    private void moveNext() {
+        if (high < 1) {
+            finish();
+            return;
+        }
+        if (!Node.isUsed(pool.node(high))) {
+            high -= 8;
+            return;
+        }
+        int parentIndex = parentOf(high);
+        if (parentIndex < 0) {
+            // Added since the map was made, or not in the tree at all; leave it be
+            high -= 8;
+            return;
+        }
+
+        // A dry chain, or just the part tile at the very end of the pool, is as far as we go
+        int hole = pool.firstFreeNode;
+        if ((hole == NodePool.NO_FREE_NODE_INDEX) || (hole + 8 > pool.size())) {
+            finish();
+            return;
+        }
+        int tile = pool.getFreeTile();
+        if (tile > high) {
+            hold(tile);
+            return;
+        }
+        move(high, tile, parentIndex);
+        high -= 8;
+    }
+
+    /**
+     * Trim off the held tiles running up to the top of the pool, if nothing else is
+     * up there, and set the rest up to go back on the chain
+     */
+    private void finish() {
+        parent = null;
+
+        int size = pool.size();
+        int tail = lastTile(size) + 8;
+        int head = pool.firstFreeNode;
+        boolean clear = (head == NodePool.NO_FREE_NODE_INDEX) ? (tail == size) : ((head == tail) && tailOnly(tail));
+
+        int top = tail;
+        while ((top > 1) && held.get((top - 8) >>> 3)) {
+            top -= 8;
+        }
+        int trimmed = top + slack(top);
+        trimmed = 1 + (((trimmed - 1 + 7) >>> 3) << 3);
+        if (clear && (trimmed < size)) {
+            // The part tile at the end, if any, goes with the rest
+            pool.firstFreeNode = NodePool.NO_FREE_NODE_INDEX;
+            pool.truncate(trimmed);
+            size = trimmed;
+        }
+        returnSlot = (lastTile(size) + 8) >>> 3;
+        phase = RETURN;
+    }
+
+    /**
+     * Whether the free chain is just the part tile from tail to the end of the pool
+     */
+    private boolean tailOnly(int tail) {
+        int size = pool.size();
+        for (int idx=tail; idx<size; ++idx) {
+            int next = Node.next(pool.node(idx));
+            if (next != ((idx < size-1) ? idx+1 : Node.END_OF_FREE_NODES)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Put the highest held tile back on the chain; returns true once they all are
+     */
+    private boolean returnNext() {
+        int slot = (returnSlot > 0) ? held.previousSetBit(returnSlot - 1) : -1;
+        if (slot >= 0) {
+            pool.putFreeTile(1 + (slot << 3));
+            returnSlot = slot;
+            return false;
+        }
+        held = null;
+        lastSize = pool.size();
+        lastUsed = pool.numUsed;
+        phase = IDLE;
+        return true;
+    }
+
+    private void move(int from, int to, int parentIndex) {
+        for (int idx=0; idx<8; ++idx) {
+            long node = pool.node(from+idx);
+            pool.set(to+idx, node);
+            if (!Node.isLeaf(node)) {
+                setParent(Node.child(node), to+idx);
+            }
+        }
+        pool.set(parentIndex, Node.setChild(pool.node(parentIndex), to));
+        setParent(to, parentIndex);
+
+        hold(from);
+        tree.moved(from, to);
+    }
+
+    /**
+     * Take a tile out of use, off the free chain until the pass is over
+     */
+    private void hold(int tile) {
+        for (int idx=0; idx<8; ++idx) {
+            pool.set(tile+idx, 0L);
+        }
+        held.set(tile >>> 3);
+    }
+
+    /**
+     * The parent of a tile, if the map still has it right, or -1
+     */
+    private int parentOf(int tile) {
+        int slot = tile >>> 3;
+        if (slot >= parent.length) {
+            return -1;
+        }
+        int parentIndex = parent[slot];
+        long node = pool.node(parentIndex);
+        if (!Node.isUsed(node) || Node.isLeaf(node) || (Node.child(node) != tile)) {
+            return -1;
+        }
+        return parentIndex;
+    }
+
+    private void setParent(int tile, int parentIndex) {
+        int slot = tile >>> 3;
+        if (slot >= parent.length) {
+            parent = Arrays.copyOf(parent, (pool.size() >>> 3) + 1);
+        }
+        parent[slot] = parentIndex;
+    }
+
+    /**
+     * The highest tile (at 1+8k) that fits entirely in a pool of the given size
+     */
+    private static int lastTile(int size) {
+        return 1 + ((((size - 1) >>> 3) - 1) << 3);
+    }
+}
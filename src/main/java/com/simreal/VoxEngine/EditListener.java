@@ -0,0 +1,13 @@
+package com.simreal.VoxEngine;
+
+/**
+ * Told about every voxel set in a VoxTree, so anything holding on to what the tree
+ * looked like (a reprojected frame, say) knows what to throw away.
+ */
+public interface EditListener {
+    /**
+     * The cube from (x, y, z) to (x+size, y+size, z+size) changed.  Called on the
+     * editing thread.
+     */
+    void edited(int x, int y, int z, int size);
+}
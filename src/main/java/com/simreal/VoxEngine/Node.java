@@ -17,6 +17,16 @@ class Node {
      *
      * A Node is atomic to 64-bit operations.
      *
+     * The 24-bit child field reaches the first 16M nodes directly.  A child tile
+     * past that is a far child: the FAR flag is set and the field holds the tile
+     * number ((index - 1) / 8, tiles sitting at 1 + 8k behind the root) with its
+     * top four bits in the depth field, which reaches every index an int can hold.
+     * A far node gives up its depth (reading back MAX_DEPTH); traversal keeps the
+     * true depth in its path anyway.
+     *
+     * Free nodes keep their next-free link in the child field too, with any bits
+     * above 24 in the low word, where a free node has no color.
+     *
      *  64            56            48            40            32
      *    +------+------+------+------+------+------+------+------+
      *    |depth | flags| child                                   |
@@ -33,7 +43,8 @@ class Node {
     private static final long CHILD_MASK        = 0x00FFFFFF00000000L;
     private static final long FLAG_LEAF_MASK    = 0x0100000000000000L;
     private static final long FLAG_USED_MASK    = 0x0200000000000000L;
-//    private static final long FLAG_TOBRICK_MASK = 0x0400000000000000L;
+    private static final long FLAG_FAR_MASK     = 0x0400000000000000L;
+    private static final long FLAG_STUB_MASK    = 0x0800000000000000L;
     private static final long DEPTH_MASK        = 0xF000000000000000L;
 
     private static final byte RGBA_SHIFT    = 0;
@@ -43,9 +54,15 @@ class Node {
     private static final byte ALPHA_SHIFT   = 24;
     private static final byte CHILD_SHIFT   = 32;
     private static final byte DEPTH_SHIFT   = 60;
+    private static final byte FAR_HIGH_SHIFT = DEPTH_SHIFT - 24;
+
+    // Child indices below this fit the child field as they are
+    static final int NEAR_CHILD_LIMIT = 1 << 24;
 
     public static final int END_OF_FREE_NODES = 0;
 
+    static final int MAX_DEPTH = 15;
+
     static long setColor(long node, int red, int green, int blue, int alpha){
         long rgba = Color.setColor(red, green, blue, alpha);
         return (node & ~RGBA_MASK) | rgba;
@@ -76,12 +93,49 @@ class Node {
     }
 
     static long setChild(long node, int child){
-        return (node & ~CHILD_MASK)
-                | ((long)child << CHILD_SHIFT);
+        if (child < NEAR_CHILD_LIMIT) {
+            if ((node & FLAG_FAR_MASK) == FLAG_FAR_MASK) {
+                node = (node & ~(FLAG_FAR_MASK | DEPTH_MASK)) | ((long)MAX_DEPTH << DEPTH_SHIFT);
+            }
+            return (node & ~CHILD_MASK)
+                    | ((long)(child & 0xFFFFFF) << CHILD_SHIFT);
+        }
+
+        if ((child & 7) != 1) {
+            throw new RuntimeException("Node far child is not a tile");
+        }
+        long tile = (child - 1) >>> 3;
+        return (node & ~(CHILD_MASK | DEPTH_MASK))
+                | FLAG_FAR_MASK
+                | ((tile << CHILD_SHIFT) & CHILD_MASK)
+                | ((tile << FAR_HIGH_SHIFT) & DEPTH_MASK);
     }
 
     static int child(long node){
-        return (int)((node & CHILD_MASK) >>> CHILD_SHIFT);
+        int child = (int)((node & CHILD_MASK) >>> CHILD_SHIFT);
+        if ((node & FLAG_FAR_MASK) == 0) {
+            return child;
+        }
+        int tile = (int)((node & DEPTH_MASK) >>> FAR_HIGH_SHIFT) | child;
+        return 1 + (tile << 3);
+    }
+
+    static boolean isFar(long node){
+        return (node & FLAG_FAR_MASK) == FLAG_FAR_MASK;
+    }
+
+    /**
+     * A free node, linked to the next one on the free chain
+     */
+    static long setNext(long node, int next){
+        return (node & ~(CHILD_MASK | RGBA_MASK))
+                | ((long)(next & 0xFFFFFF) << CHILD_SHIFT)
+                | (next >>> 24);
+    }
+
+    static int next(long node){
+        return (int)((node & CHILD_MASK) >>> CHILD_SHIFT)
+                | ((int)(node & 0xFF) << 24);
     }
 
     static long setLeaf(long node, boolean leaf){
@@ -106,26 +160,36 @@ class Node {
         return (node & FLAG_USED_MASK) == FLAG_USED_MASK;
     }
 
-/*
-    static long setToBrick(long node, boolean toBrick){
-        if (toBrick){
-            return (node | FLAG_TOBRICK_MASK);
+    /**
+     * A stub is a leaf standing in for a subtree that has not been generated yet;
+     * its color is a coarse estimate of the region.
+     */
+    static long setStub(long node, boolean stub){
+        if (stub){
+            return (node | FLAG_STUB_MASK);
         }
-        return (node & ~FLAG_TOBRICK_MASK);
+        return (node & ~FLAG_STUB_MASK);
     }
 
-    static boolean isToBrick(long node){
-        return (node & FLAG_TOBRICK_MASK) == FLAG_TOBRICK_MASK;
+    static boolean isStub(long node){
+        return (node & FLAG_STUB_MASK) == FLAG_STUB_MASK;
     }
-*/
 
 
+    /**
+     * Only four bits are kept; deeper nodes, and far nodes, record MAX_DEPTH.
+     * Traversal tracks the true depth in its path, so nothing depends on this beyond
+     * that.  The depth shares bits with a far child, so set it before the child.
+     */
     static long setDepth(long node, byte depth){
-        return (node & ~DEPTH_MASK)
-                | ((long)depth << DEPTH_SHIFT);
+        return (node & ~(DEPTH_MASK | FLAG_FAR_MASK))
+                | ((long)Math.min(depth, MAX_DEPTH) << DEPTH_SHIFT);
     }
 
     static byte depth(long node){
+        if ((node & FLAG_FAR_MASK) == FLAG_FAR_MASK) {
+            return (byte)MAX_DEPTH;
+        }
         return (byte)((node & DEPTH_MASK) >>> DEPTH_SHIFT);
     }
 
@@ -1,40 +1,67 @@
 package com.simreal.VoxEngine;
 
+import com.simreal.VoxEngine.events.PoolGrowthEvent;
+
+import java.util.Arrays;
+
 public class NodePool {
-    private int numNodes;
+    protected int numNodes;
     private long[] pool;
-    private int firstFreeNode;
+    protected int firstFreeNode;
+
+    // Live counts, kept up to date by every set()
+    protected int numUsed;
+    protected int numLeaves;
 
     public static final int NO_FREE_NODE_INDEX = -1;
 
+    // Far children reach any int index; the pool stops doubling at a billion nodes
+    public static final int MAX_POOL_SIZE = 1 << 30;
+
     public NodePool(int size) {
         numNodes = size;
 
         pool = new long[numNodes];
         // Chain together all of the free nodes
         for (int idx=0; idx<(numNodes-1); ++idx) {
-            pool[idx] = Node.setChild(0L, idx+1);
+            pool[idx] = Node.setNext(0L, idx+1);
         }
         pool[numNodes-1] = Node.END_OF_FREE_NODES;
 
         firstFreeNode = 0;
     }
 
-    public int size() {
-        return numNodes;
+    /**
+     * For subclasses that keep their nodes somewhere other than a flat array; they
+     * must override node(), set() and grow().
+     */
+    protected NodePool() {
+        numNodes = 0;
+        pool = null;
+        firstFreeNode = NO_FREE_NODE_INDEX;
     }
 
-    public long[] pool() {
-        return pool;
+    public int size() {
+        return numNodes;
     }
 
     public int getFree() {
+        if (firstFreeNode == NO_FREE_NODE_INDEX) {
+            PoolGrowthEvent event = new PoolGrowthEvent();
+            event.begin();
+            event.oldSize = numNodes;
+            grow();
+            event.newSize = numNodes;
+            event.commit();
+        }
         int freeNodeIndex = firstFreeNode;
-        firstFreeNode = Node.child(pool[freeNodeIndex]);
+        long node = node(freeNodeIndex);
+        firstFreeNode = Node.next(node);
         if (firstFreeNode == Node.END_OF_FREE_NODES) {
             firstFreeNode = NO_FREE_NODE_INDEX;
         }
-        pool[freeNodeIndex] = Node.setUsed(pool[freeNodeIndex], true);
+        // Unlink it; the high bits of a far link sit where the color goes
+        set(freeNodeIndex, Node.setUsed(Node.setNext(node, Node.END_OF_FREE_NODES), true));
         return freeNodeIndex;
     }
 
@@ -44,10 +71,86 @@ public class NodePool {
             nextFree = Node.END_OF_FREE_NODES;
         }
 
-        pool[nodeIndex] = Node.setUsed(Node.setChild(0L, nextFree), false);
+        set(nodeIndex, Node.setUsed(Node.setNext(0L, nextFree), false));
         firstFreeNode = nodeIndex;
     }
 
+    /**
+     * Allocate the eight consecutive nodes of a child tile.  Tiles are only ever
+     * taken and returned whole (and returned in reverse), so the free chain hands
+     * them back contiguous.
+     */
+    public int getFreeTile() {
+        int tile = getFree();
+        for (int idx=1; idx<8; ++idx) {
+            if (getFree() != tile+idx) {
+                throw new RuntimeException("NodePool free tile is not contiguous");
+            }
+        }
+        return tile;
+    }
+
+    public void putFreeTile(int tile) {
+        for (int idx=7; idx>=0; --idx) {
+            putFree(tile + idx);
+        }
+    }
+
+    /**
+     * Double the pool, chaining the new nodes onto the (empty) free list
+     */
+    protected void grow() {
+        if (numNodes >= MAX_POOL_SIZE) {
+            throw new RuntimeException("NodePool exhausted");
+        }
+        int oldSize = numNodes;
+        numNodes = Math.min(numNodes * 2, MAX_POOL_SIZE);
+
+        pool = Arrays.copyOf(pool, numNodes);
+        for (int idx=oldSize; idx<(numNodes-1); ++idx) {
+            pool[idx] = Node.setNext(0L, idx+1);
+        }
+        pool[numNodes-1] = Node.END_OF_FREE_NODES;
+
+        firstFreeNode = oldSize;
+    }
+
+    /**
+     * Shrink the pool to its first size nodes, which must hold every used node, and
+     * rebuild the free chain (ascending) over what is left.  The dropped nodes go back
+     * to the heap.
+     */
+    public void trim(int size) {
+        if ((size < 1) || (size > numNodes)) {
+            throw new RuntimeException("NodePool trim out of bounds");
+        }
+        truncate(size);
+        sortFreeList();
+    }
+
+    /**
+     * Drop every node from size up; the caller has made sure none of them are in use
+     */
+    protected void truncate(int size) {
+        numNodes = size;
+        pool = Arrays.copyOf(pool, numNodes);
+    }
+
+    /**
+     * Rebuild the free chain from the used flags, in ascending order, so tiles are
+     * handed out lowest first.  Touches every node.
+     */
+    void sortFreeList() {
+        int nextFree = Node.END_OF_FREE_NODES;
+        for (int idx=numNodes-1; idx>=0; --idx) {
+            if (!Node.isUsed(node(idx))) {
+                set(idx, Node.setNext(0L, nextFree));
+                nextFree = idx;
+            }
+        }
+        firstFreeNode = (nextFree == Node.END_OF_FREE_NODES) ? NO_FREE_NODE_INDEX : nextFree;
+    }
+
     // TODO: Move from RuntimeException to Exception.  Doing Runtime for now because I don't want to
     // update the entire call chain.
     public long node(int index)
@@ -66,34 +169,279 @@ public class NodePool {
             throw new RuntimeException("NodePool index out of bounds");
         }
 
+        count(pool[index], node);
         pool[index] = node;
     }
 
+    /**
+     * Account for one node being replaced by another; subclasses call this from set()
+     */
+    protected void count(long oldNode, long newNode) {
+        if (Node.isUsed(oldNode)) {
+            --numUsed;
+            if (Node.isLeaf(oldNode)) {
+                --numLeaves;
+            }
+        }
+        if (Node.isUsed(newNode)) {
+            ++numUsed;
+            if (Node.isLeaf(newNode)) {
+                ++numLeaves;
+            }
+        }
+    }
+
+    /**
+     * Whether the node can be read without waiting on I/O.  An in-memory pool always
+     * can; a paged pool may still be loading it.
+     */
+    public boolean resident(int index) {
+        return true;
+    }
+
+    /**
+     * Hint that the node will be read soon
+     */
+    public void prefetch(int index) {
+    }
+
+    // --------------------------------------
+    // Subtree management
+    // --------------------------------------
+
+    /**
+     * Copy the descendants of a node from another pool into this one.  Returns the
+     * node re-pointed at its new child tile; where it lives is up to the caller.
+     * Tiles are laid down parent-first, depth-first.
+     */
+    public long copySubtree(NodePool srcPool, long srcNode) {
+        if (Node.isLeaf(srcNode)) {
+            return srcNode;
+        }
+        int srcTile = Node.child(srcNode);
+        int tile = getFreeTile();
+        for (int idx=0; idx<8; ++idx) {
+            set(tile+idx, copySubtree(srcPool, srcPool.node(srcTile+idx)));
+        }
+        return Node.setChild(srcNode, tile);
+    }
+
+    /**
+     * Release every tile below the given node (but not the node itself)
+     */
+    public void freeSubtree(long node) {
+        if (Node.isLeaf(node)) {
+            return;
+        }
+        int tile = Node.child(node);
+        for (int idx=0; idx<8; ++idx) {
+            freeSubtree(node(tile+idx));
+        }
+        putFreeTile(tile);
+    }
+
+    /**
+     * Convert the tree rooted at index 0 from straight to premultiplied colors, for
+     * a pool saved before VoxTree.premultiplied.  Leaves are converted as they are;
+     * every other node is re-averaged from its converted children, bottom up, since
+     * an average of straight colors is not the average of the premultiplied ones.
+     * Stubs are left for their generator.  A PagedNodePool converts its node file
+     * in place, once flushed.
+     */
+    public void premultiply() {
+        set(0, premultiply(node(0)));
+    }
+
+    private long premultiply(long node) {
+        if (Node.isLeaf(node)) {
+            return Node.setColor(node, Color.premultiply(Node.color(node)));
+        }
+        int tile = Node.child(node);
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        long alpha = 0;
+        for (int idx=0; idx<8; ++idx) {
+            long child = premultiply(node(tile+idx));
+            set(tile+idx, child);
+            red += Node.red(child);
+            green += Node.green(child);
+            blue += Node.blue(child);
+            alpha += Node.alpha(child);
+        }
+        return Node.setColor(node, (int) (red >>> 3), (int) (green >>> 3), (int) (blue >>> 3), (int) (alpha >>> 3));
+    }
+
+    // --------------------------------------
+    // Layout
+    // --------------------------------------
+
+    /**
+     * Rewrite the tree rooted at index 0 in traversal-friendly order, in place.  The
+     * top hotLevels levels of tiles are packed breadth-first right after the root, so
+     * the part of the tree every ray touches shares as few cache lines and pages as
+     * possible; every subtree below them follows depth-first, each parent tile ahead
+     * of its children.  The remaining nodes become one ascending free chain.
+     *
+     * Returns the map from old node index to new (-1 for nodes that were free).
+     */
+    public int[] relayout(int hotLevels) {
+        int[] map = new int[numNodes];
+        long[] packed = pack(hotLevels, map);
+
+        for (int idx=0; idx<packed.length; ++idx) {
+            set(idx, packed[idx]);
+        }
+        for (int idx=packed.length; idx<(numNodes-1); ++idx) {
+            set(idx, Node.setNext(0L, idx+1));
+        }
+        if (packed.length < numNodes) {
+            set(numNodes-1, Node.END_OF_FREE_NODES);
+            firstFreeNode = packed.length;
+        } else {
+            firstFreeNode = NO_FREE_NODE_INDEX;
+        }
+        return map;
+    }
+
+    /**
+     * A new pool holding exactly the tree rooted at index 0, in relayout() order
+     */
+    public NodePool compacted(int hotLevels) {
+        long[] packed = pack(hotLevels, new int[numNodes]);
+
+        NodePool compact = new NodePool(packed.length);
+        for (int idx=0; idx<packed.length; ++idx) {
+            compact.set(idx, packed[idx]);
+        }
+        compact.firstFreeNode = NO_FREE_NODE_INDEX;
+        return compact;
+    }
+
+    private long[] pack(int hotLevels, int[] map) {
+        TileList order = new TileList();
+
+        long root = node(0);
+        if (!Node.isLeaf(root)) {
+            // Breadth-first through the hot levels
+            order.add(Node.child(root));
+            int levelStart = 0;
+            for (int level=1; level<hotLevels; ++level) {
+                int levelEnd = order.count;
+                for (int tile=levelStart; tile<levelEnd; ++tile) {
+                    for (int idx=0; idx<8; ++idx) {
+                        long node = node(order.tiles[tile] + idx);
+                        if (!Node.isLeaf(node)) {
+                            order.add(Node.child(node));
+                        }
+                    }
+                }
+                levelStart = levelEnd;
+            }
+
+            // ... then depth-first below them
+            int frontierEnd = order.count;
+            for (int tile=levelStart; tile<frontierEnd; ++tile) {
+                for (int idx=0; idx<8; ++idx) {
+                    long node = node(order.tiles[tile] + idx);
+                    if (!Node.isLeaf(node)) {
+                        depthFirst(Node.child(node), order);
+                    }
+                }
+            }
+        }
+
+        Arrays.fill(map, -1);
+        map[0] = 0;
+        for (int tile=0; tile<order.count; ++tile) {
+            for (int idx=0; idx<8; ++idx) {
+                map[order.tiles[tile] + idx] = 1 + (tile << 3) + idx;
+            }
+        }
+
+        long[] packed = new long[1 + (order.count << 3)];
+        packed[0] = repoint(root, map);
+        for (int tile=0; tile<order.count; ++tile) {
+            for (int idx=0; idx<8; ++idx) {
+                packed[1 + (tile << 3) + idx] = repoint(node(order.tiles[tile] + idx), map);
+            }
+        }
+        return packed;
+    }
+
+    private void depthFirst(int tile, TileList order) {
+        order.add(tile);
+        for (int idx=0; idx<8; ++idx) {
+            long node = node(tile + idx);
+            if (!Node.isLeaf(node)) {
+                depthFirst(Node.child(node), order);
+            }
+        }
+    }
+
+    private static long repoint(long node, int[] map) {
+        if (Node.isLeaf(node)) {
+            return node;
+        }
+        return Node.setChild(node, map[Node.child(node)]);
+    }
+
+    private static class TileList {
+        int[] tiles = new int[64];
+        int count = 0;
+
+        void add(int tile) {
+            if (count == tiles.length) {
+                tiles = Arrays.copyOf(tiles, count * 2);
+            }
+            tiles[count++] = tile;
+        }
+    }
 
     // --------------------------------------
     // Analysis and debugging
     // --------------------------------------
 
-    class Statistics {
+    public static class Statistics {
         public int depth;
         public int numUsed;
         public int numNodes;
         public int numLeaves;
+        public int numFreeTiles;
+        public int poolSize;
 
         Statistics() {
             numUsed = 0;
             numNodes = 0;
             numLeaves = 0;
+            numFreeTiles = 0;
+            poolSize = 0;
         }
     }
 
+    /**
+     * The live counts, without touching the pool.  Free tiles are the unused nodes
+     * over eight.
+     */
+    public Statistics snapshot() {
+        Statistics stats = new Statistics();
+        stats.numUsed = numUsed;
+        stats.numLeaves = numLeaves;
+        stats.numNodes = numUsed - numLeaves;
+        stats.numFreeTiles = (numNodes - numUsed) >>> 3;
+        stats.poolSize = numNodes;
+        return stats;
+    }
 
+    /**
+     * Count by scanning every node; slow, for checking the live counts
+     */
     Statistics analyze() {
         Statistics stats = new Statistics();
 
         long node;
         for (int idx=0; idx<numNodes; ++idx){
-            node = pool[idx];
+            node = node(idx);
             if (Node.isUsed(node)) {
                 ++stats.numUsed;
                 if (Node.isLeaf(node))
@@ -102,6 +450,8 @@ public class NodePool {
                     ++stats.numNodes;
             }
         }
+        stats.numFreeTiles = (numNodes - stats.numUsed) >>> 3;
+        stats.poolSize = numNodes;
 
         return stats;
     }
@@ -110,17 +460,17 @@ public class NodePool {
         StringBuilder result = new StringBuilder();
         String NEW_LINE = System.getProperty("line.separator");
 
-        NodePool.Statistics stats = analyze();
+        NodePool.Statistics stats = snapshot();
 
         result.append(this.getClass()).append(" NodePool {").append(NEW_LINE);
         result.append("   Free Node: ").append(firstFreeNode).append(" of ").append(numNodes).append(NEW_LINE);
         result.append("   (").append(stats.numNodes).append(" nodes, ").append(stats.numLeaves).append(" leaves)").append(NEW_LINE);
         boolean elided = false;
         for (int idx=0; idx<64; ++idx){
-            if (Node.isUsed(pool[idx])) {
+            if (Node.isUsed(node(idx))) {
                 result.append(idx);
                 result.append(": ");
-                result.append(Node.toString(pool[idx]));
+                result.append(Node.toString(node(idx)));
                 result.append(NEW_LINE);
                 elided = false;
             } else {
@@ -0,0 +1,223 @@
+package com.simreal.VoxEngine;
+
+import java.util.Arrays;
+
+/**
+ * A shading normal and ambient occlusion for every colored leaf, by node index,
+ * alongside the pool.
+ *
+ * Both come from the 26 cells around a leaf, at the leaf's own size (deeper detail
+ * is read from the averaged node at that size).  The normal points away from the
+ * solid ones, weighted by alpha, so a slope or a rounded edge shades as one surface
+ * rather than as the faces of its voxels.  The occlusion is how much of the open
+ * side, weighted toward the normal, is blocked.  A leaf with solid on every side,
+ * or none, gets no normal: NONE, and traversal falls back to the face it entered
+ * through.
+ *
+ * An entry packs the normal as three signed bytes over the visibility (one minus
+ * the occlusion) as an unsigned one:
+ *
+ *  32            24            16             8             0
+ *    +------+------+------+------+------+------+------+------+
+ *    | normal x    | normal y    | normal z    | visibility  |
+ *    +------+------+------+------+------+------+------+------+
+ *
+ * Edits recompute every leaf whose neighborhood reaches the edited cube; splits
+ * hand the parent's entry down to the new tile, and moves carry entries along.
+ */
+class NodeShading {
+    static final int NONE = 0;
+
+    // Below this much solid on balance, the neighborhood gives no direction
+    private static final double MIN_GRADIENT = 0.5;
+
+    private static final double NORMAL_SCALE = 127.0;
+    private static final double VISIBILITY_SCALE = 255.0;
+
+    private final VoxTree tree;
+    private int[] shades;
+
+    // Alpha of each cell around the one being shaded
+    private final double[] solid = new double[27];
+
+    // The cube being updated, min corner inclusive and max exclusive
+    private int minX;
+    private int minY;
+    private int minZ;
+    private int maxX;
+    private int maxY;
+    private int maxZ;
+
+    NodeShading(VoxTree tree) {
+        this.tree = tree;
+        shades = new int[tree.nodePool.size()];
+    }
+
+    /**
+     * The entry for a node, NONE if it has none
+     */
+    int get(int nodeIndex) {
+        return (nodeIndex < shades.length) ? shades[nodeIndex] : NONE;
+    }
+
+    static double normalX(int shade) {
+        return (shade >> 24) / NORMAL_SCALE;
+    }
+
+    static double normalY(int shade) {
+        return ((shade << 8) >> 24) / NORMAL_SCALE;
+    }
+
+    static double normalZ(int shade) {
+        return ((shade << 16) >> 24) / NORMAL_SCALE;
+    }
+
+    static double visibility(int shade) {
+        return (shade & 0xFF) / VISIBILITY_SCALE;
+    }
+
+    /**
+     * Recompute every leaf whose neighborhood overlaps the cube
+     */
+    void update(int x, int y, int z, int size) {
+        if (shades.length < tree.nodePool.size()) {
+            shades = Arrays.copyOf(shades, tree.nodePool.size());
+        }
+        minX = x;
+        minY = y;
+        minZ = z;
+        maxX = x + size;
+        maxY = y + size;
+        maxZ = z + size;
+        visit(0, tree.nodePool.node(0), 0, 0, 0, tree.edgeLength);
+    }
+
+    /**
+     * A leaf was split into the tile; its children start out shaded as it was
+     */
+    void split(int nodeIndex, int tile) {
+        if (shades.length < tree.nodePool.size()) {
+            shades = Arrays.copyOf(shades, tree.nodePool.size());
+        }
+        Arrays.fill(shades, tile, tile + 8, shades[nodeIndex]);
+    }
+
+    /**
+     * A whole tile was moved elsewhere in the pool
+     */
+    void moved(int from, int to) {
+        if (shades.length < tree.nodePool.size()) {
+            shades = Arrays.copyOf(shades, tree.nodePool.size());
+        }
+        System.arraycopy(shades, from, shades, to, 8);
+    }
+
+    /**
+     * The pool was re-laid out, by the map from old node index to new (-1 if free)
+     */
+    void remap(int[] map) {
+        int[] remapped = new int[tree.nodePool.size()];
+        for (int idx=0; idx<Math.min(map.length, shades.length); ++idx) {
+            if (map[idx] >= 0) {
+                remapped[map[idx]] = shades[idx];
+            }
+        }
+        shades = remapped;
+    }
+
+    private void visit(int nodeIndex, long node, int x, int y, int z, int size) {
+        // Reaches the cube with its neighborhood (the descendants' are no bigger)
+        if ((x - size >= maxX) || (x + 2*size <= minX)
+                || (y - size >= maxY) || (y + 2*size <= minY)
+                || (z - size >= maxZ) || (z + 2*size <= minZ)) {
+            return;
+        }
+        if (Node.isLeaf(node)) {
+            shades[nodeIndex] = (Node.color(node) != 0) ? shade(x, y, z, size) : NONE;
+            return;
+        }
+        int half = size >> 1;
+        int child = Node.child(node);
+        for (int octant=0; octant<8; ++octant) {
+            visit(child + octant, tree.nodePool.node(child + octant),
+                    ((octant & 4) != 0) ? x + half : x,
+                    ((octant & 2) != 0) ? y + half : y,
+                    ((octant & 1) != 0) ? z + half : z,
+                    half);
+        }
+    }
+
+    /**
+     * The entry for a leaf cell, from the alphas of the cells around it
+     */
+    int shade(int x, int y, int z, int size) {
+        double gradientX = 0.0;
+        double gradientY = 0.0;
+        double gradientZ = 0.0;
+        for (int cell=0; cell<27; ++cell) {
+            int dX = (cell / 9) - 1;
+            int dY = ((cell / 3) % 3) - 1;
+            int dZ = (cell % 3) - 1;
+            if ((dX | dY | dZ) == 0) {
+                continue;
+            }
+            solid[cell] = alpha(x + dX*size, y + dY*size, z + dZ*size, size);
+            double weight = solid[cell] / Math.sqrt(dX*dX + dY*dY + dZ*dZ);
+            gradientX -= dX * weight;
+            gradientY -= dY * weight;
+            gradientZ -= dZ * weight;
+        }
+
+        double length = Math.sqrt(gradientX*gradientX + gradientY*gradientY + gradientZ*gradientZ);
+        if (length < MIN_GRADIENT) {
+            return NONE;
+        }
+        gradientX /= length;
+        gradientY /= length;
+        gradientZ /= length;
+
+        // Occlusion over the open side, each cell by how squarely it faces the normal
+        double blocked = 0.0;
+        double total = 0.0;
+        for (int cell=0; cell<27; ++cell) {
+            int dX = (cell / 9) - 1;
+            int dY = ((cell / 3) % 3) - 1;
+            int dZ = (cell % 3) - 1;
+            if ((dX | dY | dZ) == 0) {
+                continue;
+            }
+            double facing = (dX*gradientX + dY*gradientY + dZ*gradientZ) / Math.sqrt(dX*dX + dY*dY + dZ*dZ);
+            if (facing > 0.0) {
+                blocked += solid[cell] * facing;
+                total += facing;
+            }
+        }
+        double visibility = 1.0 - (blocked / total);
+
+        return ((int)Math.round(gradientX * NORMAL_SCALE) << 24)
+                | (((int)Math.round(gradientY * NORMAL_SCALE) & 0xFF) << 16)
+                | (((int)Math.round(gradientZ * NORMAL_SCALE) & 0xFF) << 8)
+                | ((int)Math.round(visibility * VISIBILITY_SCALE) & 0xFF);
+    }
+
+    /**
+     * The alpha, out of one, of the cell of the given size and corner: a leaf
+     * holding it, or the node of that size, whose color averages its children.
+     * Past the side of the world, the world carries on as it is at the side: ground
+     * at the bottom of the world is lit as ground, not as an overhang.
+     */
+    private double alpha(int x, int y, int z, int size) {
+        int edge = tree.edgeLength;
+        x = Math.max(0, Math.min(edge - size, x));
+        y = Math.max(0, Math.min(edge - size, y));
+        z = Math.max(0, Math.min(edge - size, z));
+        long node = tree.nodePool.node(0);
+        int scale = edge;
+        while (!Node.isLeaf(node) && (scale > size)) {
+            scale >>= 1;
+            int octant = (((x & scale) != 0) ? 4 : 0) | (((y & scale) != 0) ? 2 : 0) | (((z & scale) != 0) ? 1 : 0);
+            node = tree.nodePool.node(Node.child(node) + octant);
+        }
+        return Node.alpha(node) / 255.0;
+    }
+}
@@ -0,0 +1,409 @@
+package com.simreal.VoxEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A NodePool kept in a node file, with only a bounded number of pages in memory.
+ *
+ * The file is a small header (pool size, first free node, used and leaf counts)
+ * followed by the raw
+ * nodes.  Nodes are cached a page (64 tiles) at a time in a fixed set of frames;
+ * a page faults in the first time it is read, and when every frame is taken the
+ * CLOCK hand picks a victim, writing it back first if it is dirty.
+ *
+ * Reads from node() and set() fault synchronously.  Traversal instead asks
+ * resident() before it descends, which starts an asynchronous load and answers
+ * false until the page arrives, so a ray can settle for the parent's averaged
+ * color rather than stall.  All file I/O runs in order on one background thread,
+ * so a load always sees any write-back queued before it.
+ *
+ * Only the thread that owns the tree may touch the pool.
+ */
+public class PagedNodePool extends NodePool {
+    public static final int PAGE_SHIFT = 9;
+    public static final int PAGE_NODES = 1 << PAGE_SHIFT;   // 512 nodes, 64 tiles, 4KB
+    private static final int PAGE_MASK = PAGE_NODES - 1;
+    private static final int PAGE_BYTES = PAGE_NODES * 8;
+    private static final int HEADER_BYTES = 32;
+
+    private FileChannel channel;
+    private ExecutorService io;
+    private volatile IOException ioFailure;
+
+    // Cache frames, and the page <-> frame mapping
+    private long[] frames;
+    private int[] pageFrame;
+    private int[] framePage;
+    private boolean[] frameDirty;
+    private boolean[] frameRef;
+    private int hand;
+
+    // Asynchronous loads in flight, by page
+    private Map<Integer, Future<long[]>> pending;
+
+    /**
+     * Write a pool out as a node file
+     */
+    public static void create(File file, NodePool source) throws IOException {
+        FileChannel out = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(PAGE_BYTES);
+            buffer.putLong(source.size());
+            buffer.putLong(source.firstFreeNode);
+            buffer.putLong(source.numUsed);
+            buffer.putLong(source.numLeaves);
+            buffer.flip();
+            writeFully(out, buffer, 0L);
+
+            long position = HEADER_BYTES;
+            for (int index=0; index<source.size(); index+=PAGE_NODES) {
+                buffer.clear();
+                int count = Math.min(PAGE_NODES, source.size() - index);
+                for (int idx=0; idx<count; ++idx) {
+                    buffer.putLong(source.node(index + idx));
+                }
+                buffer.flip();
+                writeFully(out, buffer, position);
+                position += count * 8;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Open a node file, caching at most cacheFrames pages in memory
+     */
+    public PagedNodePool(File file, int cacheFrames) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, 0L);
+        header.flip();
+        numNodes = (int)header.getLong();
+        firstFreeNode = (int)header.getLong();
+        numUsed = (int)header.getLong();
+        numLeaves = (int)header.getLong();
+
+        io = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "NodePool I/O");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        frames = new long[cacheFrames * PAGE_NODES];
+        framePage = new int[cacheFrames];
+        frameDirty = new boolean[cacheFrames];
+        frameRef = new boolean[cacheFrames];
+        Arrays.fill(framePage, -1);
+        pageFrame = new int[pages(numNodes)];
+        Arrays.fill(pageFrame, -1);
+        hand = 0;
+
+        pending = new HashMap<Integer, Future<long[]>>();
+    }
+
+    @Override
+    public long node(int index)
+        throws RuntimeException {
+
+        if ((index < 0) || (index >= numNodes)) {
+            throw new RuntimeException("NodePool index out of bounds");
+        }
+        int frame = pageFrame[index >>> PAGE_SHIFT];
+        if (frame < 0) {
+            frame = fault(index >>> PAGE_SHIFT);
+        }
+        frameRef[frame] = true;
+        return frames[(frame << PAGE_SHIFT) | (index & PAGE_MASK)];
+    }
+
+    @Override
+    public void set(int index, long node)
+        throws RuntimeException {
+
+        if ((index < 0) || (index >= numNodes)) {
+            throw new RuntimeException("NodePool index out of bounds");
+        }
+        int frame = pageFrame[index >>> PAGE_SHIFT];
+        if (frame < 0) {
+            frame = fault(index >>> PAGE_SHIFT);
+        }
+        frameRef[frame] = true;
+        frameDirty[frame] = true;
+        int slot = (frame << PAGE_SHIFT) | (index & PAGE_MASK);
+        count(frames[slot], node);
+        frames[slot] = node;
+    }
+
+    @Override
+    public boolean resident(int index) {
+        int page = index >>> PAGE_SHIFT;
+        if (pageFrame[page] >= 0) {
+            return true;
+        }
+
+        Future<long[]> load = pending.get(page);
+        if (load == null) {
+            prefetch(index);
+            return false;
+        }
+        if (!load.isDone()) {
+            return false;
+        }
+        fault(page);
+        return true;
+    }
+
+    @Override
+    public void prefetch(int index) {
+        final int page = index >>> PAGE_SHIFT;
+        if ((page >= pageFrame.length) || (pageFrame[page] >= 0) || pending.containsKey(page)) {
+            return;
+        }
+        pending.put(page, io.submit(new Callable<long[]>() {
+            @Override
+            public long[] call() throws IOException {
+                return readPage(page);
+            }
+        }));
+    }
+
+    /**
+     * Write every dirty page and the header back to the file, and wait for it
+     */
+    public void flush() {
+        for (int frame=0; frame<framePage.length; ++frame) {
+            if ((framePage[frame] >= 0) && frameDirty[frame]) {
+                writeBack(frame);
+            }
+        }
+        final long size = numNodes;
+        final long free = firstFreeNode;
+        final long used = numUsed;
+        final long leaves = numLeaves;
+        await(io.submit(new Callable<long[]>() {
+            @Override
+            public long[] call() throws IOException {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putLong(size);
+                header.putLong(free);
+                header.putLong(used);
+                header.putLong(leaves);
+                header.flip();
+                writeFully(channel, header, 0L);
+                channel.force(false);
+                return null;
+            }
+        }));
+    }
+
+    public void close() throws IOException {
+        flush();
+        io.shutdown();
+        channel.close();
+    }
+
+    /**
+     * Double the pool.  The new pages are chained as free nodes and written out
+     * behind any I/O already queued.
+     */
+    @Override
+    protected void grow() {
+        if (numNodes >= MAX_POOL_SIZE) {
+            throw new RuntimeException("NodePool exhausted");
+        }
+        final int oldSize = numNodes;
+        numNodes = Math.min(numNodes * 2, MAX_POOL_SIZE);
+
+        int oldPages = pageFrame.length;
+        pageFrame = Arrays.copyOf(pageFrame, pages(numNodes));
+        Arrays.fill(pageFrame, oldPages, pageFrame.length, -1);
+
+        // A partial last page may be resident; chain its tail in memory
+        final int chainStart = Math.min(numNodes, oldPages << PAGE_SHIFT);
+        for (int idx=oldSize; idx<chainStart; ++idx) {
+            set(idx, Node.setNext(0L, idx+1));
+        }
+        final int newSize = numNodes;
+        io.submit(new Callable<long[]>() {
+            @Override
+            public long[] call() throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate(PAGE_BYTES);
+                for (int index=chainStart; index<newSize; index+=PAGE_NODES) {
+                    buffer.clear();
+                    int count = Math.min(PAGE_NODES, newSize - index);
+                    for (int idx=0; idx<count; ++idx) {
+                        int node = index + idx;
+                        buffer.putLong((node < newSize-1) ? Node.setNext(0L, node+1) : Node.END_OF_FREE_NODES);
+                    }
+                    buffer.flip();
+                    writeFully(channel, buffer, HEADER_BYTES + (long)index * 8);
+                }
+                return null;
+            }
+        });
+        if (chainStart == newSize) {
+            set(newSize-1, Node.END_OF_FREE_NODES);
+        }
+
+        firstFreeNode = oldSize;
+    }
+
+    /**
+     * Drop the pages past the new end, resident or not, and cut the file down to match
+     */
+    @Override
+    protected void truncate(int size) {
+        numNodes = size;
+        int keepPages = pages(numNodes);
+        for (int frame=0; frame<framePage.length; ++frame) {
+            if (framePage[frame] >= keepPages) {
+                framePage[frame] = -1;
+                frameDirty[frame] = false;
+                frameRef[frame] = false;
+            }
+        }
+        for (int page=keepPages; page<pageFrame.length; ++page) {
+            pending.remove(page);
+        }
+        pageFrame = Arrays.copyOf(pageFrame, keepPages);
+
+        final long length = HEADER_BYTES + (long)numNodes * 8;
+        io.submit(new Callable<long[]>() {
+            @Override
+            public long[] call() throws IOException {
+                channel.truncate(length);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Bring a page into a frame, waiting for it if need be.  Returns the frame.
+     */
+    private int fault(final int page) {
+        if (ioFailure != null) {
+            throw new RuntimeException("NodePool I/O failed", ioFailure);
+        }
+
+        Future<long[]> load = pending.remove(page);
+        if (load == null) {
+            load = io.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws IOException {
+                    return readPage(page);
+                }
+            });
+        }
+        long[] nodes = await(load);
+
+        int frame = victim();
+        System.arraycopy(nodes, 0, frames, frame << PAGE_SHIFT, PAGE_NODES);
+        framePage[frame] = page;
+        frameDirty[frame] = false;
+        frameRef[frame] = true;
+        pageFrame[page] = frame;
+        return frame;
+    }
+
+    /**
+     * CLOCK: take the first frame not referenced since the hand last passed it
+     */
+    private int victim() {
+        while (true) {
+            int frame = hand;
+            hand = (hand + 1) % framePage.length;
+
+            if (framePage[frame] < 0) {
+                return frame;
+            }
+            if (frameRef[frame]) {
+                frameRef[frame] = false;
+                continue;
+            }
+            if (frameDirty[frame]) {
+                writeBack(frame);
+            }
+            pageFrame[framePage[frame]] = -1;
+            framePage[frame] = -1;
+            return frame;
+        }
+    }
+
+    private void writeBack(int frame) {
+        final int page = framePage[frame];
+        final long[] nodes = Arrays.copyOfRange(frames, frame << PAGE_SHIFT, (frame + 1) << PAGE_SHIFT);
+        frameDirty[frame] = false;
+        io.submit(new Callable<long[]>() {
+            @Override
+            public long[] call() throws IOException {
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate(PAGE_BYTES);
+                    buffer.asLongBuffer().put(nodes);
+                    writeFully(channel, buffer, HEADER_BYTES + ((long)page << PAGE_SHIFT) * 8);
+                } catch (IOException e) {
+                    ioFailure = e;
+                    throw e;
+                }
+                return null;
+            }
+        });
+    }
+
+    private long[] readPage(int page) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_BYTES);
+        readFully(channel, buffer, HEADER_BYTES + ((long)page << PAGE_SHIFT) * 8);
+        buffer.rewind();
+        long[] nodes = new long[PAGE_NODES];
+        buffer.asLongBuffer().get(nodes);
+        return nodes;
+    }
+
+    private static long[] await(Future<long[]> future) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            throw new RuntimeException("NodePool I/O failed", e);
+        }
+    }
+
+    private static int pages(int nodes) {
+        return (nodes + PAGE_MASK) >>> PAGE_SHIFT;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Read until the buffer is full or the file ends; anything past the end reads as zero
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                break;
+            }
+            position += count;
+        }
+    }
+}
@@ -100,6 +100,10 @@ public class Path {
      * Given a position (within the given volume) determine the path to that position
      * (to a given depth)
      *
+     * For a power-of-two volume, the child fields (X, Y, Z bits per level, root first)
+     * are just the Morton code of the cell coordinates, so the path is built by bit
+     * interleaving rather than by bisecting one level at a time.
+     *
      * @param position
      * @param edgeLength
      * @param depth
@@ -115,6 +119,27 @@ public class Path {
             return 0L;
         }
 
+        int shift = cellShift(edgeLength, depth);
+        if (shift < 0) {
+            return fromPositionSearch(position, edgeLength, depth);
+        }
+        if (depth == 0) {
+            return 0L;
+        }
+
+        // A position on a midpoint belongs to the lower half, so cells run (x0, x1]
+        long x = Math.max(position.x - 1, 0) >>> shift;
+        long y = Math.max(position.y - 1, 0) >>> shift;
+        long z = Math.max(position.z - 1, 0) >>> shift;
+        long morton = (spread(x) << 2) | (spread(y) << 1) | spread(z);
+
+        return (morton << (64 - 3*depth)) | ((long)depth << PATH_DEPTH_SHIFT);
+    }
+
+    /**
+     * fromPosition by bisection, level by level; works for any edge length
+     */
+    static long fromPositionSearch(Point3i position, int edgeLength, int depth) {
         int x0 = 0;
         int y0 = 0;
         int z0 = 0;
@@ -201,11 +226,34 @@ public class Path {
      *  Parse a path, which is a series of child choices that represent a descent down an oct-tree,
      *  into a position in cube space (the minimum corner)
      *
+     *  For a power-of-two volume this de-interleaves the Morton code in the child fields.
+     *
      * @param path
      * @param edgeLength
      * @return
      */
     public static Point3i toPosition(long path, int edgeLength) {
+        int depth = Path.depth(path);
+        int shift = cellShift(edgeLength, depth);
+        if (shift < 0) {
+            return toPositionSearch(path, edgeLength);
+        }
+        if (depth == 0) {
+            return new Point3i(edgeLength >> 1, edgeLength >> 1, edgeLength >> 1);
+        }
+
+        long morton = path >>> (64 - 3*depth);
+        int half = (1 << shift) >> 1;
+        return new Point3i(
+                ((int)compact(morton >>> 2) << shift) + half,
+                ((int)compact(morton >>> 1) << shift) + half,
+                ((int)compact(morton) << shift) + half);
+    }
+
+    /**
+     * toPosition by bisection, level by level; works for any edge length
+     */
+    static Point3i toPositionSearch(long path, int edgeLength) {
         int x0 = 0;
         int y0 = 0;
         int z0 = 0;
@@ -274,6 +322,46 @@ public class Path {
         return new Point3i(xm, ym, zm);
     }
 
+    /**
+     * log2 of the cell edge at the given depth, or -1 if the edge length is not a power
+     * of two at least 2^depth (or the depth is out of range), which the bit-interleaving
+     * conversions need
+     */
+    private static int cellShift(int edgeLength, int depth) {
+        if ((depth < 0) || (depth > PATH_MAX_DEPTH)
+                || (edgeLength <= 0) || ((edgeLength & (edgeLength - 1)) != 0)) {
+            return -1;
+        }
+        int shift = Integer.numberOfTrailingZeros(edgeLength) - depth;
+        return (shift < 0) ? -1 : shift;
+    }
+
+    /**
+     * Spread the low 21 bits of v out to every third bit (Morton interleave)
+     */
+    static long spread(long v) {
+        v &= 0x00000000001FFFFFL;
+        v = (v | (v << 32)) & 0x001F00000000FFFFL;
+        v = (v | (v << 16)) & 0x001F0000FF0000FFL;
+        v = (v | (v <<  8)) & 0x100F00F00F00F00FL;
+        v = (v | (v <<  4)) & 0x10C30C30C30C30C3L;
+        v = (v | (v <<  2)) & 0x1249249249249249L;
+        return v;
+    }
+
+    /**
+     * Gather every third bit of v back together; the inverse of spread
+     */
+    static long compact(long v) {
+        v &= 0x1249249249249249L;
+        v = (v ^ (v >>>  2)) & 0x10C30C30C30C30C3L;
+        v = (v ^ (v >>>  4)) & 0x100F00F00F00F00FL;
+        v = (v ^ (v >>>  8)) & 0x001F0000FF0000FFL;
+        v = (v ^ (v >>> 16)) & 0x001F00000000FFFFL;
+        v = (v ^ (v >>> 32)) & 0x00000000001FFFFFL;
+        return v;
+    }
+
     /**
      * Parse a path into an ID sequence, by intermixing the bits.  This should turn the X, Y, Z into
      * an ID long that still preserves locality.
@@ -0,0 +1,95 @@
+package com.simreal.VoxEngine;
+
+import java.util.Arrays;
+
+/**
+ * Remembers where the nodes along recently used paths live in the pool, so a lookup
+ * can start from the deepest known ancestor instead of the root.
+ *
+ * Open addressing over parallel primitive arrays: the key is a path's two longs
+ * (children past its depth masked off), the value a node index.  A short linear
+ * probe finds a slot; when the probe is full the home slot is simply overwritten.
+ * Each entry is stamped with the generation it was written in, so clear() is a
+ * single increment.
+ *
+ * Splits only add nodes below a leaf, so every entry stays good across them.  Merges,
+ * evictions and anything that moves or frees tiles must clear().
+ */
+class PathCache {
+    static final int MISSING = -1;
+
+    private static final int PROBES = 4;
+
+    private final int mask;
+    private final long[] heads;
+    private final long[] tails;
+    private final int[] indices;
+    private final int[] stamps;
+    private int generation;
+
+    /**
+     * Capacity is rounded up to a power of two
+     */
+    PathCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mask = size - 1;
+        heads = new long[size];
+        tails = new long[size];
+        indices = new int[size];
+        stamps = new int[size];
+        generation = 1;
+    }
+
+    /**
+     * The node index for the path, or MISSING
+     */
+    int get(WidePath path) {
+        long head = path.headKey();
+        long tail = path.tailKey();
+        int slot = hash(head, tail);
+        for (int probe=0; probe<PROBES; ++probe) {
+            int idx = (slot + probe) & mask;
+            if (stamps[idx] != generation) {
+                return MISSING;
+            }
+            if ((heads[idx] == head) && (tails[idx] == tail)) {
+                return indices[idx];
+            }
+        }
+        return MISSING;
+    }
+
+    void put(WidePath path, int nodeIndex) {
+        long head = path.headKey();
+        long tail = path.tailKey();
+        int slot = hash(head, tail);
+        int idx = slot;
+        for (int probe=0; probe<PROBES; ++probe) {
+            int next = (slot + probe) & mask;
+            if ((stamps[next] != generation)
+                    || ((heads[next] == head) && (tails[next] == tail))) {
+                idx = next;
+                break;
+            }
+        }
+        heads[idx] = head;
+        tails[idx] = tail;
+        indices[idx] = nodeIndex;
+        stamps[idx] = generation;
+    }
+
+    /**
+     * Forget everything
+     */
+    void clear() {
+        if (++generation == 0) {
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+    private int hash(long head, long tail) {
+        long hash = (head ^ (tail * 0x9E3779B97F4A7C15L)) * 0xC2B2AE3D27D4EB4FL;
+        return (int)(hash >>> 32) & mask;
+    }
+}
@@ -0,0 +1,181 @@
+package com.simreal.VoxEngine;
+
+import com.simreal.VoxEngine.events.RayFrameEvent;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Optional ray caster counters.
+ *
+ * Run with -Dvoxengine.metrics=true to turn them on.  ENABLED is a constant, so with
+ * it off every counting branch in VoxTree compiles away.  Each rendering thread
+ * counts into its own Counters; endFrame() folds them all into one frame's totals,
+ * publishes those over JMX (com.simreal.VoxEngine:type=RayMetrics) and commits a
+ * RayFrameEvent for JFR.  Call endFrame() once the frame's rays are all cast.
+ */
+public class RayMetrics implements RayMetricsMBean {
+    public static final boolean ENABLED = Boolean.getBoolean("voxengine.metrics");
+
+    // Nodes-per-ray histogram buckets: 0, 1, 2-3, 4-7, ... and everything larger
+    public static final int HISTOGRAM_BUCKETS = 16;
+
+    public static final String OBJECT_NAME = "com.simreal.VoxEngine:type=RayMetrics";
+
+    /**
+     * One thread's counts for the frame in progress
+     */
+    static class Counters {
+        long rays;
+        long nodes;
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        int maxStackDepth;
+        long opaqueExits;
+        long skyFallbacks;
+        long pickSplits;
+
+        void ray(int nodesVisited, int stackDepth) {
+            ++rays;
+            nodes += nodesVisited;
+            ++histogram[bucket(nodesVisited)];
+            maxStackDepth = Math.max(maxStackDepth, stackDepth);
+        }
+
+        private void clear() {
+            rays = 0;
+            nodes = 0;
+            Arrays.fill(histogram, 0L);
+            maxStackDepth = 0;
+            opaqueExits = 0;
+            skyFallbacks = 0;
+            pickSplits = 0;
+        }
+    }
+
+    private static final List<Counters> threads = new CopyOnWriteArrayList<Counters>();
+    private static final ThreadLocal<Counters> local = new ThreadLocal<Counters>() {
+        @Override
+        protected Counters initialValue() {
+            Counters counters = new Counters();
+            threads.add(counters);
+            return counters;
+        }
+    };
+
+    private static final RayMetrics instance = new RayMetrics();
+    private static boolean registered = false;
+
+    private volatile long frames;
+    private volatile Counters lastFrame;
+
+    private RayMetrics() {
+        frames = 0;
+        lastFrame = new Counters();
+    }
+
+    /**
+     * The calling thread's counters
+     */
+    static Counters counters() {
+        return local.get();
+    }
+
+    /**
+     * Total up every thread's counts for the frame just drawn, reset them, and publish
+     */
+    public static synchronized void endFrame() {
+        Counters frame = new Counters();
+        for (Counters counters : threads) {
+            frame.rays += counters.rays;
+            frame.nodes += counters.nodes;
+            for (int idx=0; idx<HISTOGRAM_BUCKETS; ++idx) {
+                frame.histogram[idx] += counters.histogram[idx];
+            }
+            frame.maxStackDepth = Math.max(frame.maxStackDepth, counters.maxStackDepth);
+            frame.opaqueExits += counters.opaqueExits;
+            frame.skyFallbacks += counters.skyFallbacks;
+            frame.pickSplits += counters.pickSplits;
+            counters.clear();
+        }
+        ++instance.frames;
+        instance.lastFrame = frame;
+
+        if (!registered) {
+            registered = true;
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+            } catch (Exception e) {
+                // The counters still work without the MBean; say why it is missing
+                System.err.println("RayMetrics could not register " + OBJECT_NAME + ": " + e);
+            }
+        }
+
+        RayFrameEvent event = new RayFrameEvent();
+        if (event.isEnabled()) {
+            event.rays = frame.rays;
+            event.nodesVisited = frame.nodes;
+            event.maxStackDepth = frame.maxStackDepth;
+            event.opaqueExits = frame.opaqueExits;
+            event.skyFallbacks = frame.skyFallbacks;
+            event.pickSplits = frame.pickSplits;
+            event.commit();
+        }
+    }
+
+    public static RayMetricsMBean get() {
+        return instance;
+    }
+
+    static int bucket(int nodesVisited) {
+        return Math.min(HISTOGRAM_BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(nodesVisited));
+    }
+
+    // --------------------------------------
+    // RayMetricsMBean, over the last frame
+    // --------------------------------------
+    @Override
+    public long getFrames() {
+        return frames;
+    }
+
+    @Override
+    public long getRays() {
+        return lastFrame.rays;
+    }
+
+    @Override
+    public double getMeanNodesPerRay() {
+        Counters frame = lastFrame;
+        return (frame.rays == 0) ? 0.0 : (double)frame.nodes / frame.rays;
+    }
+
+    @Override
+    public long[] getNodesPerRayHistogram() {
+        return lastFrame.histogram.clone();
+    }
+
+    @Override
+    public int getMaxStackDepth() {
+        return lastFrame.maxStackDepth;
+    }
+
+    @Override
+    public double getOpaqueExitRate() {
+        Counters frame = lastFrame;
+        return (frame.rays == 0) ? 0.0 : (double)frame.opaqueExits / frame.rays;
+    }
+
+    @Override
+    public double getSkyFallbackRate() {
+        Counters frame = lastFrame;
+        return (frame.rays == 0) ? 0.0 : (double)frame.skyFallbacks / frame.rays;
+    }
+
+    @Override
+    public long getPickSplits() {
+        return lastFrame.pickSplits;
+    }
+}
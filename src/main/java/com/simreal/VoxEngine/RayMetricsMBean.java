@@ -0,0 +1,15 @@
+package com.simreal.VoxEngine;
+
+/**
+ * JMX view of the ray caster's counters, as of the last completed frame
+ */
+public interface RayMetricsMBean {
+    long getFrames();
+    long getRays();
+    double getMeanNodesPerRay();
+    long[] getNodesPerRayHistogram();
+    int getMaxStackDepth();
+    double getOpaqueExitRate();
+    double getSkyFallbackRate();
+    long getPickSplits();
+}
@@ -0,0 +1,248 @@
+package com.simreal.VoxEngine;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Frame-to-frame reuse of traced pixels.
+ *
+ * Every traced pixel keeps the world point its ray went opaque at.  Next frame
+ * those points are projected through the new view, the nearest winning each
+ * pixel, and land with their old colors: shading depends only on the node and face
+ * hit, not on where it is seen from.  Only what is left over gets traced again:
+ * pixels nothing landed on (disoccluded, or newly on screen), sky (which animates),
+ * pixels covering anything edited since (the tree tells us, see EditListener), and
+ * a rolling one in refreshPeriod of the rest, so what reprojection gets wrong is
+ * never around for long.  A camera holding still or moving slowly therefore costs
+ * a fraction of a full frame.
+ */
+public class Reprojector implements EditListener {
+
+    // One pixel in this many is traced each frame whatever else happens
+    public int refreshPeriod = 16;
+
+    // Pixels traced for the last frame
+    public int traced;
+
+    private final int width;
+    private final int height;
+
+    // Last frame, by pixel: color and world hit point, NaN where the ray saw sky
+    private int[] colors;
+    private double[] hitX;
+    private double[] hitY;
+    private double[] hitZ;
+
+    // This frame as it is built
+    private int[] newColors;
+    private double[] newHitX;
+    private double[] newHitY;
+    private double[] newHitZ;
+    private double[] newDepth;
+
+    private boolean valid;
+    private int phase;
+
+    // Cubes edited since the last frame: x, y, z, size
+    private final List<int[]> edits = new ArrayList<int[]>();
+
+    // The view being rendered, and where project() last put a point on it
+    private ViewFrame view;
+    private double plane;
+    private double ltScale;
+    private double upScale;
+    private double projectedX;
+    private double projectedY;
+
+    private final Vector3d normal = new Vector3d();
+    private final Vector3d toPoint = new Vector3d();
+    private final Vector3d facing = new Vector3d();
+
+    public Reprojector(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        int pixels = width * height;
+        colors = new int[pixels];
+        hitX = new double[pixels];
+        hitY = new double[pixels];
+        hitZ = new double[pixels];
+        newColors = new int[pixels];
+        newHitX = new double[pixels];
+        newHitY = new double[pixels];
+        newHitZ = new double[pixels];
+        newDepth = new double[pixels];
+        valid = false;
+    }
+
+    /**
+     * Trace the whole of the next frame
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    @Override
+    public void edited(int x, int y, int z, int size) {
+        synchronized (edits) {
+            edits.add(new int[] { x, y, z, size });
+        }
+    }
+
+    /**
+     * Render a frame into pixels, reusing what it can of the last one.  beams, if not
+     * null, must already be traced for this view.
+     */
+    public void render(VoxTree tree, ViewFrame view, BeamPrepass beams, int[] pixels) {
+        this.view = view;
+        Point3d viewPoint = view.viewPoint;
+
+        // Facing the image plane
+        normal.cross(view.upVec, view.ltVec);
+        toPoint.sub(view.topLeft, viewPoint);
+        plane = toPoint.dot(normal);
+        ltScale = 1.0 / view.ltVec.lengthSquared();
+        upScale = 1.0 / view.upVec.lengthSquared();
+
+        Arrays.fill(newDepth, Double.POSITIVE_INFINITY);
+        if (valid) {
+            for (int idx=0; idx<colors.length; ++idx) {
+                if (Double.isNaN(hitX[idx])) {
+                    continue;
+                }
+                toPoint.set(hitX[idx] - viewPoint.x, hitY[idx] - viewPoint.y, hitZ[idx] - viewPoint.z);
+                if (!project()) {
+                    continue;
+                }
+                int pixelX = (int)Math.floor(projectedX + 0.5);
+                int pixelY = (int)Math.floor(projectedY + 0.5);
+                if ((pixelX < 0) || (pixelX >= width) || (pixelY < 0) || (pixelY >= height)) {
+                    continue;
+                }
+                int pixel = pixelY * width + pixelX;
+                double distance = toPoint.length();
+                if (distance < newDepth[pixel]) {
+                    newDepth[pixel] = distance;
+                    newColors[pixel] = colors[idx];
+                    newHitX[pixel] = hitX[idx];
+                    newHitY[pixel] = hitY[idx];
+                    newHitZ[pixel] = hitZ[idx];
+                }
+            }
+        }
+
+        synchronized (edits) {
+            if (valid) {
+                for (int[] edit : edits) {
+                    invalidate(edit);
+                }
+            }
+            edits.clear();
+        }
+
+        traced = 0;
+        int idx = 0;
+        for (int y=0; y<height; ++y) {
+            for (int x=0; x<width; ++x, ++idx) {
+                if ((newDepth[idx] == Double.POSITIVE_INFINITY) || ((idx % refreshPeriod) == phase)) {
+                    view.pixelRay(x, y, facing);
+                    newColors[idx] = (beams != null)
+                            ? (int)tree.castRay(viewPoint, facing, beams.start(x, y))
+                            : (int)tree.castRay(viewPoint, facing, false);
+                    double distance = tree.hitDistance;
+                    if (distance == Double.POSITIVE_INFINITY) {
+                        newHitX[idx] = Double.NaN;
+                    } else {
+                        newHitX[idx] = viewPoint.x + distance * facing.x;
+                        newHitY[idx] = viewPoint.y + distance * facing.y;
+                        newHitZ[idx] = viewPoint.z + distance * facing.z;
+                    }
+                    ++traced;
+                }
+                pixels[idx] = newColors[idx];
+            }
+        }
+
+        swap();
+        this.view = null;
+        valid = true;
+        phase = (phase + 1) % refreshPeriod;
+    }
+
+    /**
+     * Where toPoint, from the viewpoint, lands on the image plane (in pixels, into
+     * projectedX and projectedY); false if it is not in front of the viewpoint
+     */
+    private boolean project() {
+        double facingPlane = toPoint.dot(normal);
+        if (facingPlane <= 0.0) {
+            return false;
+        }
+        double scale = plane / facingPlane;
+        Point3d viewPoint = view.viewPoint;
+        Point3d topLeft = view.topLeft;
+        Vector3d ltVec = view.ltVec;
+        Vector3d upVec = view.upVec;
+        double relX = viewPoint.x + scale * toPoint.x - topLeft.x;
+        double relY = viewPoint.y + scale * toPoint.y - topLeft.y;
+        double relZ = viewPoint.z + scale * toPoint.z - topLeft.z;
+        projectedX = -(relX * ltVec.x + relY * ltVec.y + relZ * ltVec.z) * ltScale;
+        projectedY = -(relX * upVec.x + relY * upVec.y + relZ * upVec.z) * upScale;
+        return true;
+    }
+
+    /**
+     * Mark every pixel the edited cube could cover for tracing; all of them if it
+     * reaches behind the viewpoint
+     */
+    private void invalidate(int[] edit) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        Point3d viewPoint = view.viewPoint;
+        for (int corner=0; corner<8; ++corner) {
+            toPoint.set(
+                    edit[0] + (((corner & 4) != 0) ? edit[3] : 0) - viewPoint.x,
+                    edit[1] + (((corner & 2) != 0) ? edit[3] : 0) - viewPoint.y,
+                    edit[2] + (((corner & 1) != 0) ? edit[3] : 0) - viewPoint.z);
+            if (!project()) {
+                Arrays.fill(newDepth, Double.POSITIVE_INFINITY);
+                return;
+            }
+            minX = Math.min(minX, projectedX);
+            minY = Math.min(minY, projectedY);
+            maxX = Math.max(maxX, projectedX);
+            maxY = Math.max(maxY, projectedY);
+        }
+
+        int x0 = Math.max(0, (int)Math.floor(minX));
+        int y0 = Math.max(0, (int)Math.floor(minY));
+        int x1 = Math.min(width - 1, (int)Math.ceil(maxX));
+        int y1 = Math.min(height - 1, (int)Math.ceil(maxY));
+        for (int y=y0; y<=y1; ++y) {
+            for (int x=x0; x<=x1; ++x) {
+                newDepth[y * width + x] = Double.POSITIVE_INFINITY;
+            }
+        }
+    }
+
+    private void swap() {
+        int[] swapColors = colors;
+        colors = newColors;
+        newColors = swapColors;
+
+        double[] swapHits = hitX;
+        hitX = newHitX;
+        newHitX = swapHits;
+        swapHits = hitY;
+        hitY = newHitY;
+        newHitY = swapHits;
+        swapHits = hitZ;
+        hitZ = newHitZ;
+        newHitZ = swapHits;
+    }
+}
@@ -0,0 +1,103 @@
+package com.simreal.VoxEngine;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+/**
+ * Shadows from the tree's light, as a pass over a traced frame.  Each pixel's hit
+ * point is added as it is traced; apply() then casts one batch of occluded() rays
+ * from them all toward the light, and darkens the pixels whose point cannot see it.
+ * Pixels that saw sky are left alone.
+ *
+ * A face turned away from the light sees it through its own cell, so it comes out
+ * shadowed too.
+ *
+ * With an aperture set, each point instead traces a cone of that radius per unit
+ * distance toward the light, and is darkened by how much of the cone is blocked:
+ * soft shadows, widening with distance from what casts them.
+ */
+public class ShadowPass {
+    // What a shadowed pixel keeps: roughly the ambient share of the lighting
+    public static final double SHADOW = 0.6;
+
+    // Hit points are pulled back this far toward the eye, off the face they lie on
+    private static final double LIFT = 0.01;
+
+    // Shadow rays cast by the last apply()
+    public int cast;
+
+    // Cone radius per unit distance for soft shadows, or 0.0 for hard ones
+    public double aperture;
+
+    private final int[] pixelIndices;
+    private final double[] points;
+    private final boolean[] shadowed;
+    private int count;
+
+    private final Vector3d toLight = new Vector3d();
+    private final Point3d point = new Point3d();
+
+    public ShadowPass(int pixels) {
+        pixelIndices = new int[pixels];
+        points = new double[3 * pixels];
+        shadowed = new boolean[pixels];
+        count = 0;
+    }
+
+    /**
+     * Start a new frame
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * The ray for a pixel went opaque hitDistance along the unit facing from
+     * viewPoint (POSITIVE_INFINITY if it reached the sky)
+     */
+    public void add(int pixel, Point3d viewPoint, Vector3d facing, double hitDistance) {
+        if (hitDistance == Double.POSITIVE_INFINITY) {
+            return;
+        }
+        double distance = Math.max(0.0, hitDistance - LIFT);
+        pixelIndices[count] = pixel;
+        points[3*count] = viewPoint.x + distance * facing.x;
+        points[3*count + 1] = viewPoint.y + distance * facing.y;
+        points[3*count + 2] = viewPoint.z + distance * facing.z;
+        ++count;
+    }
+
+    /**
+     * Cast the frame's shadow rays and darken what they find in shadow
+     */
+    public void apply(VoxTree tree, int[] pixels) {
+        tree.lightDirection(toLight);
+        if (aperture > 0.0) {
+            applySoft(tree, pixels);
+            return;
+        }
+        tree.occluded(points, count, toLight, Double.POSITIVE_INFINITY, shadowed);
+        for (int idx=0; idx<count; ++idx) {
+            if (shadowed[idx]) {
+                int pixel = pixelIndices[idx];
+                pixels[pixel] = (int)Color.illuminate(pixels[pixel], SHADOW);
+            }
+        }
+        cast = count;
+        count = 0;
+    }
+
+    private void applySoft(VoxTree tree, int[] pixels) {
+        for (int idx=0; idx<count; ++idx) {
+            point.set(points[3*idx], points[3*idx + 1], points[3*idx + 2]);
+            long blocked = tree.coneTrace(point, toLight, aperture, Double.POSITIVE_INFINITY);
+            if (blocked != 0L) {
+                int pixel = pixelIndices[idx];
+                double light = 1.0 - (1.0 - SHADOW) * (Color.alpha(blocked) / 255.0);
+                pixels[pixel] = (int)Color.illuminate(pixels[pixel], light);
+            }
+        }
+        cast = count;
+        count = 0;
+    }
+}
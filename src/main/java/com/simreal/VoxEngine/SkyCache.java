@@ -0,0 +1,143 @@
+package com.simreal.VoxEngine;
+
+import javax.vecmath.Vector3d;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The sky behind the world, precomputed.
+ *
+ * The sky's noise is a function of the ray direction's x and y (and a slow time
+ * term), so a SIZE x SIZE table over x and y in [-1, 1] holds it for every
+ * direction, each entry already blended with its red grain to an opaque color.
+ * A miss blends the four entries around its direction.
+ *
+ * A daemon thread redraws the table every REFRESH_MILLIS into a new array and swaps
+ * it in, so the sky keeps drifting.  A table is never drawn into again once it has
+ * been swapped in, so a reader still holding the old one is never torn.  At ~310 ns
+ * a sample a redraw takes about 5 ms.  The thread is started by the first read, and
+ * stops again after IDLE_REFRESHES refreshes with no reads; the next read starts it
+ * back up.
+ */
+class SkyCache {
+    static final int SIZE = 128;
+
+    private static final long REFRESH_MILLIS = 1000L;
+    private static final int IDLE_REFRESHES = 5;
+
+    private final Texture texture;
+    private final Random rand;
+
+    private volatile int[] table;
+
+    // Read since the last refresh
+    private volatile boolean used;
+    private boolean running;
+
+    SkyCache(Texture texture) {
+        this.texture = texture;
+        rand = new Random();
+    }
+
+    /**
+     * The (opaque) sky color looking along ray, of unit length
+     */
+    long sample(Vector3d ray) {
+        if (!used) {
+            wake();
+        }
+        return lookup(table, position(ray.x), position(ray.y)) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Where coordinate, in [-1, 1], falls across the table, clamped to [0, SIZE-1]
+     */
+    static double position(double coordinate) {
+        double position = (coordinate + 1.0) * 0.5 * (SIZE - 1);
+        return Math.max(0.0, Math.min(SIZE - 1, position));
+    }
+
+    /**
+     * The sky between table entries, each channel blended bilinearly from the four
+     * entries around (x, y)
+     */
+    static int lookup(int[] sky, double x, double y) {
+        int xIdx = Math.min((int)x, SIZE - 2);
+        int yIdx = Math.min((int)y, SIZE - 2);
+        double xFrac = x - xIdx;
+        double yFrac = y - yIdx;
+
+        int base = yIdx * SIZE + xIdx;
+        int topLeft = sky[base];
+        int topRight = sky[base + 1];
+        int botLeft = sky[base + SIZE];
+        int botRight = sky[base + SIZE + 1];
+
+        int color = 0;
+        for (int shift=0; shift<32; shift+=8) {
+            double top = lerp((topLeft >>> shift) & 0xFF, (topRight >>> shift) & 0xFF, xFrac);
+            double bot = lerp((botLeft >>> shift) & 0xFF, (botRight >>> shift) & 0xFF, xFrac);
+            color |= ((int)(lerp(top, bot, yFrac) + 0.5)) << shift;
+        }
+        return color;
+    }
+
+    private static double lerp(double from, double to, double frac) {
+        return from + (to - from) * frac;
+    }
+
+    private synchronized void wake() {
+        used = true;
+        if (running) {
+            return;
+        }
+        if (table == null) {
+            table = draw(new int[SIZE * SIZE]);
+        }
+        running = true;
+
+        Thread refresh = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int idle = 0;
+                while (true) {
+                    LockSupport.parkNanos(REFRESH_MILLIS * 1000000L);
+                    refresh();
+                    if (used) {
+                        used = false;
+                        idle = 0;
+                    } else if (++idle >= IDLE_REFRESHES) {
+                        synchronized (SkyCache.this) {
+                            if (!used) {
+                                running = false;
+                                return;
+                            }
+                        }
+                    }
+                }
+            }
+        }, "VoxEngine sky");
+        refresh.setDaemon(true);
+        refresh.start();
+    }
+
+    private void refresh() {
+        table = draw(new int[SIZE * SIZE]);
+    }
+
+    /**
+     * The sky at the current time, as castRay() used to work it out per pixel
+     */
+    int[] draw(int[] sky) {
+        double time = ((double)System.currentTimeMillis() / 20000.0) % 512.0;
+        for (int yIdx=0; yIdx<SIZE; ++yIdx) {
+            double y = (2.0 * yIdx / (SIZE - 1)) - 1.0;
+            for (int xIdx=0; xIdx<SIZE; ++xIdx) {
+                double x = (2.0 * xIdx / (SIZE - 1)) - 1.0;
+                long color = Color.blend(0L, Color.setColor(0, 0, 0, texture.density(x, y, time)));
+                sky[yIdx * SIZE + xIdx] = (int)Color.blend(color, Color.setColor(rand.nextInt(256), 0, 0, 255));
+            }
+        }
+        return sky;
+    }
+}
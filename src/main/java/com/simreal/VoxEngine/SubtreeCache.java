@@ -0,0 +1,250 @@
+package com.simreal.VoxEngine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * On-demand materialization of a generated world, with CLOCK eviction.
+ *
+ * The tree holds stub leaves (see Node.isStub) in place of subtrees that have not
+ * been generated.  When a ray or path lookup reaches a stub, a few levels below it
+ * are generated straight into the tree's pool; deeper detail is left as further
+ * stubs.  Every materialized subtree root joins the CLOCK ring.
+ *
+ * Traversal marks each child tile it descends into.  Once the tree holds more than
+ * nodeBudget generated nodes, the clock hand sweeps the ring: a root whose child
+ * tile was marked since the last pass gets a second chance, anything else is freed
+ * and collapsed back to a stub holding its averaged color.  Eviction only runs
+ * between rays, never while a traversal holds node indices on its stack.
+ *
+ * Subtrees along an edited path are pinned (dropped from the ring), so edits are
+ * never thrown away.
+ */
+class SubtreeCache {
+    // --------------------------------------
+    // Cache control parameters (defaulted)
+    // --------------------------------------
+    public int levels = 4;          // levels generated per materialization
+    public int nodeBudget;          // generated nodes kept before eviction starts
+
+    private TerrainGenerator generator;
+    private NodePool pool;
+    private int depth;
+    private int stride;
+
+    private int residentNodes;
+
+    // CLOCK ring of materialized subtree roots, and where each root sits in it
+    private int[] roots;
+    private int count;
+    private int hand;
+    private Map<Integer, Integer> slots;
+
+    // Reference marks, one per child tile
+    private byte[] tileRef;
+
+    SubtreeCache(TerrainGenerator generator, VoxTree tree, int nodeBudget) {
+        this.generator = generator;
+        this.pool = tree.nodePool;
+        this.depth = tree.depth;
+        this.stride = tree.stride();
+        this.nodeBudget = nodeBudget;
+
+        roots = new int[64];
+        count = 0;
+        hand = 0;
+        slots = new HashMap<Integer, Integer>();
+        tileRef = new byte[(pool.size() >>> 3) + 1];
+        residentNodes = 0;
+    }
+
+    int residentNodes() {
+        return residentNodes;
+    }
+
+    /**
+     * Replace the stub at nodeIndex (reached by path) with freshly generated nodes.
+     * Returns the new node.
+     */
+    long materialize(int nodeIndex, WidePath path) {
+        int level = path.depth();
+        int x = 0;
+        int y = 0;
+        int z = 0;
+        for (int cnt=0; cnt<level; ++cnt) {
+            int child = path.child(cnt);
+            x = (x << 1) | (((child & Path.X_AXIS) != 0) ? 1 : 0);
+            y = (y << 1) | (((child & Path.Y_AXIS) != 0) ? 1 : 0);
+            z = (z << 1) | (((child & Path.Z_AXIS) != 0) ? 1 : 0);
+        }
+
+        TerrainGenerator.Builder builder = generator.new Builder(pool, depth, stride, level + levels);
+        long node = builder.build(level, x, y, z);
+        pool.set(nodeIndex, node);
+
+        residentNodes += builder.tiles * 8;
+        if (tileRef.length <= (pool.size() >>> 3)) {
+            tileRef = Arrays.copyOf(tileRef, (pool.size() >>> 3) + 1);
+        }
+
+        if (!Node.isLeaf(node)) {
+            add(nodeIndex);
+            tileRef[Node.child(node) >>> 3] = 1;
+        }
+        return node;
+    }
+
+    /**
+     * Mark a child tile as used by the current traversal
+     */
+    void touch(int tile) {
+        int slot = tile >>> 3;
+        if (slot < tileRef.length) {
+            tileRef[slot] = 1;
+        }
+    }
+
+    /**
+     * Pin every materialized root along the path, so the subtree holding an edit
+     * stays resident.
+     */
+    void pin(WidePath path) {
+        int level = path.depth();
+        int nodeIndex = 0;
+        for (int cnt=0; cnt<=level; ++cnt) {
+            remove(nodeIndex);
+            long node = pool.node(nodeIndex);
+            if (Node.isLeaf(node) || (cnt == level)) {
+                break;
+            }
+            nodeIndex = Node.child(node) + path.child(cnt);
+        }
+    }
+
+    /**
+     * A tile was allocated by someone else (a split)
+     */
+    void allocated(int tile) {
+        residentNodes += 8;
+    }
+
+    /**
+     * A tile is about to be freed by someone else (a merge); forget any roots in it
+     */
+    void forget(int tile) {
+        for (int idx=0; idx<8; ++idx) {
+            remove(tile + idx);
+        }
+        residentNodes -= 8;
+    }
+
+    /**
+     * Sweep the clock until the tree is back under budget.  Only call between rays.
+     * Returns whether anything was freed.
+     */
+    boolean evict() {
+        if (residentNodes <= nodeBudget) {
+            return false;
+        }
+        boolean freed = false;
+        int lowWater = nodeBudget - (nodeBudget >> 3);
+        int sweep = count * 2;
+        while ((residentNodes > lowWater) && (count > 0) && (sweep-- > 0)) {
+            if (hand >= count) {
+                hand = 0;
+            }
+            int nodeIndex = roots[hand];
+            long node = pool.node(nodeIndex);
+            if (Node.isLeaf(node)) {
+                // Merged away since it was materialized; its tile is already free
+                remove(nodeIndex);
+                continue;
+            }
+            int slot = Node.child(node) >>> 3;
+            if (tileRef[slot] != 0) {
+                // Second chance
+                tileRef[slot] = 0;
+                ++hand;
+                continue;
+            }
+
+            remove(nodeIndex);
+            residentNodes -= release(node);
+            pool.set(nodeIndex, Node.setStub(Node.setLeaf(Node.setChild(node, 0), true), true));
+            freed = true;
+        }
+        return freed;
+    }
+
+    /**
+     * Free everything below a node, dropping any nested roots.  Returns the node count freed.
+     */
+    private int release(long node) {
+        int tile = Node.child(node);
+        int freed = 8;
+        for (int idx=0; idx<8; ++idx) {
+            long child = pool.node(tile + idx);
+            if (!Node.isLeaf(child)) {
+                remove(tile + idx);
+                freed += release(child);
+            }
+        }
+        pool.putFreeTile(tile);
+        return freed;
+    }
+
+    /**
+     * The pool was re-laid out; follow the roots to their new homes.  Every root
+     * gets a fresh second chance.
+     */
+    void remap(int[] map) {
+        slots.clear();
+        for (int slot=0; slot<count; ++slot) {
+            roots[slot] = map[roots[slot]];
+            slots.put(roots[slot], slot);
+        }
+        tileRef = new byte[(pool.size() >>> 3) + 1];
+        Arrays.fill(tileRef, (byte)1);
+    }
+
+    /**
+     * A whole tile was moved elsewhere in the pool; carry its roots and mark along
+     */
+    void moved(int from, int to) {
+        for (int idx=0; idx<8; ++idx) {
+            Integer slot = slots.remove(from + idx);
+            if (slot != null) {
+                roots[slot] = to + idx;
+                slots.put(to + idx, slot);
+            }
+        }
+        touch(to);
+    }
+
+    private void add(int nodeIndex) {
+        if (slots.containsKey(nodeIndex)) {
+            return;
+        }
+        if (count == roots.length) {
+            roots = Arrays.copyOf(roots, count * 2);
+        }
+        slots.put(nodeIndex, count);
+        roots[count++] = nodeIndex;
+    }
+
+    /**
+     * Drop a root from the ring, if it is in it
+     */
+    void remove(int nodeIndex) {
+        Integer slot = slots.remove(nodeIndex);
+        if (slot == null) {
+            return;
+        }
+        int last = roots[--count];
+        if (slot < count) {
+            roots[slot] = last;
+            slots.put(last, slot);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.simreal.VoxEngine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Procedural world generation from a Texture density field.
+ *
+ * The world cube is cut into independent octants at a shallow split level, and each
+ * octant is generated into a private NodePool on its own worker thread.  Octants are
+ * built bottom-up, so uniform children are coalesced before they are ever written and
+ * every subtree arrives already merged.  The levels above the split are assembled
+ * (and merged) on the calling thread, then grafted into the VoxTree in one piece.
+ *
+ * Density is sampled at voxel centers in world coordinates, with the world Y (up) axis
+ * handed to the Texture as its clamping axis.  A density of 0 is empty space; anything
+ * else is solid, shaded from the base color by density.
+ *
+ * Whole octants are settled without descending into them when:
+ *  - the Texture clamps their entire height range (YCLAMP), or
+ *  - they are small against the noise frequency and nine coarse samples (center
+ *    and corners) agree.
+ */
+public class TerrainGenerator {
+    // --------------------------------------
+    // Generator control parameters (defaulted)
+    // --------------------------------------
+    public int threads = Runtime.getRuntime().availableProcessors();
+    public long color = Color.setColor(96, 128, 64, 255);  // base color, shaded by density
+    public double coarseSpan = 0.5;     // largest octant edge (in noise units) trusted to coarse sampling
+
+    private static final int TASKS_PER_THREAD = 4;
+    private static final int LOCAL_POOL_SIZE = 4096;
+
+    private Texture texture;
+    private long[] palette;
+
+    public TerrainGenerator(Texture texture) {
+        this.texture = texture;
+    }
+
+    /**
+     * Replace the contents of the tree with the density field
+     */
+    public void generate(VoxTree tree) {
+        int depth = tree.depth;
+        int stride = tree.stride();
+
+        preparePalette();
+
+        // Enough octants to keep every thread busy
+        int splitLevel = 0;
+        while ((splitLevel < depth) && ((1 << (3*splitLevel)) < (threads * TASKS_PER_THREAD))) {
+            ++splitLevel;
+        }
+        int cells = 1 << splitLevel;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Octant>> futures = new ArrayList<Future<Octant>>();
+            for (int x=0; x<cells; ++x) {
+                for (int y=0; y<cells; ++y) {
+                    for (int z=0; z<cells; ++z) {
+                        futures.add(executor.submit(new Octant(depth, stride, splitLevel, x, y, z)));
+                    }
+                }
+            }
+
+            Octant[] octants = new Octant[futures.size()];
+            for (int idx=0; idx<octants.length; ++idx) {
+                octants[idx] = futures.get(idx).get();
+            }
+
+            NodePool top = localPool(LOCAL_POOL_SIZE);
+            long root = assemble(top, octants, splitLevel, 0, 0, 0, 0);
+            tree.setSubtree(new WidePath(), top, root);
+        } catch (Exception e) {
+            throw new RuntimeException("Terrain generation failed", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Leave the world unmaterialized: the root becomes a stub that the tree fills
+     * from this generator, a few levels at a time, as rays and queries reach it.
+     * Subtrees nobody has looked at lately are evicted back to stubs once the
+     * tree holds more than nodeBudget generated nodes.
+     */
+    public void generateLazily(VoxTree tree, int nodeBudget) {
+        preparePalette();
+        tree.setSubtreeCache(new SubtreeCache(this, tree, nodeBudget));
+    }
+
+    /**
+     * A pool to build a subtree in before it is copied into the tree.  Node 0 is
+     * taken, as a tree's root takes it, so tiles land on 1 + 8k, the only tiles a far
+     * child can point to once the pool grows past Node.NEAR_CHILD_LIMIT.
+     */
+    static NodePool localPool(int size) {
+        NodePool pool = new NodePool(size);
+        pool.getFree();
+        return pool;
+    }
+
+    private void preparePalette() {
+        palette = new long[256];
+        for (int density=1; density<256; ++density) {
+            palette[density] = Color.illuminate(color, (double)density / 255.0);
+        }
+    }
+
+    long colorFor(int density) {
+        return palette[density];
+    }
+
+    /**
+     * Build the levels above the split from the finished octants
+     */
+    private long assemble(NodePool pool, Octant[] octants, int splitLevel, int level, int x, int y, int z) {
+        if (level == splitLevel) {
+            int cells = 1 << splitLevel;
+            Octant octant = octants[(x*cells + y)*cells + z];
+            return pool.copySubtree(octant.pool, octant.root);
+        }
+
+        long[] children = new long[8];
+        for (int child=0; child<8; ++child) {
+            children[child] = assemble(pool, octants, splitLevel, level+1,
+                    (x << 1) | (((child & Path.X_AXIS) != 0) ? 1 : 0),
+                    (y << 1) | (((child & Path.Y_AXIS) != 0) ? 1 : 0),
+                    (z << 1) | (((child & Path.Z_AXIS) != 0) ? 1 : 0));
+        }
+        return combine(pool, level, children);
+    }
+
+    /**
+     * Coalesce eight children into a leaf if they are uniform, otherwise write them out
+     * as a tile under an interior node holding their average color.
+     */
+    private static long combine(NodePool pool, int level, long[] children) {
+        long first = children[0];
+        boolean merge = Node.isLeaf(first);
+        for (int idx=1; merge && (idx<8); ++idx) {
+            merge = Node.isLeaf(children[idx]) && (Node.color(children[idx]) == Node.color(first));
+        }
+        if (merge) {
+            return Node.setDepth(first, (byte)level);
+        }
+
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        long alpha = 0;
+        int tile = pool.getFreeTile();
+        for (int idx=0; idx<8; ++idx) {
+            long node = children[idx];
+            pool.set(tile+idx, node);
+            red += Node.red(node);
+            green += Node.green(node);
+            blue += Node.blue(node);
+            alpha += Node.alpha(node);
+        }
+        long node = Node.setColor(0L, (int) (red >>> 3), (int) (green >>> 3), (int) (blue >>> 3), (int) (alpha >>> 3));
+        return Node.setChild(Node.setDepth(Node.setUsed(node, true), (byte)level), tile);
+    }
+
+    private static long leaf(int level, long color) {
+        return Node.setLeaf(Node.setUsed(Node.setDepth(Node.setColor(0L, color), (byte)level), true), true);
+    }
+
+    /**
+     * One independent subtree of the world, generated into its own pool
+     */
+    private class Octant implements Callable<Octant> {
+        final int depth;
+        final int stride;
+        final int level;
+        final int x;
+        final int y;
+        final int z;
+
+        NodePool pool;
+        long root;
+
+        Octant(int depth, int stride, int level, int x, int y, int z) {
+            this.depth = depth;
+            this.stride = stride;
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public Octant call() {
+            pool = localPool(LOCAL_POOL_SIZE);
+            root = new Builder(pool, depth, stride, depth).build(level, x, y, z);
+            return this;
+        }
+    }
+
+    /**
+     * Generates cells bottom-up into a pool.  Cells at the cutoff level that still
+     * need detail are left as stubs, colored by their center sample.
+     */
+    class Builder {
+        final NodePool pool;
+        final int depth;
+        final int stride;
+        final int cutoff;
+
+        int tiles;
+
+        // Per-level child scratch, so the recursion does not allocate
+        private long[][] scratch;
+
+        Builder(NodePool pool, int depth, int stride, int cutoff) {
+            this.pool = pool;
+            this.depth = depth;
+            this.stride = stride;
+            this.cutoff = Math.min(cutoff, depth);
+            this.tiles = 0;
+            scratch = new long[depth+1][8];
+        }
+
+        /**
+         * Generate the cell (x, y, z) at the given level, in cells of that level
+         */
+        long build(int level, int x, int y, int z) {
+            if (level == depth) {
+                return leaf(level, palette[sample(x, y, z)]);
+            }
+
+            int voxels = 1 << (depth - level);
+            int vx = x * voxels;
+            int vy = y * voxels;
+            int vz = z * voxels;
+
+            int clamped = texture.clampedDensity((double)(vy + voxels) * stride);
+            if (clamped >= 0) {
+                return leaf(level, palette[clamped]);
+            }
+
+            if ((voxels * stride * texture.scale) <= coarseSpan) {
+                int density = coarse(vx, vy, vz, voxels);
+                if (density >= 0) {
+                    return leaf(level, palette[density]);
+                }
+            }
+
+            if (level == cutoff) {
+                int half = voxels >> 1;
+                return Node.setStub(leaf(level, palette[sample(vx + half, vy + half, vz + half)]), true);
+            }
+
+            long[] children = scratch[level];
+            for (int child=0; child<8; ++child) {
+                children[child] = build(level+1,
+                        (x << 1) | (((child & Path.X_AXIS) != 0) ? 1 : 0),
+                        (y << 1) | (((child & Path.Y_AXIS) != 0) ? 1 : 0),
+                        (z << 1) | (((child & Path.Z_AXIS) != 0) ? 1 : 0));
+            }
+            long node = combine(pool, level, children);
+            if (!Node.isLeaf(node)) {
+                ++tiles;
+            }
+            return node;
+        }
+
+        /**
+         * Sample the center and eight corner voxels of a cube; the common density
+         * if they all agree, otherwise -1
+         */
+        private int coarse(int vx, int vy, int vz, int voxels) {
+            int half = voxels >> 1;
+            int far = voxels - 1;
+            int density = sample(vx + half, vy + half, vz + half);
+            for (int corner=0; corner<8; ++corner) {
+                int cornerDensity = sample(
+                        vx + (((corner & Path.X_AXIS) != 0) ? far : 0),
+                        vy + (((corner & Path.Y_AXIS) != 0) ? far : 0),
+                        vz + (((corner & Path.Z_AXIS) != 0) ? far : 0));
+                if (cornerDensity != density) {
+                    return -1;
+                }
+            }
+            return density;
+        }
+
+        /**
+         * Density at the center of voxel (vx, vy, vz); height goes to the Texture's clamp axis
+         */
+        private int sample(int vx, int vy, int vz) {
+            double half = stride * 0.5;
+            return texture.density(vx*stride + half, vz*stride + half, vy*stride + half);
+        }
+    }
+}
@@ -93,6 +93,25 @@ public class Texture {
             w = 255.0-w;
         }
 
+        return finish(w);
+    }
+
+    /**
+     * If the transform pins every height below y to a single density, return
+     * that density; otherwise -1.  Lets a generator settle whole regions under the
+     * YCLAMP sea level without sampling them.
+     *
+     * @param y
+     * @return Clamped density [0..255], or -1 if the region is not clamped
+     */
+    public int clampedDensity(double y) {
+        if (((transform & YCLAMP) == 0) || (y > seaLevel)) {
+            return -1;
+        }
+        return finish(((transform & INVERT) != 0) ? 255.0 : 0.0);
+    }
+
+    private int finish(double w) {
         // --------------------------------------
         // Clamp... should not be needed?
         // --------------------------------------
@@ -0,0 +1,95 @@
+package com.simreal.VoxEngine;
+
+import java.io.PrintStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Level-gated diagnostic tracing for the edit path.
+ *
+ * Run with -Dvoxengine.trace=info for one line per voxel set, or =debug to add every
+ * split and merge.  LEVEL is a constant, so with tracing off each call below folds
+ * away to nothing; with it on, a call copies its primitive arguments into a ring
+ * buffer and returns.  A daemon thread drains the ring to the sink (stdout unless
+ * changed), doing all the string formatting there.
+ */
+public class Trace {
+    public static final int OFF = 0;
+    public static final int INFO = 1;
+    public static final int DEBUG = 2;
+
+    public static final int LEVEL = parseLevel(System.getProperty("voxengine.trace"));
+
+    private static final int RING_SIZE = 1 << 14;
+    private static final long IDLE_NANOS = 1000000L;
+
+    private static final TraceBuffer buffer = (LEVEL > OFF) ? new TraceBuffer(RING_SIZE) : null;
+    private static volatile PrintStream sink = System.out;
+
+    static {
+        if (LEVEL > OFF) {
+            Thread drain = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        if (buffer.drain(sink) == 0) {
+                            LockSupport.parkNanos(IDLE_NANOS);
+                        }
+                    }
+                }
+            }, "VoxEngine trace");
+            drain.setDaemon(true);
+            drain.start();
+        }
+    }
+
+    public static boolean enabled(int level) {
+        return LEVEL >= level;
+    }
+
+    /**
+     * Send trace output somewhere other than stdout
+     */
+    public static void setSink(PrintStream out) {
+        sink = out;
+    }
+
+    /**
+     * Wait (briefly) for the drain thread to catch up
+     */
+    public static void flush() {
+        for (int wait=0; (buffer != null) && !buffer.empty() && (wait < 1000); ++wait) {
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    static void set(WidePath path, int nodeIndex, long color) {
+        if (LEVEL >= INFO) {
+            buffer.record(TraceBuffer.SET, path.head, path.tail, ((long)nodeIndex << 32) | (color & 0xFFFFFFFFL));
+        }
+    }
+
+    static void split(int nodeIndex) {
+        if (LEVEL >= DEBUG) {
+            buffer.record(TraceBuffer.SPLIT, nodeIndex, 0L, 0L);
+        }
+    }
+
+    static void merge(int nodeIndex) {
+        if (LEVEL >= DEBUG) {
+            buffer.record(TraceBuffer.MERGE, nodeIndex, 0L, 0L);
+        }
+    }
+
+    static int parseLevel(String level) {
+        if (level == null) {
+            return OFF;
+        }
+        if (level.equalsIgnoreCase("debug")) {
+            return DEBUG;
+        }
+        if (level.equalsIgnoreCase("info")) {
+            return INFO;
+        }
+        return OFF;
+    }
+}
@@ -0,0 +1,118 @@
+package com.simreal.VoxEngine;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring of trace records, written by any thread and drained by one.
+ *
+ * A record is a kind and three longs, copied into parallel arrays, so recording
+ * never allocates.  Writers claim a sequence number with a CAS and publish the slot
+ * once it is filled in; if the drain has fallen a whole ring behind, the record is
+ * dropped and counted instead of waiting.  Formatting happens in drain(), off the
+ * recording thread.
+ */
+class TraceBuffer {
+    static final int SET = 1;       // path head, path tail, node index and color
+    static final int SPLIT = 2;     // node index
+    static final int MERGE = 3;     // node index
+
+    private final int capacity;
+    private final int mask;
+
+    private final int[] kinds;
+    private final long[] first;
+    private final long[] second;
+    private final long[] third;
+    private final AtomicLongArray published;
+
+    private final AtomicLong head;
+    private volatile long tail;
+    private final AtomicLong dropped;
+
+    /**
+     * Capacity is rounded up to a power of two
+     */
+    TraceBuffer(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.mask = this.capacity - 1;
+
+        kinds = new int[this.capacity];
+        first = new long[this.capacity];
+        second = new long[this.capacity];
+        third = new long[this.capacity];
+        published = new AtomicLongArray(this.capacity);
+
+        head = new AtomicLong(0L);
+        tail = 0L;
+        dropped = new AtomicLong(0L);
+    }
+
+    void record(int kind, long a, long b, long c) {
+        long seq;
+        do {
+            seq = head.get();
+            if ((seq - tail) >= capacity) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+
+        int slot = (int)(seq & mask);
+        kinds[slot] = kind;
+        first[slot] = a;
+        second[slot] = b;
+        third[slot] = c;
+        published.lazySet(slot, seq + 1);
+    }
+
+    /**
+     * Format and print everything published so far, stopping at the first record
+     * still being written.  Only one thread may drain.  Returns the record count.
+     */
+    int drain(PrintStream out) {
+        int count = 0;
+        long seq = tail;
+        while (published.get((int)(seq & mask)) == (seq + 1)) {
+            int slot = (int)(seq & mask);
+            out.println(format(kinds[slot], first[slot], second[slot], third[slot]));
+            ++seq;
+            ++count;
+            tail = seq;
+        }
+
+        long lost = dropped.getAndSet(0L);
+        if (lost > 0) {
+            out.println("Trace: " + lost + " records dropped");
+        }
+        if ((count > 0) || (lost > 0)) {
+            out.flush();
+        }
+        return count;
+    }
+
+    /**
+     * Whether everything recorded so far has been drained
+     */
+    boolean empty() {
+        return tail == head.get();
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+
+    static String format(int kind, long a, long b, long c) {
+        switch (kind) {
+            case SET:
+                return "Set " + WidePath.toString(a, b) + " (" + (c >>> 32) + ") to " + Color.toString(c & 0xFFFFFFFFL);
+            case SPLIT:
+                return "Split: populating " + a;
+            case MERGE:
+                return "Refine: trimming " + a;
+            default:
+                return "Trace: unknown record " + kind;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.simreal.VoxEngine;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+/**
+ * A camera's view as a frame of pixels: the viewpoint, and the image plane it looks
+ * through.  ltVec and upVec step one pixel left and up across the plane, and topLeft
+ * is its top left corner, so the pixel at (x, y) looks through
+ * topLeft - x*ltVec - y*upVec.
+ */
+public class ViewFrame {
+    public final int width;
+    public final int height;
+
+    public final Point3d viewPoint = new Point3d();
+    public final Point3d topLeft = new Point3d();
+    public final Vector3d ltVec = new Vector3d();
+    public final Vector3d upVec = new Vector3d();
+
+    private final Vector3d fwVec = new Vector3d();
+
+    public ViewFrame(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public ViewFrame set(Point3d viewPoint, Point3d topLeft, Vector3d ltVec, Vector3d upVec) {
+        this.viewPoint.set(viewPoint);
+        this.topLeft.set(topLeft);
+        this.ltVec.set(ltVec);
+        this.upVec.set(upVec);
+        return this;
+    }
+
+    /**
+     * Look from viewPoint along forward, kept level, with the image plane focal
+     * pixels out in front
+     */
+    public ViewFrame look(Point3d viewPoint, Vector3d forward, double focal) {
+        this.viewPoint.set(viewPoint);
+        fwVec.normalize(forward);
+        ltVec.cross(fwVec, new Vector3d(0, 1, 0));
+        ltVec.normalize();
+        upVec.cross(ltVec, fwVec);
+
+        topLeft.scaleAdd(focal, fwVec, viewPoint);
+        topLeft.scaleAdd(width >> 1, ltVec, topLeft);
+        topLeft.scaleAdd(height >> 1, upVec, topLeft);
+        return this;
+    }
+
+    /**
+     * The unit ray from the viewpoint through the pixel at (x, y)
+     */
+    public void pixelRay(int x, int y, Vector3d ray) {
+        ray.set(topLeft);
+        ray.scaleAdd(-x, ltVec, ray);
+        ray.scaleAdd(-y, upVec, ray);
+        ray.sub(viewPoint);
+        ray.normalize();
+    }
+}
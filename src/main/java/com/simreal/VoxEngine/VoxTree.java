@@ -3,13 +3,17 @@ package com.simreal.VoxEngine;
 import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.simreal.VoxEngine.events.EditEvent;
+import com.simreal.VoxEngine.events.SaveEvent;
+import jdk.jfr.EventType;
 
 import javax.vecmath.Point3d;
 import javax.vecmath.Point3i;
 import javax.vecmath.Vector3d;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.util.Random;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 // QSC powered speakers
 
@@ -18,7 +22,7 @@ public class VoxTree {
         public Point3d t0;
         public Point3d t1;
         public Point3d tM;
-        public long nodePath;
+        public WidePath nodePath;
         public int nodeIndex;
         public int octant;
 
@@ -26,7 +30,7 @@ public class VoxTree {
             t0 = new Point3d();
             t1 = new Point3d();
             tM = new Point3d();
-            nodePath = 0L;
+            nodePath = new WidePath();
             nodeIndex = 0;
             octant = 0;
         }
@@ -44,7 +48,7 @@ public class VoxTree {
             this.t0.set(state.t0);
             this.t1.set(state.t1);
             this.tM.set(state.tM);
-            this.nodePath = state.nodePath;
+            this.nodePath.set(state.nodePath);
             this.nodeIndex = state.nodeIndex;
             this.octant = state.octant;
         }
@@ -52,6 +56,34 @@ public class VoxTree {
 
     private static final int PICK_DEPTH = 256;
 
+    // Edit events are only built while a recording wants them
+    private static final EventType EDIT_EVENTS = EventType.getEventType(EditEvent.class);
+
+    // castRay() with nothing known about where the ray can first hit
+    private static final double NO_START = Double.NEGATIVE_INFINITY;
+
+    // coneTrace() steps this fraction of the cone's width at each sample
+    private static final double CONE_STEP = 0.5;
+
+    // Lighting model!
+    // Fake it for now: one directional light, shadowed only by ShadowPass (see occluded())
+    private static final double DIFFUSE_COEFFICIENT = 0.4;
+    private static final double AMBIENT_COEFFICIENT = 0.5;
+    private static final double LIGHT_ELEVATION = Math.toRadians(-10);
+    private static final double LIGHT_HEADING = Math.toRadians(45);
+    private static final double LIGHT_X = Math.cos(LIGHT_HEADING)*Math.cos(LIGHT_ELEVATION);
+    private static final double LIGHT_Y = Math.sin(LIGHT_ELEVATION);
+    private static final double LIGHT_Z = Math.sin(LIGHT_HEADING)*Math.cos(LIGHT_ELEVATION);
+
+    // Deepest tree whose edge length (at BRICK_EDGE per leaf) still fits an int
+    public static final int MAX_DEPTH = 26;
+
+    // Tree levels packed breadth-first at the front of the pool by relayout()
+    static final int HOT_LEVELS = 4;
+
+    // Paths remembered by getIndexForPath()
+    static final int PATH_CACHE_SIZE = 4096;
+
     int depth;
     int edgeLength;
     int nodePoolSize;
@@ -59,6 +91,58 @@ public class VoxTree {
     // TODO: Encapsulate node pool to help enforce memory management
     NodePool nodePool;
 
+    // On-demand generation of stubbed subtrees, if the world is lazy
+    SubtreeCache subtrees;
+
+    // Per-leaf normals and occlusion, once computeShading() has been called
+    NodeShading shading;
+
+    // Incremental pool compaction, created on first use
+    private Defragmenter defragmenter;
+
+    // Where recently looked-up paths lead, so lookups can skip the walk from the root
+    private PathCache paths;
+
+    // Node colors are stored premultiplied by their alpha (see Color.premultiply()).
+    // Parents then average their children correctly even where some are see-through,
+    // and compositing along a ray needs no division.  Fixed for the life of the tree,
+    // as it has to match what is in the pool; NodePool.premultiply() converts a pool
+    // saved without it.  Colors are still passed in and out straight.
+    public final boolean premultiplied;
+
+    // Cast (non-pick) rays with castSubtreeGrid() rather than castSubtree()
+    public boolean gridTraversal = Boolean.getBoolean("voxengine.grid");
+
+    // castSubtreeGrid() parent stack, by level
+    private int[] gridParents;
+
+    // 1 / the (mirrored) direction of the occluded() rays being cast
+    private double shadowCoefX;
+    private double shadowCoefY;
+    private double shadowCoefZ;
+
+    // Start castSubtreeGrid() rays from inside the world at the camera's own cell
+    boolean viewStart = true;
+
+    // The nodes holding the camera, root first, for the viewpoint they were found for
+    private int[] viewChain;
+    private int viewLevel;
+    private int viewX;
+    private int viewY;
+    private int viewZ;
+    private Point3d viewPoint;
+    private boolean viewValid;
+
+    // Node index at each level of the last edit's descent, for refining back up it
+    private int[] ancestors;
+
+    // Running split and merge counts, for edit events
+    private int editSplits;
+    private int editMerges;
+
+    // Told about every setVoxelPath()
+    private final List<EditListener> editListeners = new CopyOnWriteArrayList<EditListener>();
+
     private Point3d nearTopLeft;
     private Point3d farBottomRight;
     private volatile int mirror;
@@ -73,10 +157,13 @@ public class VoxTree {
     private State state;
     private State newState;
 
-    private Random rand;
     private Texture texture;
+    SkyCache sky;
+
+    // How far the last non-pick castRay() went before turning opaque, POSITIVE_INFINITY if it reached the sky
+    public double hitDistance;
 
-    public long pickNodePath;
+    public WidePath pickNodePath;
     public int pickNodeIndex;
     public int pickFacet;
     public Vector3d pickRay;
@@ -85,6 +172,11 @@ public class VoxTree {
     private int facet;
     private Vector3d facing;
 
+    // Per-ray counts, only kept when RayMetrics.ENABLED
+    private RayMetrics.Counters metrics;
+    private int rayNodes;
+    private int rayStackDepth;
+
     public static final int XY_PLANE = 1;
     public static final int XZ_PLANE = 2;
     public static final int YZ_PLANE = 4;
@@ -94,17 +186,45 @@ public class VoxTree {
      *
      */
     public VoxTree(int depth){
+        this(depth, null);
+    }
+
+    /**
+     * Build a tree over a pool, such as a PagedNodePool over a node file.  If the
+     * pool already holds a root at index 0 it is adopted; a fresh pool (or null)
+     * starts an empty world.
+     */
+    public VoxTree(int depth, NodePool pool){
+        this(depth, pool, Boolean.getBoolean("voxengine.premultiplied"));
+    }
+
+    public VoxTree(int depth, NodePool pool, boolean premultiplied){
+        if ((depth < 0) || (depth > MAX_DEPTH)) {
+            throw new RuntimeException("VoxTree depth out of range");
+        }
         this.depth = depth;
         this.edgeLength = (1 << depth) * BRICK_EDGE;
-        this.nodePoolSize = 1024 * 1024;
+        this.premultiplied = premultiplied;
 
         // --------------------------------------
         // Initialize the node pool
         // --------------------------------------
-        nodePool = new NodePool(nodePoolSize);
-
-        int nodeIndex = nodePool.getFree();
-        nodePool.set(nodeIndex, Node.setLeaf(nodePool.node(nodeIndex), true));
+        if (pool == null) {
+            pool = new NodePool(1024 * 1024);
+        }
+        this.nodePoolSize = pool.size();
+        nodePool = pool;
+        paths = new PathCache(PATH_CACHE_SIZE);
+        ancestors = new int[depth+1];
+        gridParents = new int[depth+1];
+        viewChain = new int[depth+1];
+        viewPoint = new Point3d();
+        viewValid = false;
+
+        if (!Node.isUsed(nodePool.node(0))) {
+            int nodeIndex = nodePool.getFree();
+            nodePool.set(nodeIndex, Node.setLeaf(nodePool.node(nodeIndex), true));
+        }
 
         // --------------------------------------
         // Define the world cube
@@ -133,7 +253,7 @@ public class VoxTree {
         // --------------------------------------
         // Picking details
         // --------------------------------------
-        pickNodePath = 0;
+        pickNodePath = new WidePath();
         pickNodeIndex = 0;
         pickFacet = 0;
         pickRay = new Vector3d();
@@ -141,8 +261,6 @@ public class VoxTree {
         // --------------------------------------
         // Misc
         // --------------------------------------
-        rand = new Random();
-
         texture = new Texture();
         texture.scale = 50;
         texture.decay = 0.1;
@@ -150,6 +268,7 @@ public class VoxTree {
         texture.threshold = 64;
         texture.quantLevel = 6;
         texture.transform =  Texture.QUANT;
+        sky = new SkyCache(texture);
     }
 
     public int edgeLength(){
@@ -169,14 +288,18 @@ public class VoxTree {
                 || (voxel.z > farBottomRight.z) ){
             return 0L;
         }
-        long path = Path.fromPosition(voxel, this.edgeLength, depth);
-        return testVoxelPath(path);
+        return testVoxelPath(new WidePath().fromPosition(voxel, this.edgeLength, depth));
     }
 
     public long testVoxelPath(long path) {
+        return testVoxelPath(new WidePath(path));
+    }
+
+    public long testVoxelPath(WidePath path) {
         int nodeIndex = getIndexForPath(path);
         // System.out.println("Set " + Path.toString(path) + " (" + nodeIndex + ") to " + Color.toString(color));
-        return Node.color(nodePool.node(nodeIndex));
+        long color = Node.color(nodePool.node(nodeIndex));
+        return premultiplied ? Color.unpremultiply(color) : color;
     }
 
 
@@ -189,51 +312,154 @@ public class VoxTree {
             || (voxel.z > farBottomRight.z) ){
             return;
         }
-        long path = Path.fromPosition(voxel, this.edgeLength, depth);
-        setVoxelPath(path, color);
+        setVoxelPath(new WidePath().fromPosition(voxel, this.edgeLength, depth), color);
     }
 
 
     public void setVoxelPath(long path, int color) {
-        int nodeIndex = getIndexForPath(path);
-        System.out.println("Set " + Path.toString(path) + " (" + nodeIndex + ") to " + Color.toString(color));
+        setVoxelPath(new WidePath(path), color);
+    }
+
+    public void setVoxelPath(WidePath path, int color) {
+        EditEvent event = editEvent(EditEvent.SET);
+        int splits = editSplits;
+        int merges = editMerges;
+
+        int[] chain = ancestors(path.depth());
+        int nodeIndex = descend(path, chain);
+        if (subtrees != null) {
+            subtrees.pin(path);
+        }
+        if (premultiplied) {
+            color = (int)Color.premultiply(color);
+        }
+        Trace.set(path, nodeIndex, color);
         nodePool.set(nodeIndex, Node.setColor(nodePool.node(nodeIndex), color));
 
-        int depth = Path.depth(path);
-        //path = Path.setDepth(path, depth-1);
-        refineVoxelPath(path);
+        refine(path.depth(), chain);
+        if (shading != null) {
+            int size = edgeLength >> path.depth();
+            Point3i center = path.toPosition(edgeLength);
+            shading.update(center.x - (size >> 1), center.y - (size >> 1), center.z - (size >> 1), size);
+        }
+        commitEdit(event, path, splits, merges);
+
+        if (!editListeners.isEmpty()) {
+            int size = edgeLength >> path.depth();
+            Point3i center = path.toPosition(edgeLength);
+            int half = size >> 1;
+            for (EditListener listener : editListeners) {
+                listener.edited(center.x - half, center.y - half, center.z - half, size);
+            }
+        }
+    }
+
+    /**
+     * Work out a shading normal and ambient occlusion for every leaf (see
+     * NodeShading), which lighting uses from then on in place of the face a ray
+     * entered through.  Edits keep them up to date.  Not for a lazily generated world.
+     */
+    public void computeShading() {
+        if (subtrees != null) {
+            throw new RuntimeException("VoxTree shading needs the whole world resident");
+        }
+        shading = new NodeShading(this);
+        shading.update(0, 0, 0, edgeLength);
+    }
+
+    public void addEditListener(EditListener listener) {
+        editListeners.add(listener);
+    }
+
+    public void removeEditListener(EditListener listener) {
+        editListeners.remove(listener);
     }
 
     private long splitVoxel(int nodeIndex) {
         long node = nodePool.node(nodeIndex);
         long childNode = Node.setDepth(node, (byte)(Node.depth(node)+1));
 
-        System.out.println("Split: populating " + nodeIndex);
+        Trace.split(nodeIndex);
+        ++editSplits;
 
+        int childIndex = nodePool.getFreeTile();
+        if (subtrees != null) {
+            subtrees.allocated(childIndex);
+        }
+        if (shading != null) {
+            shading.split(nodeIndex, childIndex);
+        }
+        node = Node.setChild(Node.setLeaf(node, false), childIndex);
+        nodePool.set(nodeIndex, node);
         for (int idx=0; idx<8; ++idx) {
-            int childIndex = nodePool.getFree();
-            if (idx == 0) {
-                node = Node.setChild(Node.setLeaf(node, false), childIndex);
-                nodePool.set(nodeIndex, node);
-            }
-            nodePool.set(childIndex, childNode);
+            nodePool.set(childIndex+idx, childNode);
         }
         return node;
     }
 
     public void refineVoxelPath(long path) {
-        boolean merge = true;
-        int depth = Path.depth(path);
+        refineVoxelPath(new WidePath(path));
+    }
 
+    public void refineVoxelPath(WidePath path) {
+        EditEvent event = editEvent(EditEvent.REFINE);
+        int splits = editSplits;
+        int merges = editMerges;
+
+        int[] chain = ancestors(path.depth());
+        descend(path, chain);
+        refine(path.depth(), chain);
+        commitEdit(event, path, splits, merges);
+    }
+
+    /**
+     * Walk back up an edit's ancestor chain, merging uniform tiles (for as long as
+     * every level below merged) and re-averaging the rest.  A merge frees only the
+     * tile below the node, so the ancestors above it in the chain stay put.
+     */
+    private void refine(int depth, int[] chain) {
+        boolean merge = true;
         for (int level=depth-1; level >= 0; --level) {
-            path = Path.setDepth(path, level);
-            merge &= refineVoxel(path, merge);
+            merge &= refineVoxel(chain[level], merge);
         }
     }
 
-    private boolean refineVoxel(long path, boolean allowMerge) {
-        int nodeIndex = getIndexForPath(path);
+    /**
+     * Scratch for an ancestor chain of the given depth
+     */
+    private int[] ancestors(int depth) {
+        if (ancestors.length <= depth) {
+            ancestors = new int[depth+1];
+        }
+        return ancestors;
+    }
 
+    /**
+     * A started edit event, or null when no recording has edit events enabled
+     */
+    private EditEvent editEvent(String operation) {
+        if (!EDIT_EVENTS.isEnabled()) {
+            return null;
+        }
+        EditEvent event = new EditEvent(operation);
+        event.begin();
+        return event;
+    }
+
+    private void commitEdit(EditEvent event, WidePath path, int splits, int merges) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = path.toString();
+            event.split = editSplits - splits;
+            event.merged = editMerges - merges;
+            event.commit();
+        }
+    }
+
+    private boolean refineVoxel(int nodeIndex, boolean allowMerge) {
         long parentNode = nodePool.node(nodeIndex);
         int childIndex = Node.child(parentNode);
 
@@ -249,16 +475,22 @@ public class VoxTree {
         }
 
         if (merge && allowMerge) {
-            System.out.println("Refine: trimming " + nodeIndex);
-
-            nodePool.set(nodeIndex, Node.setLeaf(Node.setColor(parentNode, color), true));
-            for (int idx=7; idx>=0; --idx) {
-                nodePool.putFree(childIndex + idx);
+            Trace.merge(nodeIndex);
+            ++editMerges;
+            structureChanged();
+
+            nodePool.set(nodeIndex, Node.setLeaf(Node.setChild(Node.setColor(parentNode, color), 0), true));
+            if (subtrees != null) {
+                // A pick path never pins, so this may be a materialized root
+                subtrees.remove(nodeIndex);
+                subtrees.forget(childIndex);
             }
+            nodePool.putFreeTile(childIndex);
             return true;
         }
 
-        // Accumulate child colors
+        // Accumulate child colors; only premultiplied colors average properly where
+        // some children are see-through
         long red = 0;
         long green = 0;
         long blue = 0;
@@ -274,34 +506,133 @@ public class VoxTree {
         return false;
     }
 
+    /**
+     * Replace the subtree at the given path with a node (and its descendants) built
+     * in another pool, such as by a generator.  The old subtree is released.
+     */
+    void setSubtree(WidePath path, NodePool srcPool, long srcNode) {
+        int nodeIndex = getIndexForPath(path);
+        structureChanged();
+        nodePool.freeSubtree(nodePool.node(nodeIndex));
+        nodePool.set(nodeIndex, nodePool.copySubtree(srcPool, srcNode));
+        if (shading != null) {
+            int size = edgeLength >> path.depth();
+            Point3i center = path.toPosition(edgeLength);
+            shading.update(center.x - (size >> 1), center.y - (size >> 1), center.z - (size >> 1), size);
+        }
+    }
+
+    /**
+     * Hand the world over to a generator: the root becomes a stub, and subtrees are
+     * materialized (and evicted) by the cache as the tree is explored.
+     */
+    void setSubtreeCache(SubtreeCache cache) {
+        long root = nodePool.node(0);
+        structureChanged();
+        shading = null;
+        nodePool.freeSubtree(root);
+        nodePool.set(0, Node.setStub(Node.setLeaf(Node.setChild(Node.setColor(root, 0L), 0), true), true));
+        subtrees = cache;
+    }
+
     public int getIndexForPath(long path) {
-        int depth = Path.depth(path);
+        return getIndexForPath(new WidePath(path));
+    }
+
+    /**
+     * The index of the node at the end of the path, splitting leaves (and generating
+     * stubs) on the way down as needed.  Starts from the deepest ancestor in the path
+     * cache, and leaves every node it passes in the cache.
+     */
+    public int getIndexForPath(WidePath path) {
+        return descend(path, null);
+    }
+
+    /**
+     * getIndexForPath(), also recording the node index at every level from the root
+     * (chain[0]) to the end of the path (chain[depth]) when given a chain.  The chain
+     * is filled from the path cache for as far down as every level is in it, and
+     * walked from there.
+     */
+    private int descend(WidePath path, int[] chain) {
+        int depth = path.depth();
+        WidePath prefix = new WidePath().set(path);
+
+        int level = depth;
         int nodeIndex = 0;
+        if (chain == null) {
+            while (level > 0) {
+                int cached = paths.get(prefix.setDepth(level));
+                if (cached != PathCache.MISSING) {
+                    nodeIndex = cached;
+                    break;
+                }
+                --level;
+            }
+        } else {
+            chain[0] = 0;
+            for (level=0; level<depth; ++level) {
+                int cached = paths.get(prefix.setDepth(level+1));
+                if (cached == PathCache.MISSING) {
+                    break;
+                }
+                nodeIndex = cached;
+                chain[level+1] = nodeIndex;
+            }
+        }
+
         long node;
-        long childNode;
-        for (int cnt=0; cnt<depth; ++cnt) {
+        for (int cnt=level; cnt<depth; ++cnt) {
+            if (chain != null) {
+                chain[cnt] = nodeIndex;
+            }
             node = nodePool.node(nodeIndex);
 
-            // Subdivide if we hit a leaf before the bottom
+            // Generate if we hit a stub, subdivide if we hit a leaf before the bottom
+            if ((subtrees != null) && Node.isStub(node)) {
+                node = subtrees.materialize(nodeIndex, prefix.setDepth(cnt));
+            }
             if (Node.isLeaf(node)){
                 node = splitVoxel(nodeIndex);
             }
-            nodeIndex = Node.child(node) + Path.child(path, cnt);
+            nodeIndex = Node.child(node) + path.child(cnt);
+            paths.put(prefix.setDepth(cnt+1), nodeIndex);
+        }
+        if (chain != null) {
+            chain[depth] = nodeIndex;
         }
         return nodeIndex;
     }
 
+    public long castRay(Point3d inOrigin, Vector3d inRay, boolean pick){
+        return castRay(inOrigin, inRay, pick, NO_START);
+    }
 
     /**
-     *
+     * Cast a (non-pick) ray that is known to cross nothing solid before tStart, as
+     * found by a BeamPrepass; the ray must be of unit length so t is a distance.
+     * Cells the ray leaves before tStart are never visited.
      */
-    public long castRay(Point3d inOrigin, Vector3d inRay, boolean pick){
+    public long castRay(Point3d inOrigin, Vector3d inRay, double tStart){
+        return castRay(inOrigin, inRay, false, tStart);
+    }
+
+    private long castRay(Point3d inOrigin, Vector3d inRay, boolean pick, double tStart){
         // Mirror the ray into quadrant 1
         if (pick) {
             pickRay.set(inRay);
         }
+        if ((subtrees != null) && subtrees.evict()) {
+            structureChanged();
+        }
+        if (RayMetrics.ENABLED) {
+            metrics = RayMetrics.counters();
+            rayNodes = 0;
+            rayStackDepth = 0;
+        }
         ray.set(inRay);
         origin.set(inOrigin);
+        hitDistance = Double.POSITIVE_INFINITY;
         mirror = 0;
         if (ray.x < 0){
             ray.x = -ray.x;
@@ -339,19 +670,34 @@ public class VoxTree {
         double tmax = Math.min(t1.x, Math.min(t1.y, t1.z));
 
         long color = 0;
-        if ( (tmin < tmax) && (tmax > 0.0d)){
-            color = castSubtree(t0, t1, pick);
-            if (pick || (Color.alpha(color) >= 250)) return color;
+        if ( (tmin < tmax) && (tmax > 0.0d) && (tStart < tmax)){
+            color = (gridTraversal && !pick) ? castSubtreeGrid(t0, t1, inOrigin, tStart) : castSubtree(t0, t1, pick, tStart);
+            if (pick || (Color.alpha(color) >= 250)) {
+                if (RayMetrics.ENABLED) {
+                    metrics.ray(rayNodes, rayStackDepth);
+                    if (!pick) ++metrics.opaqueExits;
+                }
+                return color;
+            }
         }
 
-        color = Color.blend(color, Color.setColor(0, 0,0, texture.density(inRay.x, inRay.y, ((double)System.currentTimeMillis() / 20000.0) % 512.0)));
-        return Color.blend(color, Color.setColor(rand.nextInt(256), 0, 0, 255));
+        if (RayMetrics.ENABLED) {
+            metrics.ray(rayNodes, rayStackDepth);
+            ++metrics.skyFallbacks;
+        }
+        hitDistance = Double.POSITIVE_INFINITY;     // Anything the ray went through was see-through
+
+        long background = sky.sample(inRay);
+        if (color == 0) {
+            return background;
+        }
+        return premultiplied ? Color.blendPremultiplied(color, background) : Color.blend(color, background);
     }
 
     /**
      *
      */
-    private long castSubtree(Point3d t0, Point3d t1, boolean pick){
+    private long castSubtree(Point3d t0, Point3d t1, boolean pick, double tStart){
 
         // Error condition early exit
         if ((t1.x < 0.0) || (t1.y < 0.0) || (t1.z < 0.0)) {
@@ -370,7 +716,7 @@ public class VoxTree {
         state.t0 = t0;
         state.t1 = t1;
         state.tM = tM1;
-        state.nodePath = 0L;
+        state.nodePath.clear();
         state.nodeIndex = 0;
         state.octant = octant;
         stateStack[stateStackTop++].set(state);
@@ -378,12 +724,16 @@ public class VoxTree {
         while (stateStackTop > 0){
             // Get the top state from the stack
             state.set(stateStack[--stateStackTop]);
+            if (RayMetrics.ENABLED) ++rayNodes;
 
             // Child...
             long node = nodePool.node(state.nodeIndex);
+            if ((subtrees != null) && Node.isStub(node)) {
+                node = subtrees.materialize(state.nodeIndex, state.nodePath);
+            }
             if ( Node.isLeaf(node)
                     && pick
-                    && (Node.depth(node) < depth)) {
+                    && (state.nodePath.depth() < depth)) {
 
                 double tmin = Math.max(state.t0.x, Math.max(state.t0.y, state.t0.z));
 
@@ -391,11 +741,15 @@ public class VoxTree {
                     // If picking, we must traverse to the very bottom...
                     node = splitVoxel(state.nodeIndex);
                     nodePool.set(state.nodeIndex, node);
+                    if (RayMetrics.ENABLED) ++metrics.pickSplits;
                 }
 
             }
 
-            if (Node.isLeaf(node)) {
+            // A child tile still paging in draws as this node's averaged color
+            boolean loading = !pick && !Node.isLeaf(node) && !nodePool.resident(Node.child(node));
+
+            if (Node.isLeaf(node) || loading) {
                 // ... value
                 long newRgba = Node.color(node);
                 if (newRgba > 0) {
@@ -409,7 +763,7 @@ public class VoxTree {
                         }
                         else{
                             if ( (state.nodeIndex != pickNodeIndex) || (facet != pickFacet) ) {
-                                pickNodePath = state.nodePath;
+                                pickNodePath.set(state.nodePath);
                                 pickNodeIndex = state.nodeIndex;
                                 pickFacet = facet;
 
@@ -427,29 +781,11 @@ public class VoxTree {
                         return 0;
                     }
 
-                    // Lighting model!
-                    // Fake it for now, no lights yet
-                    Vector3d diffuseLight;
-                    double diffuseCoefficient = 0.4;
-                    double ambientCoefficient = 0.5;
-                    // TODO: Specular, distance attenuation, atmospheric effect, etc
-
-                    double elevation = Math.toRadians(-10);
-                    double heading = Math.toRadians(45);
-                    double cosElevation = Math.cos(elevation);
-                    diffuseLight = new Vector3d(Math.cos(heading)*cosElevation, Math.sin(elevation), Math.sin(heading)*cosElevation);
-
-                    Vector3d normal = new Vector3d(facing);
-                    if ((facet & mirror) > 0)
-                        normal.scale(-1);
-                    double illumination = ambientCoefficient + diffuseCoefficient*diffuseLight.dot(normal);
-
-                    if ((pickNodeIndex > 0) && (pickNodeIndex == state.nodeIndex) && (pickFacet == facet) ){
-                        double cycle = (double)System.currentTimeMillis() / 125.0;
-                        illumination = 1.5 + (Math.pow(Math.cos(cycle), 3.0) * .5);
+                    rgba = composite(rgba, newRgba, illumination(facet, state.nodeIndex));
+                    if (Color.alpha(rgba) > 250) {
+                        hitDistance = Math.max(0.0, Math.max(state.t0.x, Math.max(state.t0.y, state.t0.z)));
+                        return rgba;
                     }
-                    rgba = Color.blend(rgba, Color.illuminate(newRgba, illumination));
-                    if (Color.alpha(rgba) > 250) return rgba;
                 }
 
             } else {
@@ -501,22 +837,509 @@ public class VoxTree {
                 state.octant = nextOctant(newState.t1, tOct);
                 if (state.octant < 8) {
                     stateStack[stateStackTop++].set(state);
+
+                    // Start paging in what the ray will reach after this child
+                    long nextNode = nodePool.node(Node.child(node) + (state.octant ^ mirror));
+                    if (!Node.isLeaf(nextNode)) {
+                        nodePool.prefetch(Node.child(nextNode));
+                    }
                 }
 
-                // ... descend
+                // ... descend, unless the ray is out of this child before it starts
+                if (Math.min(newState.t1.x, Math.min(newState.t1.y, newState.t1.z)) < tStart) {
+                    continue;
+                }
+                if (subtrees != null) {
+                    subtrees.touch(Node.child(node));
+                }
                 newState.tM.add(newState.t0, newState.t1);
                 newState.tM.scale(0.5);
                 octant = findOctant(newState.t0, newState.tM);
                 newState.octant = octant;
                 int octantMirror = thisOctant ^ mirror;
                 newState.nodeIndex = Node.child(node) + octantMirror;
-                newState.nodePath = Path.addChild(state.nodePath, octantMirror);
+                newState.nodePath.set(state.nodePath).addChild(octantMirror);
                 stateStack[stateStackTop++].set(newState);
+                if (RayMetrics.ENABLED) rayStackDepth = Math.max(rayStackDepth, stateStackTop);
             }
         }
         return rgba;
     }
 
+    /**
+     * The color so far along a ray, over a node's color lit by illumination
+     */
+    private long composite(long rgba, long color, double illumination) {
+        if (premultiplied) {
+            return Color.blendPremultiplied(rgba, Color.illuminatePremultiplied(color, illumination));
+        }
+        return Color.blend(rgba, Color.illuminate(color, illumination));
+    }
+
+    /**
+     * The light falling on a face of a node: facet is the plane the ray entered
+     * through, in mirrored space.  With shading computed, a leaf's own normal and
+     * occlusion stand in for the face.  The picked face pulses.
+     */
+    private double illumination(int facet, int nodeIndex) {
+        // TODO: Specular, distance attenuation, atmospheric effect, etc
+        double illumination;
+        int shade = (shading != null) ? shading.get(nodeIndex) : NodeShading.NONE;
+        if (shade != NodeShading.NONE) {
+            double diffuse = -(NodeShading.normalX(shade) * LIGHT_X
+                    + NodeShading.normalY(shade) * LIGHT_Y
+                    + NodeShading.normalZ(shade) * LIGHT_Z);
+            illumination = AMBIENT_COEFFICIENT*NodeShading.visibility(shade) + DIFFUSE_COEFFICIENT*diffuse;
+        } else {
+            double diffuse;
+            switch (facet) {
+                case YZ_PLANE: diffuse = LIGHT_X; break;
+                case XZ_PLANE: diffuse = LIGHT_Y; break;
+                default:       diffuse = LIGHT_Z; break;
+            }
+            if ((facet & mirror) > 0) {
+                diffuse = -diffuse;
+            }
+            illumination = AMBIENT_COEFFICIENT + DIFFUSE_COEFFICIENT*diffuse;
+        }
+
+        if ((pickNodeIndex > 0) && (pickNodeIndex == nodeIndex) && (pickFacet == facet) ){
+            double cycle = (double)System.currentTimeMillis() / 125.0;
+            illumination = 1.5 + (Math.pow(Math.cos(cycle), 3.0) * .5);
+        }
+        return illumination;
+    }
+
+    /**
+     * castSubtree() on the integer cell grid, after Laine and Karras.
+     *
+     * The current cell is its (mirrored) corner in world units and its edge length,
+     * both ints; the t at any cell plane p along an axis is p * coef - bias, one
+     * multiply with no division or per-level averaging.  Stepping to a sibling sets
+     * an octant bit, and leaving a parent finds the level to resume at from the
+     * highest bit that changed in the stepped coordinate, so the only stack is the
+     * parent node index per level.  Everything is primitive locals.
+     *
+     * Only cells ahead of the origin, and past tStart, are visited.  A ray starting
+     * inside the world at t zero skips the descent to its origin: it starts in the
+     * deepest cell of the camera chain (see viewChain()), with the parents above it
+     * already on the stack.  Not for picking.
+     */
+    private long castSubtreeGrid(Point3d t0, Point3d t1, Point3d inOrigin, double tStart) {
+
+        // Error condition early exit
+        if ((t1.x < 0.0) || (t1.y < 0.0) || (t1.z < 0.0)) {
+            return 0L;
+        }
+
+        double coefX = 1.0 / ray.x;
+        double coefY = 1.0 / ray.y;
+        double coefZ = 1.0 / ray.z;
+        double biasX = origin.x * coefX;
+        double biasY = origin.y * coefY;
+        double biasZ = origin.z * coefZ;
+
+        double tMin = Math.max(Math.max(0.0, tStart), Math.max(t0.x, Math.max(t0.y, t0.z)));
+        return walkGrid(coefX, coefY, coefZ, biasX, biasY, biasZ, tMin, Double.POSITIVE_INFINITY,
+                entryFacet(t0.x, t0.y, t0.z), inOrigin, false);
+    }
+
+    /**
+     * The castSubtreeGrid() walk from tMin, for cells with t at their planes of
+     * p * coef - bias.  rootFacet is the plane the ray entered the world through, and
+     * inOrigin the unmirrored origin, for starting in the camera's cell.
+     *
+     * With shadow set, only alpha is gathered (no lighting, blending or hit distance),
+     * and the walk gives up past tMax; it returns the alpha reached, out of 255.
+     * Otherwise it returns the composited color.
+     */
+    private long walkGrid(double coefX, double coefY, double coefZ, double biasX, double biasY, double biasZ,
+                          double tMin, double tMax, int rootFacet, Point3d inOrigin, boolean shadow) {
+        long rgba = 0L;
+        int alpha = 0;
+
+        int parentIndex = 0;
+        long parentNode = nodePool.node(0);
+        if ((subtrees != null) && Node.isStub(parentNode)) {
+            parentNode = subtrees.materialize(0, new WidePath());
+        }
+        if (RayMetrics.ENABLED) ++rayNodes;
+        if (Node.isLeaf(parentNode) || !nodePool.resident(Node.child(parentNode))) {
+            if (shadow) {
+                return Node.alpha(parentNode);
+            }
+            long color = Node.color(parentNode);
+            if (color > 0) {
+                double illumination = illumination(rootFacet, 0);
+                rgba = premultiplied ? Color.illuminatePremultiplied(color, illumination) : Color.illuminate(color, illumination);
+                hitDistance = tMin;
+            }
+            return rgba;
+        }
+        if (subtrees != null) {
+            subtrees.touch(Node.child(parentNode));
+        }
+
+        int level = 1;
+        int scale = edgeLength >> 1;
+        int x = 0;
+        int y = 0;
+        int z = 0;
+        int octant = 0;
+        if (!shadow && viewStart && (tMin == 0.0) && (viewChain(inOrigin) > 0)) {
+            // Already in the camera's cell, its ancestors stacked up as if we had descended
+            level = viewLevel;
+            scale = edgeLength >> level;
+            System.arraycopy(viewChain, 0, gridParents, 1, level - 1);
+            parentIndex = viewChain[level - 1];
+            parentNode = nodePool.node(parentIndex);
+            x = ((mirror & 4) != 0) ? edgeLength - viewX - scale : viewX;
+            y = ((mirror & 2) != 0) ? edgeLength - viewY - scale : viewY;
+            z = ((mirror & 1) != 0) ? edgeLength - viewZ - scale : viewZ;
+            octant = (((x & scale) != 0) ? 4 : 0) | (((y & scale) != 0) ? 2 : 0) | (((z & scale) != 0) ? 1 : 0);
+            if (subtrees != null) {
+                for (int cnt=0; cnt<level; ++cnt) {
+                    subtrees.touch(Node.child(nodePool.node(viewChain[cnt])));
+                }
+            }
+            if (RayMetrics.ENABLED) rayStackDepth = Math.max(rayStackDepth, level);
+        } else {
+            // First child: past every center plane the ray has already crossed
+            if ((scale * coefX - biasX) < tMin) { octant |= 4; x = scale; }
+            if ((scale * coefY - biasY) < tMin) { octant |= 2; y = scale; }
+            if ((scale * coefZ - biasZ) < tMin) { octant |= 1; z = scale; }
+        }
+
+        while (true) {
+            if (RayMetrics.ENABLED) ++rayNodes;
+
+            int nodeIndex = Node.child(parentNode) + (octant ^ mirror);
+            long node = nodePool.node(nodeIndex);
+            if ((subtrees != null) && Node.isStub(node)) {
+                node = subtrees.materialize(nodeIndex, gridPath(x, y, z, level));
+            }
+
+            if (!Node.isLeaf(node) && (level < depth) && nodePool.resident(Node.child(node))) {
+                // Descend into the child cell holding the ray at tMin
+                if (subtrees != null) {
+                    subtrees.touch(Node.child(node));
+                }
+                gridParents[level] = parentIndex;
+                parentIndex = nodeIndex;
+                parentNode = node;
+                ++level;
+                if (RayMetrics.ENABLED) rayStackDepth = Math.max(rayStackDepth, level);
+
+                scale >>= 1;
+                octant = 0;
+                if (((x + scale) * coefX - biasX) < tMin) { octant |= 4; x += scale; }
+                if (((y + scale) * coefY - biasY) < tMin) { octant |= 2; y += scale; }
+                if (((z + scale) * coefZ - biasZ) < tMin) { octant |= 1; z += scale; }
+                continue;
+            }
+
+            // A leaf, or a child tile still paging in (drawn as this node's average)
+            if (shadow) {
+                int nodeAlpha = Node.alpha(node);
+                if (nodeAlpha > 0) {
+                    alpha += (nodeAlpha * (255 - alpha)) / 255;
+                    if (alpha > 250) {
+                        return alpha;
+                    }
+                }
+            } else {
+                long color = Node.color(node);
+                if (color > 0) {
+                    int facet = entryFacet(x * coefX - biasX, y * coefY - biasY, z * coefZ - biasZ);
+                    rgba = composite(rgba, color, illumination(facet, nodeIndex));
+                    if (Color.alpha(rgba) > 250) {
+                        hitDistance = tMin;
+                        return rgba;
+                    }
+                }
+            }
+
+            // On to the next cell, through the first exit plane (ties as nextOctant())
+            double exitX = (x + scale) * coefX - biasX;
+            double exitY = (y + scale) * coefY - biasY;
+            double exitZ = (z + scale) * coefZ - biasZ;
+            int step;
+            int from;
+            int to;
+            if ((exitX < exitY) && (exitX < exitZ)) {
+                step = 4; from = x; to = x + scale; x = to; tMin = exitX;
+            } else if ((exitX >= exitY) && (exitY < exitZ)) {
+                step = 2; from = y; to = y + scale; y = to; tMin = exitY;
+            } else {
+                step = 1; from = z; to = z + scale; z = to; tMin = exitZ;
+            }
+            if (tMin >= tMax) {
+                return shadow ? alpha : rgba;
+            }
+            if ((octant & step) == 0) {
+                octant |= step;
+                continue;
+            }
+
+            // Out of the parent: the highest changed bit is the edge of the cell to resume in
+            int top = Integer.highestOneBit(from ^ to);
+            if (top >= edgeLength) {
+                return shadow ? alpha : rgba;
+            }
+            level = Integer.numberOfTrailingZeros(edgeLength) - Integer.numberOfTrailingZeros(top);
+            scale = top;
+            x &= -scale;
+            y &= -scale;
+            z &= -scale;
+            octant = (((x & scale) != 0) ? 4 : 0) | (((y & scale) != 0) ? 2 : 0) | (((z & scale) != 0) ? 1 : 0);
+            parentIndex = gridParents[level];
+            parentNode = nodePool.node(parentIndex);
+        }
+    }
+
+    /**
+     * Whether anything solid lies along dir from origin before maxT (in lengths of
+     * dir), as for a shadow ray toward a light.  The castSubtreeGrid() walk in its
+     * shadow mode (see walkGrid()): alpha only, no sky, and it quits at the first
+     * cell that makes the ray opaque or once it is past maxT.  Like castRay(),
+     * not to be called from inside another cast.
+     */
+    public boolean occluded(Point3d origin, Vector3d dir, double maxT) {
+        aimOccluded(dir);
+        return occluded(origin.x, origin.y, origin.z, maxT);
+    }
+
+    /**
+     * occluded() for count origins at once, packed x, y, z into origins, all along
+     * one dir (a directional light, say), into results.  The direction is set up
+     * once for the whole batch.
+     */
+    public void occluded(double[] origins, int count, Vector3d dir, double maxT, boolean[] results) {
+        aimOccluded(dir);
+        for (int idx=0; idx<count; ++idx) {
+            results[idx] = occluded(origins[3*idx], origins[3*idx + 1], origins[3*idx + 2], maxT);
+        }
+    }
+
+    /**
+     * The direction toward the light, of unit length, into toLight
+     */
+    public void lightDirection(Vector3d toLight) {
+        toLight.set(-LIGHT_X, -LIGHT_Y, -LIGHT_Z);
+    }
+
+    /**
+     * Mirror dir into quadrant 1, as castRay() does, for the occluded() rays to follow
+     */
+    private void aimOccluded(Vector3d dir) {
+        if ((subtrees != null) && subtrees.evict()) {
+            structureChanged();
+        }
+        ray.set(dir);
+        mirror = 0;
+        if (ray.x < 0) {
+            ray.x = -ray.x;
+            mirror |= 4;
+        }
+        if (ray.y < 0) {
+            ray.y = -ray.y;
+            mirror |= 2;
+        }
+        if (ray.z < 0) {
+            ray.z = -ray.z;
+            mirror |= 1;
+        }
+        final double verySmallValue = 0.000000001;
+        shadowCoefX = 1.0 / Math.max(verySmallValue, ray.x);
+        shadowCoefY = 1.0 / Math.max(verySmallValue, ray.y);
+        shadowCoefZ = 1.0 / Math.max(verySmallValue, ray.z);
+    }
+
+    private boolean occluded(double originX, double originY, double originZ, double maxT) {
+        double coefX = shadowCoefX;
+        double coefY = shadowCoefY;
+        double coefZ = shadowCoefZ;
+        double biasX = (((mirror & 4) != 0) ? edgeLength - originX : originX) * coefX;
+        double biasY = (((mirror & 2) != 0) ? edgeLength - originY : originY) * coefY;
+        double biasZ = (((mirror & 1) != 0) ? edgeLength - originZ : originZ) * coefZ;
+
+        // The part of the ray inside the world, and short of maxT
+        double tMin = Math.max(0.0, Math.max(-biasX, Math.max(-biasY, -biasZ)));
+        double tMax = Math.min(maxT, Math.min(edgeLength * coefX - biasX,
+                Math.min(edgeLength * coefY - biasY, edgeLength * coefZ - biasZ)));
+        if (tMin >= tMax) {
+            return false;
+        }
+        return walkGrid(coefX, coefY, coefZ, biasX, biasY, biasZ, tMin, tMax, 0, null, true) > 250;
+    }
+
+    /**
+     * Trace a cone from origin along dir, widening by aperture (its radius per unit
+     * distance), and return the color and opacity it gathers before maxT.
+     *
+     * Parents hold the average of their children, so the tree is its own mipmap:
+     * rather than many rays, the cone takes samples along its axis, each from the
+     * node about as wide as the cone is there, and steps on by half that width.  A
+     * sample's alpha is corrected for how far the step goes through the node, and
+     * they are accumulated front to back until the cone is opaque.  Wide cones reach
+     * coarse levels within a few steps, so a query is a few dozen node reads, as
+     * against hundreds of rays to cover the same solid angle.  The alpha of the
+     * result is the fraction of the cone blocked: soft shadows toward a light, or
+     * ambient occlusion from a handful of cones over a hemisphere.
+     *
+     * The first sample is one leaf's width out, clear of the cell holding the
+     * origin.  Stubs and nodes not yet loaded are sampled as they are, by their
+     * average, rather than paged in.  The color is unlit, and premultiplied if the
+     * tree is.
+     */
+    public long coneTrace(Point3d origin, Vector3d dir, double aperture, double maxT) {
+        double length = dir.length();
+        double dirX = dir.x / length;
+        double dirY = dir.y / length;
+        double dirZ = dir.z / length;
+
+        // Where the axis is inside the world, mirrored per axis as occluded() does
+        final double verySmallValue = 0.000000001;
+        double coefX = 1.0 / Math.max(verySmallValue, Math.abs(dirX));
+        double coefY = 1.0 / Math.max(verySmallValue, Math.abs(dirY));
+        double coefZ = 1.0 / Math.max(verySmallValue, Math.abs(dirZ));
+        double biasX = ((dirX < 0.0) ? edgeLength - origin.x : origin.x) * coefX;
+        double biasY = ((dirY < 0.0) ? edgeLength - origin.y : origin.y) * coefY;
+        double biasZ = ((dirZ < 0.0) ? edgeLength - origin.z : origin.z) * coefZ;
+        double tEnter = Math.max(0.0, Math.max(-biasX, Math.max(-biasY, -biasZ)));
+        double tExit = Math.min(maxT, Math.min(edgeLength * coefX - biasX,
+                Math.min(edgeLength * coefY - biasY, edgeLength * coefZ - biasZ)));
+
+        double red = 0.0;
+        double green = 0.0;
+        double blue = 0.0;
+        double alpha = 0.0;
+        double t = Math.max(BRICK_EDGE, tEnter);
+        while ((t < tExit) && (alpha < (250.0 / 255.0))) {
+            double width = Math.max(BRICK_EDGE, 2.0 * aperture * t);
+            int x = (int)(origin.x + t * dirX);
+            int y = (int)(origin.y + t * dirY);
+            int z = (int)(origin.z + t * dirZ);
+
+            // Down to the node about as wide as the cone, or the leaf holding the point
+            long node = nodePool.node(0);
+            int size = edgeLength;
+            while (!Node.isLeaf(node) && ((size >> 1) >= width) && nodePool.resident(Node.child(node))
+                    && !((subtrees != null) && Node.isStub(node))) {
+                size >>= 1;
+                int octant = (((x & size) != 0) ? 4 : 0) | (((y & size) != 0) ? 2 : 0) | (((z & size) != 0) ? 1 : 0);
+                node = nodePool.node(Node.child(node) + octant);
+            }
+
+            double stepLength = width * CONE_STEP;
+            int nodeAlpha = Node.alpha(node);
+            if (nodeAlpha > 0) {
+                double sample = 1.0 - Math.pow(1.0 - nodeAlpha / 255.0, stepLength / size);
+                double weight = (1.0 - alpha) * sample;
+                double scale = premultiplied ? weight * 255.0 / nodeAlpha : weight;
+                red += scale * Node.red(node);
+                green += scale * Node.green(node);
+                blue += scale * Node.blue(node);
+                alpha += weight;
+            }
+            t += stepLength;
+        }
+
+        if (alpha <= 0.0) {
+            return 0L;
+        }
+        if (!premultiplied) {
+            red /= alpha;
+            green /= alpha;
+            blue /= alpha;
+        }
+        return Color.setColor(
+                (int)Math.min(255L, Math.round(red)),
+                (int)Math.min(255L, Math.round(green)),
+                (int)Math.min(255L, Math.round(blue)),
+                (int)Math.min(255L, Math.round(alpha * 255.0)));
+    }
+
+    /**
+     * The chain of nodes holding a viewpoint inside the world: viewChain[0] is the
+     * root and viewChain[viewLevel] the deepest node reached, whose cell has its
+     * (unmirrored) corner at viewX, viewY, viewZ.  Found once per viewpoint, and again
+     * after anything frees or moves nodes.  The chain stops early at a node still
+     * paging in, or where the viewpoint sits exactly on a center plane and so belongs
+     * to different cells for differently mirrored rays.  Returns viewLevel.
+     */
+    private int viewChain(Point3d point) {
+        if (viewValid && point.equals(viewPoint)) {
+            return viewLevel;
+        }
+        viewPoint.set(point);
+        viewValid = true;
+
+        int level = 0;
+        int nodeIndex = 0;
+        int size = edgeLength;
+        int x = 0;
+        int y = 0;
+        int z = 0;
+        long node = nodePool.node(0);
+        viewChain[0] = 0;
+        while ((level < depth) && !Node.isLeaf(node) && nodePool.resident(Node.child(node))) {
+            size >>= 1;
+            double centerX = x + size;
+            double centerY = y + size;
+            double centerZ = z + size;
+            if ((point.x == centerX) || (point.y == centerY) || (point.z == centerZ)) {
+                break;
+            }
+            int octant = 0;
+            if (point.x > centerX) { octant |= 4; x += size; }
+            if (point.y > centerY) { octant |= 2; y += size; }
+            if (point.z > centerZ) { octant |= 1; z += size; }
+            nodeIndex = Node.child(node) + octant;
+            node = nodePool.node(nodeIndex);
+            viewChain[++level] = nodeIndex;
+        }
+        viewLevel = level;
+        viewX = x;
+        viewY = y;
+        viewZ = z;
+        return viewLevel;
+    }
+
+    /**
+     * Nodes were freed or moved, so any remembered node indices may be stale
+     */
+    private void structureChanged() {
+        paths.clear();
+        viewValid = false;
+    }
+
+    /**
+     * The plane a ray entered a cell through, from the t at its near planes (ties as
+     * findOctant())
+     */
+    private static int entryFacet(double tX, double tY, double tZ) {
+        if (tX > tY) {
+            if (tX > tZ) return YZ_PLANE;
+        } else {
+            if (tY > tZ) return XZ_PLANE;
+        }
+        return XY_PLANE;
+    }
+
+    /**
+     * The path to a castSubtreeGrid() cell, undoing the mirroring
+     */
+    private WidePath gridPath(int x, int y, int z, int level) {
+        WidePath path = new WidePath();
+        for (int cnt=1; cnt<=level; ++cnt) {
+            int bit = edgeLength >> cnt;
+            int octant = (((x & bit) != 0) ? 4 : 0) | (((y & bit) != 0) ? 2 : 0) | (((z & bit) != 0) ? 1 : 0);
+            path.addChild(octant ^ mirror);
+        }
+        return path;
+    }
+
     /**
      *
      *
@@ -580,6 +1403,9 @@ public class VoxTree {
     // Save, Load, and related utilities
     // --------------------------------------
     public void save(String name) {
+        SaveEvent event = new SaveEvent();
+        event.begin();
+
         NodePool savePool = compressTree();
 
         // TODO: Shift over to database storage
@@ -590,7 +1416,8 @@ public class VoxTree {
         // Input: byte[] is best if you have it; InputStream second best; followed by Reader -- and in every case, do NOT try reading input into a String!
 //        StringWriter output = new StringWriter();
         try {
-            FileOutputStream  output = new FileOutputStream("bricks" + File.separator + name + ".node");
+            File file = new File("bricks" + File.separator + name + ".node");
+            FileOutputStream  output = new FileOutputStream(file);
 
 //            ObjectMapper mapper = new ObjectMapper(); // can reuse, share globally
 //            mapper.writeValue(output, nodePool);
@@ -608,39 +1435,72 @@ public class VoxTree {
             gen.writeEndArray();
             gen.writeEndObject();
             gen.close();
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.name = name;
+                event.nodes = savePool.size();
+                event.bytes = file.length();
+                event.commit();
+            }
         } catch (Exception e) {
             System.out.println(e);
         }
 
     }
 
-    private void copyNodeSubtree(NodePool srcPool, int srcIndex, NodePool dstPool) {
-        long srcNode = srcPool.node(srcIndex);
-        dstPool.set(dstPool.getFree(), srcNode);
-
-        if (!Node.isLeaf(srcNode)) {
-            int tile = Node.child(srcNode);
-            for (int child=0; child<8; ++child) {
-                copyNodeSubtree(srcPool, tile+child, dstPool);
-            }
-        }
+    private NodePool compressTree() {
+        // A just-right pool, in traversal order
+        return nodePool.compacted(HOT_LEVELS);
     }
 
-    private NodePool compressTree() {
-        // Determine our size
-        NodePool.Statistics stats = nodePool.analyze();
+    /**
+     * Re-lay the pool out in traversal order (see NodePool.relayout), to undo the
+     * scattering left by split/merge cycles.  Stops the world for one pass, so run
+     * it between frames.
+     */
+    public void relayout() {
+        int[] map = nodePool.relayout(HOT_LEVELS);
+        structureChanged();
 
-        // Allocate a just-right pool
-        NodePool newPool = new NodePool(stats.numUsed);
+        if (pickNodeIndex > 0) {
+            pickNodeIndex = Math.max(0, map[pickNodeIndex]);
+        }
+        if (subtrees != null) {
+            subtrees.remap(map);
+        }
+        if (shading != null) {
+            shading.remap(map);
+        }
+        defragmenter = null;
+    }
 
-        int nodeIndex = 0;  // Start at the root
-        try {
-            copyNodeSubtree(nodePool, nodeIndex, newPool);
-        } catch (Exception e) {
-            System.out.println(e);
+    /**
+     * Spend up to budgetNanos compacting the pool (see Defragmenter).  Call between
+     * frames; returns true when the pool is compact, with a pass just finished or none
+     * called for.
+     */
+    public boolean defragment(long budgetNanos) {
+        if (defragmenter == null) {
+            defragmenter = new Defragmenter(this);
         }
+        return defragmenter.step(System.nanoTime() + budgetNanos);
+    }
 
-        return newPool;
+    /**
+     * The defragmenter moved a tile; follow anything that holds its node indices
+     */
+    void moved(int from, int to) {
+        structureChanged();
+        if ((pickNodeIndex >= from) && (pickNodeIndex < from+8)) {
+            pickNodeIndex = to + (pickNodeIndex - from);
+        }
+        if (subtrees != null) {
+            subtrees.moved(from, to);
+        }
+        if (shading != null) {
+            shading.moved(from, to);
+        }
     }
 
     public String toString() {
@@ -0,0 +1,290 @@
+package com.simreal.VoxEngine;
+
+import javax.vecmath.Point3i;
+
+/**
+ * A Path for trees deeper than a single long can describe.
+ *
+ * Two longs hold up to 40 child choices.  The head has children 0 through 20, laid
+ * out exactly as in a Path (child[0] in the top three bits, bit 0 unused); the tail
+ * carries on with children 21 through 39 in the same way, and keeps the depth in its
+ * low seven bits.  A Path's child bits are therefore the head of the equivalent
+ * WidePath.
+ *
+ * Unlike Path this is a mutable holder, so traversal can keep one per stack entry
+ * and update it in place without allocating.  Children past the depth are ignored.
+ *
+ *  64            56            48            40            32
+ *    +------+------+------+------+------+------+------+------+
+ *    | head: child[0..20] : 3-bits * 21 = 63                 |
+ *    +------+------+------+------+------+------+------+------+
+ *    |                                                     |0|
+ *    +------+------+------+------+------+------+------+------+
+ *    | tail: child[21..39] : 3-bits * 19 = 57                |
+ *    +------+------+------+------+------+------+------+------+
+ *    |                                          |    depth   |
+ *    +------+------+------+------+------+------+------+------+
+ *                24            16             8 7           0
+ */
+public final class WidePath {
+    public static final int MAX_DEPTH = 40;
+    public static final int HEAD_CHILDREN = 21;
+
+    private static final long DEPTH_MASK = 0x000000000000007FL;
+    private static final long CHILD_MASK = 0x0000000000000007L;
+    private static final int CHILD_SHIFT = 61;
+
+    public long head;
+    public long tail;
+
+    public WidePath() {
+        head = 0L;
+        tail = 0L;
+    }
+
+    /**
+     * The same descent as a (narrow) Path
+     */
+    public WidePath(long path) {
+        setPath(path);
+    }
+
+    public WidePath set(WidePath path) {
+        head = path.head;
+        tail = path.tail;
+        return this;
+    }
+
+    public WidePath setPath(long path) {
+        head = path & Path.PATH_PATH_MASK;
+        tail = Path.depth(path);
+        return this;
+    }
+
+    /**
+     * Back to a narrow Path; only for depths up to Path.PATH_MAX_DEPTH
+     */
+    public long toPath() {
+        if (depth() > Path.PATH_MAX_DEPTH) {
+            throw new RuntimeException("WidePath too deep for a Path");
+        }
+        return (head & Path.PATH_PATH_MASK) | depth();
+    }
+
+    public WidePath clear() {
+        head = 0L;
+        tail = 0L;
+        return this;
+    }
+
+    public int depth() {
+        return depth(tail);
+    }
+
+    public WidePath setDepth(int depth) {
+        tail = (tail & ~DEPTH_MASK) | depth;
+        return this;
+    }
+
+    public int child(int level) {
+        return child(head, tail, level);
+    }
+
+    public WidePath addChild(int child) {
+        int depth = depth();
+        if (depth >= MAX_DEPTH) return this;
+
+        long bits = (child & CHILD_MASK);
+        if (depth < HEAD_CHILDREN) {
+            int shift = CHILD_SHIFT - 3*depth;
+            head = (head & ~(CHILD_MASK << shift)) | (bits << shift);
+        } else {
+            int shift = CHILD_SHIFT - 3*(depth - HEAD_CHILDREN);
+            tail = (tail & ~(CHILD_MASK << shift)) | (bits << shift);
+        }
+        tail = (tail & ~DEPTH_MASK) | (depth + 1);
+        return this;
+    }
+
+    public static int depth(long tail) {
+        return (int)(tail & DEPTH_MASK);
+    }
+
+    public static int child(long head, long tail, int level) {
+        if (level < HEAD_CHILDREN) {
+            return (int)((head >>> (CHILD_SHIFT - 3*level)) & CHILD_MASK);
+        }
+        return (int)((tail >>> (CHILD_SHIFT - 3*(level - HEAD_CHILDREN))) & CHILD_MASK);
+    }
+
+    /**
+     * The path to the voxel holding a position, as Path.fromPosition.  Power-of-two
+     * volumes interleave the cell coordinates directly; others bisect.
+     */
+    public WidePath fromPosition(Point3i position, int edgeLength, int depth) {
+        clear();
+        if ( (position.x < 0)
+                || (position.y < 0)
+                || (position.z < 0)
+                || (position.x > edgeLength)
+                || (position.y > edgeLength)
+                || (position.z > edgeLength) ){
+            return this;
+        }
+
+        int shift = cellShift(edgeLength, depth);
+        if (shift < 0) {
+            return fromPositionSearch(position, edgeLength, depth);
+        }
+
+        // A position on a midpoint belongs to the lower half, so cells run (x0, x1]
+        long x = Math.max(position.x - 1, 0) >>> shift;
+        long y = Math.max(position.y - 1, 0) >>> shift;
+        long z = Math.max(position.z - 1, 0) >>> shift;
+
+        int headDepth = Math.min(depth, HEAD_CHILDREN);
+        int tailDepth = depth - headDepth;
+        if (headDepth > 0) {
+            head = interleave(x >>> tailDepth, y >>> tailDepth, z >>> tailDepth) << (64 - 3*headDepth);
+        }
+        if (tailDepth > 0) {
+            long mask = (1L << tailDepth) - 1;
+            tail = interleave(x & mask, y & mask, z & mask) << (64 - 3*tailDepth);
+        }
+        tail |= depth;
+        return this;
+    }
+
+    /**
+     * The center of the voxel this path reaches, as Path.toPosition
+     */
+    public Point3i toPosition(int edgeLength) {
+        int depth = depth();
+        int shift = cellShift(edgeLength, depth);
+        if (shift < 0) {
+            return toPositionSearch(edgeLength);
+        }
+
+        int headDepth = Math.min(depth, HEAD_CHILDREN);
+        int tailDepth = depth - headDepth;
+        long headCode = (headDepth > 0) ? (head >>> (64 - 3*headDepth)) : 0L;
+        long tailCode = (tailDepth > 0) ? (tail >>> (64 - 3*tailDepth)) : 0L;
+
+        long x = (Path.compact(headCode >>> 2) << tailDepth) | Path.compact(tailCode >>> 2);
+        long y = (Path.compact(headCode >>> 1) << tailDepth) | Path.compact(tailCode >>> 1);
+        long z = (Path.compact(headCode) << tailDepth) | Path.compact(tailCode);
+
+        int half = (1 << shift) >> 1;
+        return new Point3i(((int)x << shift) + half, ((int)y << shift) + half, ((int)z << shift) + half);
+    }
+
+    WidePath fromPositionSearch(Point3i position, int edgeLength, int depth) {
+        int x0 = 0;
+        int y0 = 0;
+        int z0 = 0;
+        int x1 = edgeLength;
+        int y1 = edgeLength;
+        int z1 = edgeLength;
+
+        clear();
+        for (int level=0; level<depth; ++level) {
+            int xm = (x0 + x1) >> 1;
+            int ym = (y0 + y1) >> 1;
+            int zm = (z0 + z1) >> 1;
+
+            int sub = 0;
+            if (position.z > zm) { sub |= Path.Z_AXIS; z0 = zm; } else { z1 = zm; }
+            if (position.y > ym) { sub |= Path.Y_AXIS; y0 = ym; } else { y1 = ym; }
+            if (position.x > xm) { sub |= Path.X_AXIS; x0 = xm; } else { x1 = xm; }
+            addChild(sub);
+        }
+        return this;
+    }
+
+    Point3i toPositionSearch(int edgeLength) {
+        int x0 = 0;
+        int y0 = 0;
+        int z0 = 0;
+        int x1 = edgeLength;
+        int y1 = edgeLength;
+        int z1 = edgeLength;
+
+        int depth = depth();
+        for (int level=0; level<depth; ++level) {
+            int xm = (x0 + x1) >> 1;
+            int ym = (y0 + y1) >> 1;
+            int zm = (z0 + z1) >> 1;
+
+            int sub = child(level);
+            if ((sub & Path.Z_AXIS) != 0) { z0 = zm; } else { z1 = zm; }
+            if ((sub & Path.Y_AXIS) != 0) { y0 = ym; } else { y1 = ym; }
+            if ((sub & Path.X_AXIS) != 0) { x0 = xm; } else { x1 = xm; }
+        }
+        return new Point3i((x0 + x1) >> 1, (y0 + y1) >> 1, (z0 + z1) >> 1);
+    }
+
+    private static long interleave(long x, long y, long z) {
+        return (Path.spread(x) << 2) | (Path.spread(y) << 1) | Path.spread(z);
+    }
+
+    private static int cellShift(int edgeLength, int depth) {
+        if ((depth < 0) || (depth > MAX_DEPTH)
+                || (edgeLength <= 0) || ((edgeLength & (edgeLength - 1)) != 0)) {
+            return -1;
+        }
+        int shift = Integer.numberOfTrailingZeros(edgeLength) - depth;
+        return (shift < 0) ? -1 : shift;
+    }
+
+    /**
+     * The head's child bits, without any left over past the depth
+     */
+    long headKey() {
+        int children = Math.min(depth(), HEAD_CHILDREN);
+        return (children == 0) ? 0L : (head & (-1L << (64 - 3*children)));
+    }
+
+    /**
+     * The tail's child bits (likewise masked) and the depth
+     */
+    long tailKey() {
+        int depth = depth();
+        int children = depth - HEAD_CHILDREN;
+        return (children <= 0) ? depth : ((tail & (-1L << (64 - 3*children))) | depth);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof WidePath)) {
+            return false;
+        }
+        WidePath path = (WidePath)other;
+        return (headKey() == path.headKey()) && (tailKey() == path.tailKey());
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = headKey() * 31 + tailKey();
+        return (int)(hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return toString(head, tail);
+    }
+
+    static String toString(long head, long tail) {
+        StringBuilder result = new StringBuilder();
+
+        int depth = depth(tail);
+        result.append("Path { ");
+        result.append("Depth: ").append(depth);
+        result.append(", Child [");
+        for (int idx=0; idx<depth; ++idx) {
+            if (idx > 0) { result.append(", "); }
+            result.append(child(head, tail, idx));
+        }
+        result.append("] }");
+        return result.toString();
+    }
+}
@@ -0,0 +1,37 @@
+package com.simreal.VoxEngine.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A voxel edit, or the refinement pass that follows one, and how much of the tree it reshaped
+ */
+@Name("com.simreal.VoxEngine.Edit")
+@Label("Voxel Edit")
+@Category({"VoxEngine", "Editing"})
+@Description("A setVoxelPath or refineVoxelPath call")
+public class EditEvent extends Event {
+    public static final String SET = "set";
+    public static final String REFINE = "refine";
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Path")
+    public String path;
+
+    @Label("Nodes Split")
+    @Description("Tiles allocated by splitting leaves")
+    public int split;
+
+    @Label("Nodes Merged")
+    @Description("Tiles freed by merging uniform children")
+    public int merged;
+
+    public EditEvent(String operation) {
+        this.operation = operation;
+    }
+}
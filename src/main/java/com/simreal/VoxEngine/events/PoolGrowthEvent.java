@@ -0,0 +1,20 @@
+package com.simreal.VoxEngine.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A node pool running out of free nodes and growing
+ */
+@Name("com.simreal.VoxEngine.PoolGrowth")
+@Label("Node Pool Growth")
+@Category({"VoxEngine", "Memory"})
+public class PoolGrowthEvent extends Event {
+    @Label("Old Size")
+    public int oldSize;
+
+    @Label("New Size")
+    public int newSize;
+}
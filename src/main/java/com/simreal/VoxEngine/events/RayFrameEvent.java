@@ -0,0 +1,36 @@
+package com.simreal.VoxEngine.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One rendered frame's worth of ray caster counters
+ */
+@Name("com.simreal.VoxEngine.RayFrame")
+@Label("Ray Frame")
+@Category({"VoxEngine", "Rendering"})
+@Description("Ray caster counters aggregated over one frame")
+public class RayFrameEvent extends Event {
+    @Label("Rays")
+    public long rays;
+
+    @Label("Nodes Visited")
+    public long nodesVisited;
+
+    @Label("Max Stack Depth")
+    public int maxStackDepth;
+
+    @Label("Opaque Exits")
+    @Description("Rays stopped early by an opaque hit")
+    public long opaqueExits;
+
+    @Label("Sky Fallbacks")
+    @Description("Rays that fell through to the sky")
+    public long skyFallbacks;
+
+    @Label("Pick Splits")
+    public long pickSplits;
+}
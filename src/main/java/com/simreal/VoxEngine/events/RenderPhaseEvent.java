@@ -0,0 +1,26 @@
+package com.simreal.VoxEngine.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One phase of drawing a frame: tracing the rays, or blitting the image
+ */
+@Name("com.simreal.VoxEngine.RenderPhase")
+@Label("Render Phase")
+@Category({"VoxEngine", "Rendering"})
+@Description("Time spent in one phase of drawing a frame")
+public class RenderPhaseEvent extends Event {
+    public static final String TRACE = "trace";
+    public static final String BLIT = "blit";
+
+    @Label("Phase")
+    public String phase;
+
+    public RenderPhaseEvent(String phase) {
+        this.phase = phase;
+    }
+}
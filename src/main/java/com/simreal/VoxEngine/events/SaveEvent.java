@@ -0,0 +1,25 @@
+package com.simreal.VoxEngine.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Writing a tree out to a node file
+ */
+@Name("com.simreal.VoxEngine.Save")
+@Label("Tree Save")
+@Category({"VoxEngine", "Storage"})
+public class SaveEvent extends Event {
+    @Label("Name")
+    public String name;
+
+    @Label("Nodes")
+    public int nodes;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
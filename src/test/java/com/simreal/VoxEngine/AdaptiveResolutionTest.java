@@ -0,0 +1,117 @@
+package com.simreal.VoxEngine;
+
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+import java.util.HashSet;
+import java.util.Set;
+
+public class AdaptiveResolutionTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int FOCAL = 2 * WIDTH;
+
+    private VoxTree tree;
+
+    private ViewFrame view = new ViewFrame(WIDTH, HEIGHT);
+
+    @BeforeMethod
+    private void initTree() {
+        // A plain floor with a pillar standing on it, and open air above
+        tree = Floors.floor(5, 1, (int)Color.setColor(30, 90, 30, 255));
+        for (int y=1; y<12; ++y) {
+            for (int x=14; x<18; ++x) {
+                for (int z=14; z<18; ++z) {
+                    tree.setVoxelPoint(Floors.cell(tree, x, y, z), (int)Color.setColor(200, 200, 0, 255));
+                }
+            }
+        }
+
+        // Looking down across the pillar: every ray hits, where a miss blends in a random sky
+        double edge = tree.edgeLength;
+        view.look(new Point3d(0.2 * edge, 0.6 * edge, 0.2 * edge), new Vector3d(0.3 * edge, -0.5 * edge, 0.3 * edge), FOCAL);
+    }
+
+    private int[] render(AdaptiveResolution adaptive) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        adaptive.render(tree, view, null, pixels);
+        return pixels;
+    }
+
+    @Test
+    public void testStride() {
+        // Over budget coarsens, well under it refines again
+        AdaptiveResolution adaptive = new AdaptiveResolution(WIDTH, HEIGHT, 1.0);
+        Assert.assertEquals(adaptive.stride, 1);
+        for (int frame=0; frame<20; ++frame) {
+            adaptive.update(20000000L, WIDTH * HEIGHT);
+        }
+        Assert.assertEquals(adaptive.stride, AdaptiveResolution.MAX_STRIDE);
+        for (int frame=0; frame<20; ++frame) {
+            adaptive.update(10000L, 100);
+        }
+        Assert.assertEquals(adaptive.stride, 1);
+    }
+
+    @Test
+    public void testHeadroom() {
+        // Full resolution would take 90% of the budget: fine to stay at, not to step down to
+        long nanos = 900000L;
+        AdaptiveResolution adaptive = new AdaptiveResolution(WIDTH, HEIGHT, 1.0);
+        for (int frame=0; frame<20; ++frame) {
+            adaptive.update(nanos, WIDTH * HEIGHT);
+        }
+        Assert.assertEquals(adaptive.stride, 1);
+
+        adaptive.stride = 2;
+        for (int frame=0; frame<20; ++frame) {
+            adaptive.update(nanos, WIDTH * HEIGHT);
+        }
+        Assert.assertEquals(adaptive.stride, 2);
+    }
+
+    @Test
+    public void testFullResolution() {
+        // Stride one traces every pixel, exactly
+        AdaptiveResolution adaptive = new AdaptiveResolution(WIDTH, HEIGHT, 1000.0);
+        int[] pixels = render(adaptive);
+        Assert.assertEquals(adaptive.traced, WIDTH * HEIGHT);
+
+        Vector3d facing = new Vector3d();
+        for (int y=0; y<HEIGHT; y+=7) {
+            for (int x=0; x<WIDTH; x+=5) {
+                view.pixelRay(x, y, facing);
+                Assert.assertEquals(pixels[y * WIDTH + x], (int)tree.castRay(view.viewPoint, facing, false));
+            }
+        }
+    }
+
+    @Test
+    public void testEdges() {
+        AdaptiveResolution adaptive = new AdaptiveResolution(WIDTH, HEIGHT, 1000.0);
+        int[] full = render(adaptive);
+        Set<Integer> colors = new HashSet<Integer>();
+        for (int pixel : full) {
+            colors.add(pixel);
+        }
+
+        // Coarse: a quarter of the rays across and down, but nothing smeared across the
+        // pillar's edges, so no colors that were not there before
+        adaptive.stride = AdaptiveResolution.MAX_STRIDE;
+        int[] coarse = render(adaptive);
+        Assert.assertEquals(adaptive.traced, 17 * 13);
+        for (int pixel : coarse) {
+            Assert.assertTrue(colors.contains(pixel));
+        }
+
+        // Samples are traced, not filled in
+        for (int y=0; y<HEIGHT; y+=AdaptiveResolution.MAX_STRIDE) {
+            for (int x=0; x<WIDTH; x+=AdaptiveResolution.MAX_STRIDE) {
+                Assert.assertEquals(coarse[y * WIDTH + x], full[y * WIDTH + x]);
+            }
+        }
+    }
+}
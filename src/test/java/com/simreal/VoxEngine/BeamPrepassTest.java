@@ -0,0 +1,86 @@
+package com.simreal.VoxEngine;
+
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+public class BeamPrepassTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int FOCAL = 8 * WIDTH;
+
+    private CountingNodePool pool;
+    private VoxTree tree;
+
+    private ViewFrame view = new ViewFrame(WIDTH, HEIGHT);
+
+    @BeforeMethod
+    private void initTree() {
+        // A floor one voxel deep, and open air above it
+        pool = new CountingNodePool(1024);
+        tree = Floors.floor(5, pool, 1, (int)Color.setColor(30, 90, 30, 255));
+    }
+
+    @Test
+    public void testSameColors() {
+        // Starting at the beam distance sees exactly what starting at the camera does
+        double edge = tree.edgeLength;
+        // Every ray hits the floor: a miss blends in a random sky
+        view.look(new Point3d(0.5 * edge, 0.8 * edge, 0.5 * edge), new Vector3d(0.05 * edge, -0.8 * edge, -0.05 * edge), FOCAL);
+        Point3d viewPoint = view.viewPoint;
+
+        BeamPrepass beams = new BeamPrepass(WIDTH, HEIGHT);
+        beams.trace(tree, view);
+        Vector3d ray = new Vector3d();
+
+        for (boolean grid : new boolean[] { false, true }) {
+            tree.gridTraversal = grid;
+            long fullReads = 0;
+            long beamReads = 0;
+            for (int y=0; y<HEIGHT; ++y) {
+                for (int x=0; x<WIDTH; ++x) {
+                    view.pixelRay(x, y, ray);
+                    double start = beams.start(x, y);
+                    Assert.assertTrue(start > 0.0);
+
+                    pool.reads = 0;
+                    long expected = tree.castRay(viewPoint, ray, false);
+                    fullReads += pool.reads;
+
+                    pool.reads = 0;
+                    Assert.assertEquals(tree.castRay(viewPoint, ray, start), expected);
+                    beamReads += pool.reads;
+                }
+            }
+            Assert.assertTrue(beamReads < fullReads);
+        }
+    }
+
+    @Test
+    public void testEmptyBeam() {
+        // Nothing above the floor: every beam looking up goes on forever
+        double edge = tree.edgeLength;
+        view.look(new Point3d(0.5 * edge, 0.5 * edge, 0.5 * edge), new Vector3d(0.1 * edge, 1.5 * edge, 0.0), FOCAL);
+
+        BeamPrepass beams = new BeamPrepass(WIDTH, HEIGHT);
+        beams.trace(tree, view);
+        for (int y=0; y<HEIGHT; y+=BeamPrepass.BLOCK) {
+            for (int x=0; x<WIDTH; x+=BeamPrepass.BLOCK) {
+                Assert.assertEquals(beams.start(x, y), Double.POSITIVE_INFINITY);
+            }
+        }
+    }
+
+    @Test
+    public void testSolidOrigin() {
+        // A beam starting inside the floor starts at once
+        double edge = tree.edgeLength;
+        Vector3d[] corners = {
+                new Vector3d(1, 0.1, 0.1), new Vector3d(1, 0.1, -0.1),
+                new Vector3d(1, -0.1, -0.1), new Vector3d(1, -0.1, 0.1) };
+        Assert.assertEquals(new BeamPrepass(WIDTH, HEIGHT).start(tree, new Point3d(0.5 * edge, 1.0, 0.5 * edge), corners), 0.0);
+    }
+}
@@ -34,6 +34,132 @@ public class ColorTest {
         Assert.assertEquals(Color.alpha(color), (alpha & 0xFF));
     }
 
+    /**
+     * The original floating point blend, for reference
+     */
+    private static long referenceBlend(long c1, long c2) {
+        double a1 = (double)Color.alpha(c1) / 255.0;
+        double a2 = (double)Color.alpha(c2) / 255.0;
+        double a3 = a1 + a2*(1.0-a1);
+
+        long red = (long)(((double)Color.red(c1)*a1 + (double)Color.red(c2)*a2*(1.0-a1)) / a3);
+        long green = (long)(((double)Color.green(c1)*a1 + (double)Color.green(c2)*a2*(1.0-a1)) / a3);
+        long blue = (long)(((double)Color.blue(c1)*a1 + (double)Color.blue(c2)*a2*(1.0-a1)) / a3);
+        long alpha = (long)(a3 * 255.0);
+
+        return Color.setColor((int)red, (int)green, (int)blue, (int)alpha);
+    }
+
+    /**
+     * The original floating point illuminate, for reference
+     */
+    private static long referenceIlluminate(long color, double illum) {
+        int red = Math.min(255, (int)(Color.red(color) * illum));
+        int green = Math.min(255, (int)(Color.green(color) * illum));
+        int blue = Math.min(255, (int)(Color.blue(color) * illum));
+        return Color.setColor(red, green, blue, Color.alpha(color));
+    }
+
+    private static void assertWithinOne(long actual, long expected) {
+        Assert.assertTrue(Math.abs(Color.red(actual) - Color.red(expected)) <= 1);
+        Assert.assertTrue(Math.abs(Color.green(actual) - Color.green(expected)) <= 1);
+        Assert.assertTrue(Math.abs(Color.blue(actual) - Color.blue(expected)) <= 1);
+        Assert.assertTrue(Math.abs(Color.alpha(actual) - Color.alpha(expected)) <= 1);
+        Assert.assertEquals(actual >>> 32, 0L);
+    }
+
+    @Test
+    public void blendTest() {
+        // Every pair of alphas, over channels at the extremes and in between
+        int[] channels = { 0x00, 0x01, 0x7F, 0x80, 0xC3, 0xFE, 0xFF };
+        for (int a1=0; a1<256; ++a1) {
+            for (int a2=0; a2<256; ++a2) {
+                for (int idx=0; idx<channels.length; ++idx) {
+                    int first = channels[idx];
+                    int second = channels[channels.length - 1 - idx];
+                    long c1 = Color.setColor(first, second, (first + second) >> 1, a1);
+                    long c2 = Color.setColor(second, (first * 3) & 0xFF, first, a2);
+
+                    // Both alphas zero is an empty result both ways
+                    long expected = ((a1 | a2) == 0) ? 0L : referenceBlend(c1, c2);
+                    assertWithinOne(Color.blend(c1, c2), expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void illuminateTest() {
+        for (int channel=0; channel<256; ++channel) {
+            long color = Color.setColor(channel, 255 - channel, channel >> 1, channel);
+            for (double illum=0.0; illum<=2.0; illum+=0.0078125 * 1.37) {
+                assertWithinOne(Color.illuminate(color, illum), referenceIlluminate(color, illum));
+            }
+        }
+    }
+
+    @Test
+    public void premultiplyTest() {
+        // Opaque colors are their own premultiplied form
+        long opaque = Color.setColor(0x12, 0x80, 0xFF, 0xFF);
+        Assert.assertEquals(Color.premultiply(opaque), opaque);
+        Assert.assertEquals(Color.unpremultiply(opaque), opaque);
+
+        Assert.assertEquals(Color.premultiply(Color.setColor(0xFF, 0x80, 0x00, 0x80)), Color.setColor(0x80, 0x40, 0x00, 0x80));
+        Assert.assertEquals(Color.premultiply(Color.setColor(0xFF, 0xFF, 0xFF, 0x00)), 0L);
+
+        // Back again to within what the alpha leaves of each channel
+        for (int alpha=1; alpha<256; ++alpha) {
+            for (int channel=0; channel<256; ++channel) {
+                long color = Color.setColor(channel, 255 - channel, channel >> 1, alpha);
+                long premultiplied = Color.premultiply(color);
+                Assert.assertTrue(Color.red(premultiplied) <= alpha);
+                Assert.assertTrue(Color.green(premultiplied) <= alpha);
+                Assert.assertTrue(Color.blue(premultiplied) <= alpha);
+
+                long straight = Color.unpremultiply(premultiplied);
+                int slack = (255 + alpha) / (2 * alpha);
+                Assert.assertTrue(Math.abs(Color.red(straight) - channel) <= slack);
+                Assert.assertTrue(Math.abs(Color.green(straight) - (255 - channel)) <= slack);
+                Assert.assertTrue(Math.abs(Color.blue(straight) - (channel >> 1)) <= slack);
+                Assert.assertEquals(Color.alpha(straight), alpha);
+            }
+        }
+    }
+
+    @Test
+    public void blendPremultipliedTest() {
+        // Blending premultiplied colors agrees with blending the straight ones, to
+        // within the rounding of both: the straight blend rounds down twice over
+        int[] channels = { 0x00, 0x01, 0x7F, 0x80, 0xC3, 0xFE, 0xFF };
+        for (int a1=0; a1<256; ++a1) {
+            for (int a2=0; a2<256; ++a2) {
+                for (int idx=0; idx<channels.length; ++idx) {
+                    int first = channels[idx];
+                    int second = channels[channels.length - 1 - idx];
+                    long c1 = Color.setColor(first, second, (first + second) >> 1, a1);
+                    long c2 = Color.setColor(second, (first * 3) & 0xFF, first, a2);
+
+                    long expected = Color.premultiply(Color.blend(c1, c2));
+                    long actual = Color.blendPremultiplied(Color.premultiply(c1), Color.premultiply(c2));
+                    Assert.assertTrue(Math.abs(Color.red(actual) - Color.red(expected)) <= 3);
+                    Assert.assertTrue(Math.abs(Color.green(actual) - Color.green(expected)) <= 3);
+                    Assert.assertTrue(Math.abs(Color.blue(actual) - Color.blue(expected)) <= 3);
+                    Assert.assertTrue(Math.abs(Color.alpha(actual) - Color.alpha(expected)) <= 1);
+                    Assert.assertTrue(Color.red(actual) <= Color.alpha(actual));
+                    Assert.assertTrue(Color.green(actual) <= Color.alpha(actual));
+                    Assert.assertTrue(Color.blue(actual) <= Color.alpha(actual));
+                }
+            }
+        }
+
+        // Lighting saturates at the alpha, as it does at 255 for straight colors
+        long color = Color.setColor(200, 100, 10, 128);
+        long lit = Color.illuminatePremultiplied(Color.premultiply(color), 1.5);
+        Assert.assertEquals(lit, Color.setColor(128, 75, 7, 128));
+        assertWithinOne(lit, Color.premultiply(Color.illuminate(color, 1.5)));
+    }
+
     @Test
     public void colorStringTest() {
         long color = Color.setColor(1, 2, 3, 4);
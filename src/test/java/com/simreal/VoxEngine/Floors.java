@@ -0,0 +1,57 @@
+package com.simreal.VoxEngine;
+
+import javax.vecmath.Point3i;
+
+/**
+ * The scene the render tests share: a floor of voxels across the bottom of the
+ * world, some layers deep, and open air above it.  Tests add their own pillars,
+ * roofs and edits on top.
+ */
+class Floors {
+
+    /**
+     * The color of the floor at column (x, z), in voxels
+     */
+    interface Shade {
+        int color(int x, int z);
+    }
+
+    static VoxTree floor(int depth, int layers, int color) {
+        return floor(depth, null, layers, color);
+    }
+
+    static VoxTree floor(int depth, NodePool pool, int layers, final int color) {
+        return floor(depth, pool, layers, new Shade() {
+            @Override
+            public int color(int x, int z) {
+                return color;
+            }
+        });
+    }
+
+    /**
+     * A tree over pool (or its own pool, if null) with layers of voxels along its
+     * floor, each colored by shade
+     */
+    static VoxTree floor(int depth, NodePool pool, int layers, Shade shade) {
+        VoxTree tree = new VoxTree(depth, pool);
+        int cells = tree.edgeLength / tree.stride();
+        for (int x=0; x<cells; ++x) {
+            for (int z=0; z<cells; ++z) {
+                for (int y=0; y<layers; ++y) {
+                    tree.setVoxelPoint(cell(tree, x, y, z), shade.color(x, z));
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * The center of the voxel at (x, y, z), counted in voxels
+     */
+    static Point3i cell(VoxTree tree, int x, int y, int z) {
+        int stride = tree.stride();
+        int offset = stride >> 1;
+        return new Point3i((x*stride)+offset, (y*stride)+offset, (z*stride)+offset);
+    }
+}
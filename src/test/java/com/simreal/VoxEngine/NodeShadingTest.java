@@ -0,0 +1,151 @@
+package com.simreal.VoxEngine;
+
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import javax.vecmath.Vector3d;
+import java.util.Random;
+
+public class NodeShadingTest {
+
+    private static final int DEPTH = 5;
+    private static final int FLOOR = (int)Color.setColor(30, 90, 30, 255);
+
+    private VoxTree tree;
+    private int stride;
+
+    @BeforeMethod
+    private void initTree() {
+        // A floor two voxels deep, and open air above it
+        tree = Floors.floor(DEPTH, 2, FLOOR);
+        stride = tree.stride();
+    }
+
+    private Point3i cell(int x, int y, int z) {
+        return Floors.cell(tree, x, y, z);
+    }
+
+    /**
+     * The node index of the leaf holding a point, without splitting anything
+     */
+    private int leaf(Point3i point) {
+        int nodeIndex = 0;
+        long node = tree.nodePool.node(0);
+        int scale = tree.edgeLength;
+        while (!Node.isLeaf(node)) {
+            scale >>= 1;
+            int octant = (((point.x & scale) != 0) ? 4 : 0) | (((point.y & scale) != 0) ? 2 : 0) | (((point.z & scale) != 0) ? 1 : 0);
+            nodeIndex = Node.child(node) + octant;
+            node = tree.nodePool.node(nodeIndex);
+        }
+        return nodeIndex;
+    }
+
+    /**
+     * Every colored leaf's entry matches shading computed from scratch
+     */
+    private void assertCurrent() {
+        NodeShading fresh = new NodeShading(tree);
+        fresh.update(0, 0, 0, tree.edgeLength);
+        assertSame(tree.shading, fresh, 0, tree.nodePool.node(0));
+    }
+
+    private void assertSame(NodeShading shading, NodeShading fresh, int nodeIndex, long node) {
+        if (Node.isLeaf(node)) {
+            if (Node.color(node) != 0) {
+                Assert.assertEquals(shading.get(nodeIndex), fresh.get(nodeIndex), "Node " + nodeIndex);
+            }
+            return;
+        }
+        int child = Node.child(node);
+        for (int idx=0; idx<8; ++idx) {
+            assertSame(shading, fresh, child + idx, tree.nodePool.node(child + idx));
+        }
+    }
+
+    @Test
+    public void testFloor() {
+        tree.computeShading();
+
+        // Open sky above, ground below (the world carries on past its bottom)
+        int shade = tree.shading.get(leaf(cell(16, 1, 16)));
+        Assert.assertEquals(NodeShading.normalX(shade), 0.0);
+        Assert.assertEquals(NodeShading.normalY(shade), 1.0);
+        Assert.assertEquals(NodeShading.normalZ(shade), 0.0);
+        Assert.assertEquals(NodeShading.visibility(shade), 1.0);
+
+        // Buried all round: no direction to shade from
+        int cells = tree.edgeLength / stride;
+        for (int x=0; x<cells; ++x) {
+            for (int z=0; z<cells; ++z) {
+                tree.setVoxelPoint(cell(x, 2, z), FLOOR);
+            }
+        }
+        tree.setVoxelPoint(cell(16, 1, 16), (int)Color.setColor(200, 0, 0, 255));
+        Assert.assertEquals(tree.shading.get(leaf(cell(16, 1, 16))), NodeShading.NONE);
+    }
+
+    @Test
+    public void testOcclusion() {
+        tree.computeShading();
+        int open = tree.shading.get(leaf(cell(10, 1, 10)));
+
+        // A pillar next door (to the merged 2x2x2 block of floor) shades the floor
+        // beside it, and tips its normal away
+        for (int y=2; y<5; ++y) {
+            tree.setVoxelPoint(cell(12, y, 10), FLOOR);
+        }
+        int shaded = tree.shading.get(leaf(cell(10, 1, 10)));
+        Assert.assertTrue(NodeShading.visibility(shaded) < NodeShading.visibility(open));
+        Assert.assertTrue(NodeShading.normalX(shaded) < 0.0);
+        Assert.assertTrue(NodeShading.normalY(shaded) > 0.0);
+
+        // ... and its own face toward the floor is in a corner too
+        int corner = tree.shading.get(leaf(cell(12, 2, 10)));
+        Assert.assertTrue(NodeShading.visibility(corner) < 1.0);
+    }
+
+    @Test
+    public void testIncremental() {
+        tree.computeShading();
+
+        // Scatter edits over the floor, merging and splitting as they go
+        Random rand = new Random(3);
+        int cells = tree.edgeLength / stride;
+        for (int cnt=0; cnt<300; ++cnt) {
+            int color = rand.nextBoolean() ? (int)Color.setColor(rand.nextInt(256), 40, 40, 255) : 0;
+            tree.setVoxelPoint(cell(rand.nextInt(cells), 1 + rand.nextInt(4), rand.nextInt(cells)), color);
+        }
+        assertCurrent();
+
+        // Moving nodes around carries their entries
+        tree.relayout();
+        assertCurrent();
+        while (!tree.defragment(Long.MAX_VALUE)) {
+        }
+        assertCurrent();
+    }
+
+    @Test
+    public void testFlatShading() {
+        // A flat floor shades just as its faces did
+        double edge = tree.edgeLength;
+        Point3d origin = new Point3d(0.5 * edge, 0.9 * edge, 0.5 * edge);
+        Random rand = new Random(9);
+        Vector3d[] rays = new Vector3d[500];
+        long[] expected = new long[rays.length];
+        for (int idx=0; idx<rays.length; ++idx) {
+            rays[idx] = new Vector3d(rand.nextDouble() * edge, 0.0, rand.nextDouble() * edge);
+            rays[idx].sub(origin);
+            rays[idx].normalize();
+            expected[idx] = tree.castRay(origin, rays[idx], false);
+        }
+
+        tree.computeShading();
+        for (int idx=0; idx<rays.length; ++idx) {
+            Assert.assertEquals(tree.castRay(origin, rays[idx], false), expected[idx]);
+        }
+    }
+}
@@ -88,6 +88,59 @@ public class NodeTest {
         Assert.assertEquals(Node.alpha(node), alpha);
     }
 
+    @DataProvider(name = "farChildren")
+    private Object[][] createFarChildren() {
+        return new Object[][] {
+                // Base node, child index
+                {0L, Node.NEAR_CHILD_LIMIT + 1},
+                {0L, Node.NEAR_CHILD_LIMIT + 8*12345 + 1},
+                {0L, NodePool.MAX_POOL_SIZE - 7},
+                {0L, Integer.MAX_VALUE - 6},
+                {~0L, Node.NEAR_CHILD_LIMIT + 1},
+                {~0L, Integer.MAX_VALUE - 6},
+        };
+    }
+
+    @Test(dataProvider = "farChildren")
+    public void nodeFarChildTest(long node, int child) {
+        long color = Node.color(node);
+        boolean leaf = Node.isLeaf(node);
+        boolean used = Node.isUsed(node);
+
+        node = Node.setChild(node, child);
+        Assert.assertTrue(Node.isFar(node));
+        Assert.assertEquals(Node.child(node), child);
+        Assert.assertEquals(Node.color(node), color);
+        Assert.assertEquals(Node.isLeaf(node), leaf);
+        Assert.assertEquals(Node.isUsed(node), used);
+        Assert.assertEquals(Node.depth(node), Node.MAX_DEPTH);
+
+        // ... and come back near cleanly
+        node = Node.setChild(node, 9);
+        Assert.assertFalse(Node.isFar(node));
+        Assert.assertEquals(Node.child(node), 9);
+        Assert.assertEquals(Node.color(node), color);
+    }
+
+    @Test(expectedExceptions = RuntimeException.class)
+    public void nodeFarChildNotTileTest() {
+        Node.setChild(0L, Node.NEAR_CHILD_LIMIT + 2);
+    }
+
+    @Test
+    public void nodeNextTest() {
+        int[] nexts = { 0, 1, Node.NEAR_CHILD_LIMIT - 1, Node.NEAR_CHILD_LIMIT, Node.NEAR_CHILD_LIMIT + 2, Integer.MAX_VALUE };
+        for (int next : nexts) {
+            long node = Node.setNext(0L, next);
+            Assert.assertEquals(Node.next(node), next);
+            Assert.assertFalse(Node.isUsed(node));
+            Assert.assertFalse(Node.isFar(node));
+        }
+
+        // Links written as plain children, as older pools hold them, still read back
+        Assert.assertEquals(Node.next(Node.setChild(0L, 12345)), 12345);
+    }
+
     @Test(dataProvider = "leaf")
     public void nodeLeafTest(long node, boolean leaf, int depth) {
         node = Node.setLeaf(node, leaf);
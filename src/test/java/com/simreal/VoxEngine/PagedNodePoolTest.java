@@ -0,0 +1,157 @@
+package com.simreal.VoxEngine;
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+
+import javax.vecmath.Point3i;
+import java.io.File;
+
+public class PagedNodePoolTest {
+
+    private static final int DEPTH = 4;
+    private static final int CACHE_FRAMES = 4;
+
+    private File file;
+
+    @BeforeMethod
+    private void initFile() throws Exception {
+        file = File.createTempFile("PagedNodePoolTest", ".node");
+        file.deleteOnExit();
+    }
+
+    @AfterMethod
+    private void removeFile() {
+        file.delete();
+    }
+
+    private VoxTree populatedTree() {
+        Texture texture = new Texture();
+        texture.scale = 0.01;
+        texture.seaLevel = 96;
+        texture.quantLevel = 6;
+        texture.transform = Texture.YCLAMP | Texture.QUANT;
+
+        VoxTree tree = new VoxTree(DEPTH);
+        TerrainGenerator generator = new TerrainGenerator(texture);
+        generator.threads = 1;
+        generator.coarseSpan = 0.0;
+        generator.generate(tree);
+        return tree;
+    }
+
+    @Test
+    public void faultTest() throws Exception {
+        VoxTree tree = populatedTree();
+        PagedNodePool.create(file, tree.nodePool);
+
+        PagedNodePool pool = new PagedNodePool(file, CACHE_FRAMES);
+        Assert.assertEquals(pool.size(), tree.nodePool.size());
+
+        // Sweep the whole pool through a tiny cache, twice
+        for (int pass=0; pass<2; ++pass) {
+            for (int idx=0; idx<pool.size(); idx+=7) {
+                Assert.assertEquals(pool.node(idx), tree.nodePool.node(idx));
+            }
+        }
+        pool.close();
+    }
+
+    @Test
+    public void writeBackTest() throws Exception {
+        VoxTree tree = populatedTree();
+        PagedNodePool.create(file, tree.nodePool);
+
+        // Edit through the paged pool, forcing evictions of dirty pages
+        PagedNodePool pool = new PagedNodePool(file, CACHE_FRAMES);
+        VoxTree paged = new VoxTree(DEPTH, pool);
+        int stride = tree.stride();
+        int offset = stride >> 1;
+        for (int idx=0; idx<16; ++idx) {
+            Point3i voxel = new Point3i(idx*stride + offset, (15-idx)*stride + offset, idx*stride + offset);
+            int color = (int)Color.setColor(idx*16, 255, 0, 255);
+            tree.setVoxelPoint(voxel, color);
+            paged.setVoxelPoint(voxel, color);
+        }
+        pool.close();
+
+        // ... and everything must come back
+        PagedNodePool reopened = new PagedNodePool(file, CACHE_FRAMES);
+        VoxTree reloaded = new VoxTree(DEPTH, reopened);
+        Assert.assertEquals(reopened.snapshot().numUsed, tree.nodePool.snapshot().numUsed);
+        Assert.assertEquals(reopened.snapshot().numLeaves, tree.nodePool.snapshot().numLeaves);
+        int cells = 1 << DEPTH;
+        for (int x=0; x<cells; ++x) {
+            for (int y=0; y<cells; ++y) {
+                for (int z=0; z<cells; ++z) {
+                    Point3i voxel = new Point3i(x*stride + offset, y*stride + offset, z*stride + offset);
+                    Assert.assertEquals(reloaded.testVoxelPoint(voxel), tree.testVoxelPoint(voxel));
+                }
+            }
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void growTest() throws Exception {
+        NodePool source = new NodePool(PagedNodePool.PAGE_NODES + 3);
+        source.getFree();
+        PagedNodePool.create(file, source);
+
+        PagedNodePool pool = new PagedNodePool(file, CACHE_FRAMES);
+        int tiles = (4 * PagedNodePool.PAGE_NODES) / 8;
+        for (int idx=0; idx<tiles; ++idx) {
+            int tile = pool.getFreeTile();
+            pool.set(tile, Node.setColor(pool.node(tile), idx));
+        }
+        Assert.assertTrue(pool.size() > 4 * PagedNodePool.PAGE_NODES);
+        pool.close();
+    }
+
+    @Test
+    public void residentTest() throws Exception {
+        VoxTree tree = populatedTree();
+        PagedNodePool.create(file, tree.nodePool);
+
+        PagedNodePool pool = new PagedNodePool(file, CACHE_FRAMES);
+        int last = tree.nodePool.size() - 1;
+
+        // The first ask starts a load; eventually the page shows up without a fault
+        boolean resident = pool.resident(last);
+        for (int wait=0; !resident && (wait<1000); ++wait) {
+            Thread.sleep(1);
+            resident = pool.resident(last);
+        }
+        Assert.assertTrue(resident);
+        Assert.assertEquals(pool.node(last), tree.nodePool.node(last));
+        pool.close();
+    }
+
+    @Test
+    public void trimTest() throws Exception {
+        VoxTree tree = populatedTree();
+        PagedNodePool.create(file, tree.nodePool);
+        long oldLength = file.length();
+
+        PagedNodePool pool = new PagedNodePool(file, CACHE_FRAMES);
+        VoxTree paged = new VoxTree(DEPTH, pool);
+        while (!paged.defragment(1000000L)) {
+        }
+        pool.close();
+        Assert.assertTrue(file.length() < oldLength);
+
+        PagedNodePool reopened = new PagedNodePool(file, CACHE_FRAMES);
+        VoxTree reloaded = new VoxTree(DEPTH, reopened);
+        int stride = tree.stride();
+        int offset = stride >> 1;
+        int cells = 1 << DEPTH;
+        for (int x=0; x<cells; ++x) {
+            for (int y=0; y<cells; ++y) {
+                for (int z=0; z<cells; ++z) {
+                    Point3i voxel = new Point3i(x*stride + offset, y*stride + offset, z*stride + offset);
+                    Assert.assertEquals(reloaded.testVoxelPoint(voxel), tree.testVoxelPoint(voxel));
+                }
+            }
+        }
+        reopened.close();
+    }
+}
@@ -0,0 +1,74 @@
+package com.simreal.VoxEngine;
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+
+public class PathCacheTest {
+
+    private static WidePath path(int... children) {
+        WidePath path = new WidePath();
+        for (int child : children) {
+            path.addChild(child);
+        }
+        return path;
+    }
+
+    @Test
+    public void putGetTest() {
+        PathCache cache = new PathCache(64);
+        Assert.assertEquals(cache.get(path(1, 2, 3)), PathCache.MISSING);
+
+        cache.put(path(1, 2, 3), 17);
+        cache.put(path(1, 2), 9);
+        Assert.assertEquals(cache.get(path(1, 2, 3)), 17);
+        Assert.assertEquals(cache.get(path(1, 2)), 9);
+        Assert.assertEquals(cache.get(path(1)), PathCache.MISSING);
+        Assert.assertEquals(cache.get(path(1, 2, 4)), PathCache.MISSING);
+
+        cache.put(path(1, 2, 3), 25);
+        Assert.assertEquals(cache.get(path(1, 2, 3)), 25);
+
+        cache.clear();
+        Assert.assertEquals(cache.get(path(1, 2, 3)), PathCache.MISSING);
+        Assert.assertEquals(cache.get(path(1, 2)), PathCache.MISSING);
+    }
+
+    @Test
+    public void prefixTest() {
+        // Children left past the depth are not part of the key
+        PathCache cache = new PathCache(64);
+        WidePath deep = new WidePath();
+        for (int level=0; level<30; ++level) {
+            deep.addChild(level & 7);
+        }
+        cache.put(new WidePath().set(deep).setDepth(25), 3);
+        cache.put(new WidePath().set(deep).setDepth(7), 5);
+
+        WidePath shallow = new WidePath();
+        for (int level=0; level<25; ++level) {
+            shallow.addChild(level & 7);
+        }
+        Assert.assertEquals(cache.get(shallow), 3);
+        Assert.assertEquals(cache.get(shallow.setDepth(7)), 5);
+        Assert.assertEquals(cache.get(path(0, 1, 2, 3, 4, 5, 6)), 5);
+    }
+
+    @Test
+    public void overflowTest() {
+        // Far more paths than slots: anything found must still be right
+        PathCache cache = new PathCache(16);
+        for (int idx=0; idx<512; ++idx) {
+            cache.put(path(idx & 7, (idx >> 3) & 7, (idx >> 6) & 7), idx);
+        }
+        int found = 0;
+        for (int idx=0; idx<512; ++idx) {
+            int index = cache.get(path(idx & 7, (idx >> 3) & 7, (idx >> 6) & 7));
+            if (index != PathCache.MISSING) {
+                Assert.assertEquals(index, idx);
+                ++found;
+            }
+        }
+        Assert.assertTrue(found > 0);
+        Assert.assertTrue(found <= 16);
+    }
+}
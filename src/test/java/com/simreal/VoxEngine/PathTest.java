@@ -123,4 +123,45 @@ public class PathTest {
 
     }
 */
+
+    @Test
+    public void mortonTest() {
+        Random rand = new Random(1);
+
+        // Interleaving must agree with bisection everywhere, cell boundaries included
+        for (int depth=0; depth<=8; ++depth) {
+            for (int edge : new int[] { 2 << depth, 16 << depth, 1 << depth }) {
+                for (int cnt=0; cnt<500; ++cnt) {
+                    Point3i position = new Point3i(rand.nextInt(edge+1), rand.nextInt(edge+1), rand.nextInt(edge+1));
+                    long path = Path.fromPosition(position, edge, depth);
+                    Assert.assertEquals(path, Path.fromPositionSearch(position, edge, depth), position + " at depth " + depth);
+                    Assert.assertEquals(Path.toPosition(path, edge), Path.toPositionSearch(path, edge));
+                }
+            }
+        }
+
+        // Full depth, both ends of the range
+        int edge = 1 << Path.PATH_MAX_DEPTH;
+        for (Point3i position : new Point3i[] { new Point3i(0, 0, 0), new Point3i(edge, edge, edge), new Point3i(1, edge, 2) }) {
+            long path = Path.fromPosition(position, edge, Path.PATH_MAX_DEPTH);
+            Assert.assertEquals(path, Path.fromPositionSearch(position, edge, Path.PATH_MAX_DEPTH));
+            Assert.assertEquals(Path.toPosition(path, edge), Path.toPositionSearch(path, edge));
+        }
+
+        // Edges that are not a power of two fall back to bisection
+        Point3i position = new Point3i(37, 5, 90);
+        Assert.assertEquals(Path.fromPosition(position, 96, 4), Path.fromPositionSearch(position, 96, 4));
+    }
+
+    @Test
+    public void spreadTest() {
+        Random rand = new Random(2);
+        for (int cnt=0; cnt<1000; ++cnt) {
+            long value = rand.nextInt(1 << 21);
+            long spread = Path.spread(value);
+            Assert.assertEquals(spread & ~0x1249249249249249L, 0L);
+            Assert.assertEquals(Long.bitCount(spread), Long.bitCount(value));
+            Assert.assertEquals(Path.compact(spread), value);
+        }
+    }
 }
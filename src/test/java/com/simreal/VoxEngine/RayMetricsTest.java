@@ -0,0 +1,67 @@
+package com.simreal.VoxEngine;
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class RayMetricsTest {
+
+    @Test
+    public void bucketTest() {
+        Assert.assertEquals(RayMetrics.bucket(0), 0);
+        Assert.assertEquals(RayMetrics.bucket(1), 1);
+        Assert.assertEquals(RayMetrics.bucket(3), 2);
+        Assert.assertEquals(RayMetrics.bucket(4), 3);
+        Assert.assertEquals(RayMetrics.bucket(Integer.MAX_VALUE), RayMetrics.HISTOGRAM_BUCKETS - 1);
+    }
+
+    @Test
+    public void frameTest() throws Exception {
+        RayMetrics.endFrame();  // Flush anything left from other tests
+        long frames = RayMetrics.get().getFrames();
+
+        RayMetrics.Counters counters = RayMetrics.counters();
+        counters.ray(4, 3);
+        counters.ray(2, 5);
+        ++counters.opaqueExits;
+
+        // Another thread's counts land in the same frame
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                RayMetrics.Counters counters = RayMetrics.counters();
+                counters.ray(0, 0);
+                ++counters.skyFallbacks;
+                ++counters.pickSplits;
+            }
+        });
+        other.start();
+        other.join();
+
+        RayMetrics.endFrame();
+        RayMetricsMBean metrics = RayMetrics.get();
+        Assert.assertEquals(metrics.getFrames(), frames + 1);
+        Assert.assertEquals(metrics.getRays(), 3);
+        Assert.assertEquals(metrics.getMeanNodesPerRay(), 2.0, 0.0001);
+        Assert.assertEquals(metrics.getMaxStackDepth(), 5);
+        Assert.assertEquals(metrics.getOpaqueExitRate(), 1.0 / 3.0, 0.0001);
+        Assert.assertEquals(metrics.getSkyFallbackRate(), 1.0 / 3.0, 0.0001);
+        Assert.assertEquals(metrics.getPickSplits(), 1);
+
+        long[] histogram = metrics.getNodesPerRayHistogram();
+        Assert.assertEquals(histogram[0], 1);
+        Assert.assertEquals(histogram[2], 1);
+        Assert.assertEquals(histogram[3], 1);
+
+        // ... and over JMX
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Assert.assertEquals(server.getAttribute(new ObjectName(RayMetrics.OBJECT_NAME), "Rays"), 3L);
+
+        // The next frame starts from zero
+        RayMetrics.endFrame();
+        Assert.assertEquals(RayMetrics.get().getRays(), 0);
+    }
+}
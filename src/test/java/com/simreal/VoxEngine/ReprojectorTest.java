@@ -0,0 +1,136 @@
+package com.simreal.VoxEngine;
+
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import javax.vecmath.Vector3d;
+
+public class ReprojectorTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int FOCAL = 2 * WIDTH;
+
+    private VoxTree tree;
+
+    private ViewFrame view = new ViewFrame(WIDTH, HEIGHT);
+
+    @BeforeMethod
+    private void initTree() {
+        // A floor of voxels all different colors, and open air above it
+        tree = Floors.floor(5, null, 1, new Floors.Shade() {
+            @Override
+            public int color(int x, int z) {
+                return (int)Color.setColor(8*x, 8*z, 128, 255);
+            }
+        });
+    }
+
+    /**
+     * A view from viewPoint toward target
+     */
+    private void look(Point3d viewPoint, Point3d target) {
+        Vector3d forward = new Vector3d();
+        forward.sub(target, viewPoint);
+        view.look(viewPoint, forward, FOCAL);
+    }
+
+    /**
+     * Every pixel traced from scratch
+     */
+    private int[] fullFrame() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        new Reprojector(WIDTH, HEIGHT).render(tree, view, null, pixels);
+        return pixels;
+    }
+
+    private void lookDown() {
+        // Every ray hits the floor: a miss blends in a random sky
+        double edge = tree.edgeLength;
+        look(new Point3d(0.5 * edge, 0.5 * edge, 0.5 * edge), new Point3d(0.55 * edge, 0.0, 0.45 * edge));
+    }
+
+    @Test
+    public void testStill() {
+        lookDown();
+        Reprojector reprojector = new Reprojector(WIDTH, HEIGHT);
+        int[] first = new int[WIDTH * HEIGHT];
+        reprojector.render(tree, view, null, first);
+        Assert.assertEquals(reprojector.traced, WIDTH * HEIGHT);
+
+        // Nothing moved: only the rolling refresh is traced
+        int[] second = new int[WIDTH * HEIGHT];
+        reprojector.render(tree, view, null, second);
+        Assert.assertEquals(reprojector.traced, WIDTH * HEIGHT / reprojector.refreshPeriod);
+        Assert.assertEquals(second, first);
+    }
+
+    @Test
+    public void testEdit() {
+        lookDown();
+        Reprojector reprojector = new Reprojector(WIDTH, HEIGHT);
+        tree.addEditListener(reprojector);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        reprojector.render(tree, view, null, pixels);
+
+        // A block on the floor in the middle of the view
+        double edge = tree.edgeLength;
+        int stride = tree.stride();
+        tree.setVoxelPoint(new Point3i((int)(0.55 * edge), stride + (stride >> 1), (int)(0.45 * edge)),
+                (int)Color.setColor(255, 255, 0, 255));
+        reprojector.render(tree, view, null, pixels);
+        Assert.assertTrue(reprojector.traced < WIDTH * HEIGHT / 2);
+        Assert.assertEquals(pixels, fullFrame());
+
+        // Nobody listening, nothing invalidated
+        tree.removeEditListener(reprojector);
+        tree.setVoxelPoint(new Point3i((int)(0.55 * edge), stride + (stride >> 1), (int)(0.45 * edge)), 0);
+        reprojector.render(tree, view, null, pixels);
+        Assert.assertEquals(reprojector.traced, WIDTH * HEIGHT / reprojector.refreshPeriod);
+    }
+
+    private static boolean nearby(int[] pixels, int x, int y, int pixel) {
+        for (int nearY=y-1; nearY<=y+1; ++nearY) {
+            for (int nearX=x-1; nearX<=x+1; ++nearX) {
+                if (pixels[nearY * WIDTH + nearX] == pixel) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testSlowMove() {
+        lookDown();
+        Reprojector reprojector = new Reprojector(WIDTH, HEIGHT);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        reprojector.render(tree, view, null, pixels);
+
+        // Drift sideways and turn a little, a frame at a time
+        double edge = tree.edgeLength;
+        for (int frame=1; frame<=8; ++frame) {
+            look(new Point3d(0.5 * edge + frame, 0.5 * edge, 0.5 * edge), new Point3d(0.55 * edge + 2 * frame, 0.0, 0.45 * edge));
+            reprojector.render(tree, view, null, pixels);
+            Assert.assertTrue(reprojector.traced < WIDTH * HEIGHT / 4);
+
+            // Reused points land on the nearest pixel, so are off by half a pixel at most:
+            // any that differ match a neighbor (inside the border, where there are neighbors)
+            int[] expected = fullFrame();
+            int same = 0;
+            for (int y=0; y<HEIGHT; ++y) {
+                for (int x=0; x<WIDTH; ++x) {
+                    int pixel = pixels[y * WIDTH + x];
+                    if (pixel == expected[y * WIDTH + x]) {
+                        ++same;
+                    } else if ((x > 0) && (x < WIDTH-1) && (y > 0) && (y < HEIGHT-1)) {
+                        Assert.assertTrue(nearby(expected, x, y, pixel));
+                    }
+                }
+            }
+            Assert.assertTrue(same > pixels.length * 0.9);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.simreal.VoxEngine;
+
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+public class ShadowPassTest {
+
+    private VoxTree tree;
+    private int stride;
+
+    @BeforeMethod
+    private void initTree() {
+        // A floor, with a low roof over one corner of it
+        tree = Floors.floor(4, 1, (int)Color.setColor(200, 200, 200, 255));
+        stride = tree.stride();
+        int cells = tree.edgeLength / stride;
+        for (int x=0; x<cells/2; ++x) {
+            for (int z=0; z<cells/2; ++z) {
+                tree.setVoxelPoint(Floors.cell(tree, x, 2, z), (int)Color.setColor(90, 90, 90, 255));
+            }
+        }
+    }
+
+    @Test
+    public void testShadows() {
+        // Only the grid traversal leaves out what is behind a camera inside the world
+        tree.gridTraversal = true;
+        double edge = tree.edgeLength;
+        Vector3d down = new Vector3d(0.01, -1, 0.02);
+        down.normalize();
+        Point3d[] views = {
+                new Point3d(0.4 * edge, 1.5 * stride, 0.4 * edge),      // Under the roof
+                new Point3d(0.15 * edge, 1.5 * stride, 0.85 * edge),    // In the open, lit from low
+                new Point3d(0.15 * edge, 1.5 * stride, 0.85 * edge),    // Looking at the sky
+        };
+        Vector3d up = new Vector3d(0.01, 1, 0.02);
+        up.normalize();
+
+        ShadowPass shadows = new ShadowPass(views.length);
+        int[] pixels = new int[views.length];
+        int[] unshadowed = new int[views.length];
+        for (int idx=0; idx<views.length; ++idx) {
+            Vector3d facing = (idx < 2) ? down : up;
+            pixels[idx] = (int)tree.castRay(views[idx], facing, false);
+            unshadowed[idx] = pixels[idx];
+            shadows.add(idx, views[idx], facing, tree.hitDistance);
+        }
+        shadows.apply(tree, pixels);
+
+        Assert.assertEquals(shadows.cast, 2);
+        Assert.assertEquals(pixels[0], (int)Color.illuminate(unshadowed[0], ShadowPass.SHADOW));
+        Assert.assertEquals(pixels[1], unshadowed[1]);
+        Assert.assertEquals(pixels[2], unshadowed[2]);
+    }
+
+    @Test
+    public void testSoftShadows() {
+        // Well under the roof is as dark as a hard shadow; out in the open, lit
+        tree.gridTraversal = true;
+        double edge = tree.edgeLength;
+        Vector3d down = new Vector3d(0.01, -1, 0.02);
+        down.normalize();
+        Point3d[] views = {
+                new Point3d(0.4 * edge, 1.5 * stride, 0.4 * edge),
+                new Point3d(0.15 * edge, 1.5 * stride, 0.85 * edge),
+        };
+
+        ShadowPass shadows = new ShadowPass(views.length);
+        shadows.aperture = 0.05;
+        int[] pixels = new int[views.length];
+        int[] unshadowed = new int[views.length];
+        for (int idx=0; idx<views.length; ++idx) {
+            pixels[idx] = (int)tree.castRay(views[idx], down, false);
+            unshadowed[idx] = pixels[idx];
+            shadows.add(idx, views[idx], down, tree.hitDistance);
+        }
+        shadows.apply(tree, pixels);
+
+        Assert.assertEquals(shadows.cast, 2);
+        int hard = (int)Color.illuminate(unshadowed[0], ShadowPass.SHADOW);
+        Assert.assertTrue(Math.abs(Color.red(pixels[0]) - Color.red(hard)) <= 2, "Red " + Color.red(pixels[0]));
+        Assert.assertEquals(pixels[1], unshadowed[1]);
+    }
+}
@@ -0,0 +1,79 @@
+package com.simreal.VoxEngine;
+
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+public class SkyCacheTest {
+
+    @Test
+    public void positionTest() {
+        Assert.assertEquals(SkyCache.position(-1.0), 0.0);
+        Assert.assertEquals(SkyCache.position(0.0), (SkyCache.SIZE - 1) / 2.0);
+        Assert.assertEquals(SkyCache.position(1.0), SkyCache.SIZE - 1.0);
+
+        // Rounding error past the ends clamps
+        Assert.assertEquals(SkyCache.position(-1.0000001), 0.0);
+        Assert.assertEquals(SkyCache.position(1.0000001), SkyCache.SIZE - 1.0);
+    }
+
+    @Test
+    public void lookupTest() {
+        int[] sky = new int[SkyCache.SIZE * SkyCache.SIZE];
+        int last = SkyCache.SIZE - 1;
+        sky[0] = (int)Color.setColor(0, 0, 0, 255);
+        sky[1] = (int)Color.setColor(200, 0, 0, 255);
+        sky[SkyCache.SIZE] = (int)Color.setColor(0, 100, 0, 255);
+        sky[SkyCache.SIZE + 1] = (int)Color.setColor(200, 100, 40, 255);
+        sky[last * SkyCache.SIZE + last] = (int)Color.setColor(10, 20, 30, 40);
+
+        // On an entry reads just that entry, the far edges included
+        Assert.assertEquals(SkyCache.lookup(sky, 1.0, 0.0), sky[1]);
+        Assert.assertEquals(SkyCache.lookup(sky, 0.0, 1.0), sky[SkyCache.SIZE]);
+        Assert.assertEquals(SkyCache.lookup(sky, last, last), sky[last * SkyCache.SIZE + last]);
+
+        // Between entries blends each channel
+        long color = SkyCache.lookup(sky, 0.5, 0.0) & 0xFFFFFFFFL;
+        Assert.assertEquals(Color.red(color), 100);
+        Assert.assertEquals(Color.alpha(color), 255);
+        color = SkyCache.lookup(sky, 0.5, 0.5) & 0xFFFFFFFFL;
+        Assert.assertEquals(Color.red(color), 100);
+        Assert.assertEquals(Color.green(color), 50);
+        Assert.assertEquals(Color.blue(color), 10);
+        Assert.assertEquals(Color.alpha(color), 255);
+    }
+
+    @Test
+    public void drawTest() {
+        // Every direction is opaque, and the noise shows through the grain
+        Texture texture = new Texture();
+        texture.scale = 50;
+        texture.quantLevel = 6;
+        texture.transform = Texture.QUANT;
+        int[] sky = new SkyCache(texture).draw(new int[SkyCache.SIZE * SkyCache.SIZE]);
+
+        int darker = 0;
+        for (int color : sky) {
+            Assert.assertEquals(Color.alpha(color & 0xFFFFFFFFL), 255);
+            Assert.assertEquals(Color.green(color & 0xFFFFFFFFL), 0);
+            Assert.assertEquals(Color.blue(color & 0xFFFFFFFFL), 0);
+            if (Color.red(color & 0xFFFFFFFFL) < 128) {
+                ++darker;
+            }
+        }
+        Assert.assertTrue(darker > sky.length / 2);
+    }
+
+    @Test
+    public void missTest() {
+        // Looking away from the world sees the sky
+        VoxTree tree = new VoxTree(4);
+        Vector3d ray = new Vector3d(0.3, 0.4, -1.0);
+        ray.normalize();
+        long color = tree.castRay(new Point3d(10.0, 10.0, -10.0), ray, false);
+        Assert.assertEquals(Color.alpha(color), 255);
+        Assert.assertEquals(tree.hitDistance, Double.POSITIVE_INFINITY);
+    }
+}
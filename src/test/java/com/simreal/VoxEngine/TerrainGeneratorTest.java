@@ -0,0 +1,231 @@
+package com.simreal.VoxEngine;
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import javax.vecmath.Vector3d;
+
+public class TerrainGeneratorTest {
+
+    private static final int DEPTH = 4;
+
+    private VoxTree tree;
+    private Texture texture;
+
+    @BeforeMethod
+    private void initTree() {
+        tree = new VoxTree(DEPTH);
+
+        texture = new Texture();
+        texture.scale = 0.01;
+        texture.seaLevel = 96;
+        texture.quantLevel = 6;
+        texture.transform = Texture.YCLAMP | Texture.QUANT;
+    }
+
+    @Test
+    public void clampedWorldTest() {
+        // Everything is below sea level, so the world collapses to one empty root
+        texture.seaLevel = 1024;
+        TerrainGenerator generator = new TerrainGenerator(texture);
+        generator.generate(tree);
+
+        NodePool.Statistics stats = tree.nodePool.analyze();
+        Assert.assertEquals(stats.numLeaves, 1);
+        Assert.assertEquals(stats.numNodes, 0);
+        Assert.assertEquals(tree.testVoxelPath(0L), 0L);
+    }
+
+    @DataProvider(name = "threads")
+    private Object[][] threadData() {
+        return new Object[][] {
+                { 1 },
+                { 4 },
+        };
+    }
+    @Test(dataProvider = "threads")
+    public void matchesSamplingTest(int threads) {
+        TerrainGenerator generator = new TerrainGenerator(texture);
+        generator.threads = threads;
+        generator.coarseSpan = 0.0;     // No coarse shortcuts; the tree must match exactly
+        generator.generate(tree);
+
+        NodePool.Statistics stats = tree.nodePool.analyze();
+        Assert.assertTrue(stats.numNodes > 0);
+        Assert.assertEquals(tree.nodePool.snapshot().numNodes, stats.numNodes);
+        Assert.assertEquals(tree.nodePool.snapshot().numLeaves, stats.numLeaves);
+
+        int stride = tree.stride();
+        int offset = stride >> 1;
+        int cells = 1 << DEPTH;
+        for (int x=0; x<cells; ++x) {
+            for (int y=0; y<cells; ++y) {
+                for (int z=0; z<cells; ++z) {
+                    int density = texture.density(x*stride + offset, z*stride + offset, y*stride + offset);
+                    long color = tree.testVoxelPoint(new Point3i(x*stride + offset, y*stride + offset, z*stride + offset));
+                    Assert.assertEquals(color, generator.colorFor(density));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void mergedTest() {
+        TerrainGenerator generator = new TerrainGenerator(texture);
+        generator.generate(tree);
+
+        // No interior node may have eight identical leaf children
+        NodePool pool = tree.nodePool;
+        for (int idx=0; idx<pool.size(); ++idx) {
+            long node = pool.node(idx);
+            if (Node.isUsed(node) && !Node.isLeaf(node)) {
+                int tile = Node.child(node);
+                boolean uniform = true;
+                for (int child=0; child<8; ++child) {
+                    long childNode = pool.node(tile+child);
+                    uniform &= Node.isLeaf(childNode) && (Node.color(childNode) == Node.color(pool.node(tile)));
+                }
+                Assert.assertFalse(uniform, "Unmerged tile at " + tile);
+            }
+        }
+    }
+
+    @Test
+    public void farTilesTest() {
+        // Build into a local pool whose free tiles have run past the near children
+        TerrainGenerator generator = new TerrainGenerator(texture);
+        generator.coarseSpan = 0.0;
+        generator.generate(tree);
+
+        NodePool pool = TerrainGenerator.localPool(Node.NEAR_CHILD_LIMIT + 4096);
+        while (pool.getFreeTile() < Node.NEAR_CHILD_LIMIT - 8) {
+        }
+        long root = generator.new Builder(pool, DEPTH, tree.stride(), DEPTH).build(0, 0, 0, 0);
+        Assert.assertTrue(Node.isFar(root));
+
+        VoxTree far = new VoxTree(DEPTH);
+        far.setSubtree(new WidePath(), pool, root);
+        assertSameVoxels(tree, far);
+    }
+
+    @Test
+    public void lazyMatchesEagerTest() {
+        int depth = 5;
+        VoxTree eager = new VoxTree(depth);
+        VoxTree lazy = new VoxTree(depth);
+
+        TerrainGenerator generator = new TerrainGenerator(texture);
+        generator.coarseSpan = 0.0;
+        generator.generate(eager);
+        generator.generateLazily(lazy, 1024 * 1024);
+        Assert.assertTrue(Node.isStub(lazy.nodePool.node(0)));
+
+        assertSameVoxels(eager, lazy);
+        Assert.assertTrue(lazy.subtrees.residentNodes() > 0);
+    }
+
+    @Test
+    public void evictionTest() {
+        int depth = 5;
+        VoxTree eager = new VoxTree(depth);
+        VoxTree lazy = new VoxTree(depth);
+
+        TerrainGenerator generator = new TerrainGenerator(texture);
+        generator.generate(eager);
+        generator.generateLazily(lazy, 64);
+
+        // Materialize everything by querying (queries do not mark tiles as seen)
+        assertSameVoxels(eager, lazy);
+        int resident = lazy.subtrees.residentNodes();
+        Assert.assertTrue(resident > 64);
+
+        // Eviction happens between rays; this one misses the world entirely
+        lazy.castRay(new Point3d(-10, -10, -10), new Vector3d(-1, 0, 0), false);
+        Assert.assertTrue(lazy.subtrees.residentNodes() < resident);
+
+        // Evicted regions regenerate identically
+        assertSameVoxels(eager, lazy);
+    }
+
+    @Test
+    public void mergedRootEvictionTest() {
+        int depth = 5;
+        VoxTree lazy = new VoxTree(depth);
+        TerrainGenerator generator = new TerrainGenerator(texture);
+        generator.generateLazily(lazy, 64);
+        lazy.testVoxelPath(new WidePath().setDepth(depth));
+
+        // Materialize a stub just above the voxels, making it a root of the ring
+        int stride = lazy.stride();
+        int offset = stride >> 1;
+        int cells = 1 << depth;
+        WidePath path = null;
+        int rootIndex = 0;
+        for (int cell=0; (cell<cells*cells*cells) && (path == null); ++cell) {
+            Point3i voxel = new Point3i((cell / (cells*cells))*stride + offset, ((cell / cells) % cells)*stride + offset, (cell % cells)*stride + offset);
+            WidePath voxelPath = new WidePath().fromPosition(voxel, lazy.edgeLength, depth);
+            int nodeIndex = 0;
+            int level = 0;
+            while ((level < depth-1) && !Node.isLeaf(lazy.nodePool.node(nodeIndex))) {
+                nodeIndex = Node.child(lazy.nodePool.node(nodeIndex)) + voxelPath.child(level++);
+            }
+            if ((level == depth-1) && Node.isStub(lazy.nodePool.node(nodeIndex))
+                    && !Node.isLeaf(lazy.subtrees.materialize(nodeIndex, new WidePath().set(voxelPath).setDepth(level)))) {
+                path = voxelPath;
+                rootIndex = nodeIndex;
+            }
+        }
+        Assert.assertNotNull(path);
+        long root = lazy.nodePool.node(rootIndex);
+        Assert.assertFalse(Node.isLeaf(root));
+
+        // An edit across the world pins the top root, leaving this one for the sweep
+        WidePath across = new WidePath().addChild(path.child(0) ^ 7);
+        while (across.depth() < depth) {
+            across.addChild(0);
+        }
+        lazy.setVoxelPath(across, (int)Color.setColor(255, 0, 0, 255));
+
+        // Its voxels go uniform, and a pick path's refine merges it away
+        int tile = Node.child(root);
+        long color = Node.color(lazy.nodePool.node(tile));
+        for (int idx=1; idx<8; ++idx) {
+            lazy.nodePool.set(tile + idx, Node.setColor(lazy.nodePool.node(tile + idx), color));
+        }
+        lazy.refineVoxelPath(path);
+        Assert.assertTrue(Node.isLeaf(lazy.nodePool.node(rootIndex)));
+
+        // Eviction must not free its tile a second time
+        Assert.assertTrue(lazy.subtrees.residentNodes() > 64);
+        lazy.castRay(new Point3d(-10, -10, -10), new Vector3d(-1, 0, 0), false);
+        Assert.assertEquals(lazy.nodePool.snapshot().numUsed, lazy.nodePool.analyze().numUsed);
+        Assert.assertEquals(lazy.testVoxelPath(across), Color.setColor(255, 0, 0, 255));
+
+        int free = 0;
+        for (int next=lazy.nodePool.firstFreeNode; next!=NodePool.NO_FREE_NODE_INDEX; ++free) {
+            Assert.assertFalse(Node.isUsed(lazy.nodePool.node(next)), "Used node " + next + " on the free chain");
+            Assert.assertTrue(free < lazy.nodePool.size(), "Free chain loops");
+            next = Node.next(lazy.nodePool.node(next));
+            if (next == Node.END_OF_FREE_NODES) {
+                next = NodePool.NO_FREE_NODE_INDEX;
+            }
+        }
+        Assert.assertEquals(free, lazy.nodePool.size() - lazy.nodePool.analyze().numUsed);
+    }
+
+    private void assertSameVoxels(VoxTree expected, VoxTree actual) {
+        int stride = expected.stride();
+        int offset = stride >> 1;
+        int cells = 1 << expected.depth;
+        for (int x=0; x<cells; ++x) {
+            for (int y=0; y<cells; ++y) {
+                for (int z=0; z<cells; ++z) {
+                    Point3i voxel = new Point3i(x*stride + offset, y*stride + offset, z*stride + offset);
+                    Assert.assertEquals(actual.testVoxelPoint(voxel), expected.testVoxelPoint(voxel));
+                }
+            }
+        }
+    }
+}
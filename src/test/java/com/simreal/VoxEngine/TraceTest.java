@@ -0,0 +1,84 @@
+package com.simreal.VoxEngine;
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+public class TraceTest {
+
+    @Test
+    public void levelTest() {
+        Assert.assertEquals(Trace.parseLevel(null), Trace.OFF);
+        Assert.assertEquals(Trace.parseLevel("INFO"), Trace.INFO);
+        Assert.assertEquals(Trace.parseLevel("debug"), Trace.DEBUG);
+        Assert.assertEquals(Trace.parseLevel("verbose"), Trace.OFF);
+    }
+
+    @Test
+    public void drainTest() {
+        TraceBuffer buffer = new TraceBuffer(8);
+        WidePath path = new WidePath().addChild(3).addChild(5);
+        long color = Color.setColor(255, 0, 0, 255);
+        buffer.record(TraceBuffer.SET, path.head, path.tail, (17L << 32) | color);
+        buffer.record(TraceBuffer.SPLIT, 17, 0L, 0L);
+        buffer.record(TraceBuffer.MERGE, 9, 0L, 0L);
+        Assert.assertFalse(buffer.empty());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Assert.assertEquals(buffer.drain(new PrintStream(bytes, true)), 3);
+        Assert.assertTrue(buffer.empty());
+
+        String[] lines = bytes.toString().split(System.getProperty("line.separator"));
+        Assert.assertEquals(lines.length, 3);
+        Assert.assertEquals(lines[0], "Set " + path + " (17) to " + Color.toString(color));
+        Assert.assertEquals(lines[1], "Split: populating 17");
+        Assert.assertEquals(lines[2], "Refine: trimming 9");
+    }
+
+    @Test
+    public void overflowTest() {
+        TraceBuffer buffer = new TraceBuffer(8);
+        for (int idx=0; idx<20; ++idx) {
+            buffer.record(TraceBuffer.SPLIT, idx, 0L, 0L);
+        }
+        Assert.assertEquals(buffer.dropped(), 12);
+
+        // The ring keeps the oldest records, and reports the rest as dropped
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Assert.assertEquals(buffer.drain(new PrintStream(bytes, true)), 8);
+        String[] lines = bytes.toString().split(System.getProperty("line.separator"));
+        Assert.assertEquals(lines[0], "Split: populating 0");
+        Assert.assertEquals(lines[7], "Split: populating 7");
+        Assert.assertEquals(lines[8], "Trace: 12 records dropped");
+
+        // ... and wraps around once drained
+        buffer.record(TraceBuffer.SPLIT, 42, 0L, 0L);
+        bytes.reset();
+        Assert.assertEquals(buffer.drain(new PrintStream(bytes, true)), 1);
+        Assert.assertEquals(bytes.toString().trim(), "Split: populating 42");
+    }
+
+    @Test
+    public void concurrentTest() throws Exception {
+        final TraceBuffer buffer = new TraceBuffer(1 << 16);
+        Thread[] writers = new Thread[4];
+        for (int idx=0; idx<writers.length; ++idx) {
+            writers[idx] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int cnt=0; cnt<10000; ++cnt) {
+                        buffer.record(TraceBuffer.MERGE, cnt, 0L, 0L);
+                    }
+                }
+            });
+            writers[idx].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        Assert.assertEquals(buffer.dropped(), 0);
+        Assert.assertEquals(buffer.drain(new PrintStream(new ByteArrayOutputStream())), 40000);
+    }
+}
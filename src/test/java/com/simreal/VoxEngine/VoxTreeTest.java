@@ -3,7 +3,12 @@ package com.simreal.VoxEngine;
 
 import org.testng.Assert;
 import org.testng.annotations.*;
+import javax.vecmath.Point3d;
 import javax.vecmath.Point3i;
+import javax.vecmath.Vector3d;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 
 public class VoxTreeTest {
 
@@ -83,6 +88,525 @@ System.out.println(tree);
             NodePool.Statistics stats = tree.nodePool.analyze();
             Assert.assertEquals(stats.numLeaves, leaves);
             Assert.assertEquals(stats.numNodes, nodes);
+
+            NodePool.Statistics live = tree.nodePool.snapshot();
+            Assert.assertEquals(live.numLeaves, leaves);
+            Assert.assertEquals(live.numNodes, nodes);
+            Assert.assertEquals(live.numFreeTiles, stats.numFreeTiles);
+        }
+    }
+
+    @Test
+    public void testRelayout() {
+        long color = Color.setColor(255, 0, 0, 255);
+        int[][] voxels = {
+                { 0x00 + 8, 0x00 + 8, 0x00 + 8 },
+                { 0x20 + 8, 0x00 + 8, 0x10 + 8 },
+                { 0xC0 + 8, 0xD0 + 8, 0xC0 + 8 },
+                { 0x70 + 8, 0x30 + 8, 0xA0 + 8 },
+        };
+        for (int[] voxel : voxels) {
+            tree.setVoxelPoint(new Point3i(voxel[0], voxel[1], voxel[2]), (int)color);
+        }
+        // Scatter the pool with a split/merge cycle
+        tree.setVoxelPoint(new Point3i(0x50 + 8, 0x50 + 8, 0x50 + 8), (int)color);
+        tree.setVoxelPoint(new Point3i(0x50 + 8, 0x50 + 8, 0x50 + 8), 0);
+        NodePool.Statistics before = tree.nodePool.analyze();
+
+        tree.relayout();
+
+        NodePool.Statistics after = tree.nodePool.analyze();
+        Assert.assertEquals(after.numLeaves, before.numLeaves);
+        Assert.assertEquals(after.numNodes, before.numNodes);
+        Assert.assertEquals(tree.nodePool.snapshot().numUsed, after.numUsed);
+        Assert.assertEquals(Node.child(tree.nodePool.node(0)), 1);
+        for (int idx=0; idx<after.numUsed; ++idx) {
+            Assert.assertTrue(Node.isUsed(tree.nodePool.node(idx)));
+        }
+        for (int[] voxel : voxels) {
+            Assert.assertEquals(tree.testVoxelPoint(new Point3i(voxel[0], voxel[1], voxel[2])), color);
+        }
+
+        // The free chain picks up right after the packed tree
+        Assert.assertEquals(tree.nodePool.getFreeTile(), after.numUsed);
+    }
+
+    @Test
+    public void testDefragment() {
+        long color = Color.setColor(255, 0, 0, 255);
+        Point3i late = new Point3i(0x30 + 8, 0x80 + 8, 0x30 + 8);
+        VoxTree reference = new VoxTree(DEPTH);
+
+        // Fill a diagonal, then clear its first half, leaving holes low in the pool
+        for (VoxTree target : new VoxTree[] { tree, reference }) {
+            for (int idx=0; idx<16; ++idx) {
+                target.setVoxelPoint(new Point3i(idx*16 + 8, idx*16 + 8, (15-idx)*16 + 8), (int)color);
+            }
+            for (int idx=0; idx<8; ++idx) {
+                target.setVoxelPoint(new Point3i(idx*16 + 8, idx*16 + 8, (15-idx)*16 + 8), 0);
+            }
+        }
+        reference.setVoxelPoint(late, (int)color);
+        int oldSize = tree.nodePool.size();
+
+        // Smallest possible steps, with an edit part way through
+        int steps = 0;
+        while (!tree.defragment(0L)) {
+            if (++steps == 3) {
+                tree.setVoxelPoint(late, (int)color);
+            }
+        }
+        Assert.assertTrue(steps > 3);
+
+        NodePool.Statistics expected = reference.nodePool.analyze();
+        NodePool.Statistics after = tree.nodePool.analyze();
+        Assert.assertEquals(after.numLeaves, expected.numLeaves);
+        Assert.assertEquals(after.numNodes, expected.numNodes);
+        Assert.assertTrue(tree.nodePool.size() < oldSize);
+        Assert.assertEquals(tree.nodePool.snapshot().numUsed, after.numUsed);
+        Assert.assertEquals(tree.nodePool.snapshot().numFreeTiles, after.numFreeTiles);
+        for (int idx=after.numUsed; idx<tree.nodePool.size(); ++idx) {
+            Assert.assertFalse(Node.isUsed(tree.nodePool.node(idx)), "Used node above the packed tree at " + idx);
+        }
+
+        for (int x=0; x<16; ++x) {
+            for (int y=0; y<16; ++y) {
+                for (int z=0; z<16; ++z) {
+                    Point3i voxel = new Point3i(x*16 + 8, y*16 + 8, z*16 + 8);
+                    Assert.assertEquals(tree.testVoxelPoint(voxel), reference.testVoxelPoint(voxel));
+                }
+            }
+        }
+
+        // Nothing has changed since, so there is no new pass to start; nor is there in
+        // a pool without room to give back
+        int size = tree.nodePool.size();
+        Assert.assertTrue(tree.defragment(0L));
+        Assert.assertEquals(tree.nodePool.size(), size);
+        Assert.assertTrue(new VoxTree(DEPTH, new NodePool(1024)).defragment(0L));
+    }
+
+    @Test
+    public void testMergedPaths() {
+        // Lookups through a tile freed by a merge must not be answered from the cache
+        long red = Color.setColor(255, 0, 0, 255);
+        long blue = Color.setColor(0, 0, 255, 255);
+        for (int idx=0; idx<8; ++idx) {
+            tree.setVoxelPoint(new Point3i(0x40 + (idx & 4)*4 + 8, 0x40 + (idx & 2)*8 + 8, 0x40 + (idx & 1)*16 + 8), (int)red);
+        }
+        Assert.assertEquals(tree.testVoxelPoint(new Point3i(0x48, 0x48, 0x48)), red);
+
+        // The merged tile is reused by the next split
+        tree.setVoxelPoint(new Point3i(0xC8, 0x18, 0x28), (int)blue);
+        Assert.assertEquals(tree.testVoxelPoint(new Point3i(0xC8, 0x18, 0x28)), blue);
+        for (int idx=0; idx<8; ++idx) {
+            Point3i voxel = new Point3i(0x40 + (idx & 4)*4 + 8, 0x40 + (idx & 2)*8 + 8, 0x40 + (idx & 1)*16 + 8);
+            Assert.assertEquals(tree.testVoxelPoint(voxel), red);
+            tree.setVoxelPoint(voxel, 0);
+        }
+        Assert.assertEquals(tree.testVoxelPoint(new Point3i(0x58, 0x58, 0x58)), 0L);
+    }
+
+    @Test
+    public void testGridTraversal() {
+        // Both traversals must land on the same leaves and shade them the same
+        VoxTree terrain = new VoxTree(6);
+        Texture texture = new Texture();
+        texture.scale = 4.0 / terrain.edgeLength;
+        texture.seaLevel = terrain.edgeLength / 3;
+        texture.quantLevel = 7;
+        texture.transform = Texture.YCLAMP | Texture.INVERT | Texture.QUANT;
+        new TerrainGenerator(texture).generate(terrain);
+
+        Random rand = new Random(7);
+        double edge = terrain.edgeLength;
+        Point3d[] origins = {
+                new Point3d(-0.25 * edge, 0.9 * edge, -0.25 * edge),
+                new Point3d(1.3 * edge, 1.1 * edge, 0.4 * edge),
+                new Point3d(0.5 * edge, 2.0 * edge, 1.5 * edge),
+        };
+        for (Point3d origin : origins) {
+            for (int cnt=0; cnt<2000; ++cnt) {
+                // Aim below the lowest ground, so every ray hits: a miss blends in a random sky
+                Vector3d ray = new Vector3d(rand.nextDouble() * edge, rand.nextDouble() * edge / 8, rand.nextDouble() * edge);
+                ray.sub(origin);
+                ray.normalize();
+
+                terrain.gridTraversal = false;
+                long expected = terrain.castRay(origin, ray, false);
+                terrain.gridTraversal = true;
+                Assert.assertEquals(terrain.castRay(origin, ray, false), expected);
+            }
+        }
+    }
+
+    @Test
+    public void testViewStart() {
+        // Rays from a camera inside the world start in its cell, and see the same
+        CountingNodePool pool = new CountingNodePool(1024);
+        VoxTree terrain = new VoxTree(7, pool);
+        Texture texture = new Texture();
+        texture.scale = 4.0 / terrain.edgeLength;
+        texture.seaLevel = terrain.edgeLength / 3;
+        texture.quantLevel = 7;
+        texture.transform = Texture.YCLAMP | Texture.INVERT | Texture.QUANT;
+        new TerrainGenerator(texture).generate(terrain);
+        terrain.gridTraversal = true;
+
+        Random rand = new Random(11);
+        double edge = terrain.edgeLength;
+        Point3d[] cameras = {
+                new Point3d(0.37 * edge, 0.8 * edge, 0.61 * edge),
+                new Point3d(0.9 * edge, 0.7 * edge, 0.05 * edge),
+        };
+        for (Point3d camera : cameras) {
+            long chained = 0;
+            long unchained = 0;
+            for (int cnt=0; cnt<2000; ++cnt) {
+                // Aim below the lowest ground, so every ray hits: a miss blends in a random sky
+                Vector3d ray = new Vector3d(rand.nextDouble() * edge, rand.nextDouble() * edge / 8, rand.nextDouble() * edge);
+                ray.sub(camera);
+                ray.normalize();
+
+                terrain.viewStart = false;
+                pool.reads = 0;
+                long expected = terrain.castRay(camera, ray, false);
+                unchained += pool.reads;
+
+                terrain.viewStart = true;
+                pool.reads = 0;
+                Assert.assertEquals(terrain.castRay(camera, ray, false), expected);
+                chained += pool.reads;
+            }
+            Assert.assertTrue(chained < unchained, chained + " reads with the camera chain, " + unchained + " without");
+
+            // An edit that merges nodes must not leave a stale chain behind
+            Point3i voxel = new Point3i((int)camera.x, (int)camera.y, (int)camera.z);
+            long color = terrain.testVoxelPoint(voxel);
+            terrain.setVoxelPoint(voxel, (int)Color.setColor(0, 255, 0, 255));
+            terrain.setVoxelPoint(voxel, (int)color);
+        }
+    }
+
+    @Test
+    public void testRefineReads() {
+        // One descent and one walk back up: node reads grow with depth, not its square
+        int depth = 24;
+        CountingNodePool pool = new CountingNodePool(1024);
+        VoxTree deep = new VoxTree(depth, pool);
+        long color = Color.setColor(0, 255, 0, 255);
+        Point3i voxel = new Point3i(123456789, 23456789, 3456789);
+
+        pool.reads = 0;
+        deep.setVoxelPoint(voxel, (int)color);
+        long setReads = pool.reads;
+
+        pool.reads = 0;
+        deep.refineVoxelPath(new WidePath().fromPosition(voxel, deep.edgeLength, depth));
+        long refineReads = pool.reads;
+
+        // Per level: the descent reads one node, refinement at most seventeen, and a
+        // split nine more to take a tile
+        Assert.assertTrue(refineReads <= 18 * (depth+1), "Refine read " + refineReads + " nodes");
+        Assert.assertTrue(setReads <= 27 * (depth+1), "Set read " + setReads + " nodes");
+        Assert.assertEquals(deep.testVoxelPoint(voxel), color);
+
+        // The path cache saves the edit its descent; once it is cleared, the walk reads a node a level
+        deep.relayout();
+        pool.reads = 0;
+        deep.refineVoxelPath(new WidePath().fromPosition(voxel, deep.edgeLength, depth));
+        long walkedReads = pool.reads;
+        Assert.assertEquals(walkedReads, refineReads + depth);
+    }
+
+    /**
+     * A pool that hands out tiles from past the reach of a near child, without
+     * the memory to back them
+     */
+    private static class FarNodePool extends NodePool {
+        static final int FAR_START = Node.NEAR_CHILD_LIMIT + 1;
+        private final Map<Integer, Long> nodes = new HashMap<Integer, Long>();
+
+        FarNodePool() {
+            numNodes = MAX_POOL_SIZE;
+            firstFreeNode = 0;
+        }
+
+        @Override
+        public long node(int index) {
+            Long node = nodes.get(index);
+            if (node != null) {
+                return node;
+            }
+            return Node.setNext(0L, (index == 0) ? FAR_START : index+1);
+        }
+
+        @Override
+        public void set(int index, long node) {
+            count(node(index), node);
+            nodes.put(index, node);
+        }
+
+        @Override
+        protected void grow() {
+            throw new RuntimeException("NodePool exhausted");
+        }
+    }
+
+    @Test
+    public void testFarChildren() {
+        long color = Color.setColor(255, 0, 0, 255);
+        VoxTree far = new VoxTree(DEPTH, new FarNodePool());
+
+        for (VoxTree target : new VoxTree[] { tree, far }) {
+            for (int idx=0; idx<16; ++idx) {
+                target.setVoxelPoint(new Point3i(idx*16 + 8, idx*16 + 8, (15-idx)*16 + 8), (int)color);
+            }
+            for (int idx=0; idx<4; ++idx) {
+                target.setVoxelPoint(new Point3i(idx*16 + 8, idx*16 + 8, (15-idx)*16 + 8), 0);
+            }
+        }
+
+        long root = far.nodePool.node(0);
+        Assert.assertTrue(Node.isFar(root));
+        Assert.assertEquals(Node.child(root), FarNodePool.FAR_START);
+        Assert.assertEquals(far.nodePool.snapshot().numUsed, tree.nodePool.snapshot().numUsed);
+
+        for (int x=0; x<16; ++x) {
+            for (int y=0; y<16; ++y) {
+                for (int z=0; z<16; ++z) {
+                    Point3i voxel = new Point3i(x*16 + 8, y*16 + 8, z*16 + 8);
+                    Assert.assertEquals(far.testVoxelPoint(voxel), tree.testVoxelPoint(voxel));
+                }
+            }
+        }
+
+        // Rays at the voxels still set; a miss blends in a random sky, so skip those
+        Point3d origin = new Point3d(-100.0, 300.0, -50.0);
+        for (int idx=4; idx<16; ++idx) {
+            Vector3d ray = new Vector3d(idx*16 + 108, idx*16 - 292, (15-idx)*16 + 58);
+            ray.normalize();
+            long expected = tree.castRay(origin, ray, false);
+            Assert.assertTrue(Color.alpha(expected) >= 250);
+            Assert.assertEquals(far.castRay(origin, ray, false), expected);
+        }
+    }
+
+    /**
+     * An opaque floor, with a see-through pane above half of it
+     */
+    private static void paneScene(VoxTree scene) {
+        int stride = scene.stride();
+        int offset = stride >> 1;
+        int cells = scene.edgeLength / stride;
+        for (int x=0; x<cells; ++x) {
+            for (int z=0; z<cells; ++z) {
+                scene.setVoxelPoint(new Point3i((x*stride)+offset, offset, (z*stride)+offset), (int)Color.setColor(200, 160, 40, 255));
+                if (x < cells/2) {
+                    scene.setVoxelPoint(new Point3i((x*stride)+offset, (4*stride)+offset, (z*stride)+offset),
+                            (int)Color.setColor(40, 80, 250, 96 + ((x + z) & 3) * 16));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPremultiplied() {
+        VoxTree straight = new VoxTree(DEPTH, null, false);
+        VoxTree premultiplied = new VoxTree(DEPTH, null, true);
+        paneScene(straight);
+        paneScene(premultiplied);
+
+        // Colors go in and come back out straight
+        Point3i pane = new Point3i(8, 72, 8);
+        Assert.assertEquals(premultiplied.testVoxelPoint(pane), straight.testVoxelPoint(pane));
+        Point3i floor = new Point3i(200, 8, 8);
+        Assert.assertEquals(premultiplied.testVoxelPoint(floor), straight.testVoxelPoint(floor));
+
+        // ... and rays through the pane see much the same either way
+        Random rand = new Random(5);
+        double edge = straight.edgeLength;
+        Point3d origin = new Point3d(0.5 * edge, 0.9 * edge, 0.5 * edge);
+        for (boolean grid : new boolean[] { false, true }) {
+            straight.gridTraversal = grid;
+            premultiplied.gridTraversal = grid;
+            for (int cnt=0; cnt<500; ++cnt) {
+                // Straight down onto the floor, so there is no sky in it
+                Vector3d ray = new Vector3d(rand.nextDouble() * edge, 0.0, rand.nextDouble() * edge);
+                ray.sub(origin);
+                ray.normalize();
+
+                long expected = straight.castRay(origin, ray, false);
+                long actual = premultiplied.castRay(origin, ray, false);
+                Assert.assertTrue(Math.abs(Color.red(actual) - Color.red(expected)) <= 3);
+                Assert.assertTrue(Math.abs(Color.green(actual) - Color.green(expected)) <= 3);
+                Assert.assertTrue(Math.abs(Color.blue(actual) - Color.blue(expected)) <= 3);
+                Assert.assertEquals(Color.alpha(actual), 255);
+            }
+        }
+    }
+
+    @Test
+    public void testPremultiplyPool() {
+        // Converting a straight pool gives what building it premultiplied would have
+        VoxTree straight = new VoxTree(DEPTH, new NodePool(1024), false);
+        VoxTree premultiplied = new VoxTree(DEPTH, new NodePool(1024), true);
+        paneScene(straight);
+        paneScene(premultiplied);
+
+        straight.nodePool.premultiply();
+        for (int idx=0; idx<straight.nodePool.size(); ++idx) {
+            Assert.assertEquals(straight.nodePool.node(idx), premultiplied.nodePool.node(idx));
+        }
+        Assert.assertEquals(straight.nodePool.snapshot().numUsed, premultiplied.nodePool.snapshot().numUsed);
+    }
+
+    @Test
+    public void testOccluded() {
+        // A shadow ray is blocked exactly when a cast along it goes opaque short of maxT
+        CountingNodePool pool = new CountingNodePool(1024);
+        VoxTree terrain = new VoxTree(6, pool);
+        Texture texture = new Texture();
+        texture.scale = 4.0 / terrain.edgeLength;
+        texture.seaLevel = terrain.edgeLength / 3;
+        texture.quantLevel = 7;
+        texture.transform = Texture.YCLAMP | Texture.INVERT | Texture.QUANT;
+        new TerrainGenerator(texture).generate(terrain);
+        terrain.gridTraversal = true;
+
+        Random rand = new Random(13);
+        double edge = terrain.edgeLength;
+        long castReads = 0;
+        long occludedReads = 0;
+        int blocked = 0;
+        double[] origins = new double[3 * 1000];
+        boolean[] expected = new boolean[1000];
+        Vector3d dir = new Vector3d(0.3, -0.8, 0.5);
+        dir.normalize();
+        for (int cnt=0; cnt<1000; ++cnt) {
+            Point3d origin = new Point3d(rand.nextDouble() * edge, (0.5 + 0.6 * rand.nextDouble()) * edge, rand.nextDouble() * edge);
+            Vector3d ray = new Vector3d(rand.nextDouble() - 0.5, rand.nextDouble() - 0.5, rand.nextDouble() - 0.5);
+            ray.normalize();
+            double maxT = rand.nextDouble() * edge;
+
+            pool.reads = 0;
+            terrain.castRay(origin, ray, false);
+            castReads += pool.reads;
+            boolean hit = terrain.hitDistance < maxT;
+
+            pool.reads = 0;
+            Assert.assertEquals(terrain.occluded(origin, ray, maxT), hit);
+            occludedReads += pool.reads;
+            blocked += hit ? 1 : 0;
+
+            // One light direction for the batch
+            origins[3*cnt] = origin.x;
+            origins[3*cnt + 1] = origin.y;
+            origins[3*cnt + 2] = origin.z;
+            terrain.castRay(origin, dir, false);
+            expected[cnt] = terrain.hitDistance < edge;
+        }
+        Assert.assertTrue(blocked > 100, blocked + " of 1000 blocked");
+        Assert.assertTrue(occludedReads < castReads, occludedReads + " reads occluded, " + castReads + " cast");
+
+        boolean[] results = new boolean[1000];
+        terrain.occluded(origins, 1000, dir, edge, results);
+        for (int cnt=0; cnt<1000; ++cnt) {
+            Assert.assertEquals(results[cnt], expected[cnt]);
+        }
+    }
+
+    @Test
+    public void testOccludedAlpha() {
+        // A see-through pane lets light by; a second, opaque one does not
+        int stride = tree.stride();
+        int offset = stride >> 1;
+        Point3d origin = new Point3d(offset, 2 * stride + offset, offset);
+        Vector3d up = new Vector3d(0, 1, 0);
+        Assert.assertFalse(tree.occluded(origin, up, tree.edgeLength));
+
+        tree.setVoxelPoint(new Point3i(offset, 4 * stride + offset, offset), (int)Color.setColor(0, 0, 255, 128));
+        Assert.assertFalse(tree.occluded(origin, up, tree.edgeLength));
+
+        tree.setVoxelPoint(new Point3i(offset, 6 * stride + offset, offset), (int)Color.setColor(0, 0, 255, 255));
+        Assert.assertTrue(tree.occluded(origin, up, tree.edgeLength));
+        Assert.assertFalse(tree.occluded(origin, up, 3.0 * stride));
+
+        // Looking out of the world from outside it sees nothing
+        Assert.assertFalse(tree.occluded(new Point3d(-stride, offset, offset), new Vector3d(-1, 0, 0), tree.edgeLength));
+        Assert.assertTrue(tree.occluded(new Point3d(-stride, 6 * stride + offset, offset), new Vector3d(1, 0, 0), tree.edgeLength));
+    }
+
+    @Test
+    public void testConeTrace() {
+        int stride = tree.stride();
+        int offset = stride >> 1;
+        int cells = tree.edgeLength / stride;
+        Point3d origin = new Point3d(offset, 8 * stride + offset, 8 * stride + offset);
+        Vector3d across = new Vector3d(1, 0, 0);
+        Assert.assertEquals(tree.coneTrace(origin, across, 0.0, tree.edgeLength), 0L);
+        Assert.assertEquals(tree.coneTrace(origin, across, 0.5, tree.edgeLength), 0L);
+
+        // A see-through pane in the way of a thin cone
+        int pane = (int)Color.setColor(0, 0, 255, 128);
+        tree.setVoxelPoint(new Point3i(4 * stride + offset, 8 * stride + offset, 8 * stride + offset), pane);
+        long color = tree.coneTrace(origin, across, 0.0, tree.edgeLength);
+        Assert.assertEquals(Color.blue(color), 255);
+        Assert.assertTrue(Math.abs(Color.alpha(color) - 128) <= 2, "Alpha " + Color.alpha(color));
+        Assert.assertEquals(tree.coneTrace(origin, across, 0.0, 3.0 * stride), 0L);
+
+        // A thick wall behind it stops the cone, whatever its width
+        int wall = (int)Color.setColor(255, 0, 0, 255);
+        for (int x=8; x<12; ++x) {
+            for (int y=0; y<cells; ++y) {
+                for (int z=0; z<cells; ++z) {
+                    tree.setVoxelPoint(new Point3i(x * stride + offset, y * stride + offset, z * stride + offset), wall);
+                }
+            }
+        }
+        for (double aperture : new double[] { 0.0, 0.05, 0.2 }) {
+            color = tree.coneTrace(origin, across, aperture, tree.edgeLength);
+            Assert.assertTrue(Color.alpha(color) >= 250, "Alpha " + Color.alpha(color));
+            Assert.assertTrue(Color.red(color) > 100, "Red " + Color.red(color));
+        }
+
+        // A thin cone slips past a block that a wide one catches (in the averaged node)
+        Point3d beside = new Point3d(offset, 2 * stride + offset, 2 * stride + offset);
+        for (int cell=0; cell<8; ++cell) {
+            tree.setVoxelPoint(new Point3i((4 + (cell >> 2)) * stride + offset, (4 + ((cell >> 1) & 1)) * stride + offset,
+                    (2 + (cell & 1)) * stride + offset), wall);
+        }
+        Assert.assertEquals(tree.coneTrace(beside, across, 0.0, 6.0 * stride), 0L);
+        Assert.assertTrue(Color.alpha(tree.coneTrace(beside, across, 0.5, 6.0 * stride)) > 0);
+    }
+
+    @Test
+    public void testConeTraceReads() {
+        // A wide cone over terrain takes a few dozen reads
+        CountingNodePool pool = new CountingNodePool(1024);
+        VoxTree terrain = new VoxTree(7, pool);
+        Texture texture = new Texture();
+        texture.scale = 4.0 / terrain.edgeLength;
+        texture.seaLevel = terrain.edgeLength / 3;
+        texture.quantLevel = 7;
+        texture.transform = Texture.YCLAMP | Texture.INVERT | Texture.QUANT;
+        new TerrainGenerator(texture).generate(terrain);
+
+        Random rand = new Random(21);
+        double edge = terrain.edgeLength;
+        long reads = 0;
+        int blocked = 0;
+        for (int cnt=0; cnt<1000; ++cnt) {
+            Point3d origin = new Point3d(rand.nextDouble() * edge, (0.3 + 0.4 * rand.nextDouble()) * edge, rand.nextDouble() * edge);
+            Vector3d ray = new Vector3d(rand.nextDouble() - 0.5, rand.nextDouble() - 0.5, rand.nextDouble() - 0.5);
+
+            pool.reads = 0;
+            long color = terrain.coneTrace(origin, ray, 0.5, edge);
+            reads += pool.reads;
+            blocked += (Color.alpha(color) >= 250) ? 1 : 0;
         }
+        Assert.assertTrue(blocked > 100, blocked + " of 1000 opaque");
+        double readsEach = reads / 1000.0;
+        Assert.assertTrue(readsEach < 32.0, readsEach + " reads each");
     }
 }
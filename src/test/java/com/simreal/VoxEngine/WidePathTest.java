@@ -0,0 +1,112 @@
+package com.simreal.VoxEngine;
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import javax.vecmath.Vector3d;
+import java.util.Random;
+
+public class WidePathTest {
+
+    @Test
+    public void childTest() {
+        WidePath path = new WidePath();
+        for (int level=0; level<WidePath.MAX_DEPTH; ++level) {
+            path.addChild(level % 8);
+        }
+        Assert.assertEquals(path.depth(), WidePath.MAX_DEPTH);
+        for (int level=0; level<WidePath.MAX_DEPTH; ++level) {
+            Assert.assertEquals(path.child(level), level % 8);
+        }
+
+        // Full paths stay full
+        long tail = path.tail;
+        path.addChild(7);
+        Assert.assertEquals(path.tail, tail);
+    }
+
+    @Test
+    public void equalsTest() {
+        // Children left past the depth, in both the head and the tail, are ignored
+        WidePath full = new WidePath();
+        for (int level=0; level<WidePath.MAX_DEPTH; ++level) {
+            full.addChild(7);
+        }
+        for (int depth : new int[] { 0, 5, WidePath.HEAD_CHILDREN, 30 }) {
+            WidePath built = new WidePath();
+            for (int level=0; level<depth; ++level) {
+                built.addChild(7);
+            }
+            WidePath cut = new WidePath().set(full).setDepth(depth);
+            Assert.assertEquals(cut, built);
+            Assert.assertEquals(cut.hashCode(), built.hashCode());
+        }
+        Assert.assertNotEquals(new WidePath().set(full).setDepth(30), new WidePath().set(full).setDepth(29));
+    }
+
+    @Test
+    public void narrowTest() {
+        Random rand = new Random(1);
+        for (int cnt=0; cnt<1000; ++cnt) {
+            long path = 0L;
+            int depth = rand.nextInt(Path.PATH_MAX_DEPTH + 1);
+            for (int level=0; level<depth; ++level) {
+                path = Path.addChild(path, rand.nextInt(8));
+            }
+
+            WidePath wide = new WidePath(path);
+            Assert.assertEquals(wide.depth(), depth);
+            for (int level=0; level<depth; ++level) {
+                Assert.assertEquals(wide.child(level), Path.child(path, level));
+            }
+            Assert.assertEquals(wide.toPath(), path);
+            Assert.assertEquals(wide.toString(), Path.toString(path));
+        }
+    }
+
+    @Test
+    public void positionTest() {
+        Random rand = new Random(2);
+        for (int depth : new int[] { 0, 4, 19, 21, 22, 26 }) {
+            int edge = VoxTree.BRICK_EDGE << depth;
+            for (int cnt=0; cnt<500; ++cnt) {
+                Point3i position = new Point3i(rand.nextInt(edge) + 1, rand.nextInt(edge) + 1, rand.nextInt(edge) + 1);
+                WidePath path = new WidePath().fromPosition(position, edge, depth);
+                Assert.assertEquals(path, new WidePath().fromPositionSearch(position, edge, depth));
+                Assert.assertEquals(path.toPosition(edge), path.toPositionSearch(edge));
+                if (depth <= Path.PATH_MAX_DEPTH) {
+                    Assert.assertEquals(path.toPath(), Path.fromPosition(position, edge, depth));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void deepTreeTest() {
+        int depth = 24;
+        VoxTree tree = new VoxTree(depth);
+        int stride = tree.stride();
+        int offset = stride >> 1;
+        long color = Color.setColor(0, 255, 0, 255);
+
+        int cells = 1 << depth;
+        Point3i voxel = new Point3i((cells - 3) * stride + offset, 5 * stride + offset, (cells / 3) * stride + offset);
+        tree.setVoxelPoint(voxel, (int)color);
+        Assert.assertEquals(tree.testVoxelPoint(voxel), color);
+        Assert.assertEquals(tree.testVoxelPoint(new Point3i(voxel.x - stride, voxel.y, voxel.z)), 0L);
+
+        // One tile per level below the root, for a lone voxel
+        Assert.assertEquals(tree.nodePool.snapshot().numUsed, 1 + 8*depth);
+
+        // A ray straight down onto it hits bottom
+        Point3d origin = new Point3d(voxel.x, tree.edgeLength() + 10.0, voxel.z);
+        long hit = tree.castRay(origin, new Vector3d(0, -1, 0), false);
+        Assert.assertTrue(Color.alpha(hit) >= 250);
+        Assert.assertTrue(Color.green(hit) > Color.red(hit));
+
+        tree.setVoxelPoint(voxel, 0);
+        Assert.assertEquals(tree.nodePool.snapshot().numUsed, 1);
+    }
+}
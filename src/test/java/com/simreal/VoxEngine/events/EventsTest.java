@@ -0,0 +1,60 @@
+package com.simreal.VoxEngine.events;
+
+import com.simreal.VoxEngine.Color;
+import com.simreal.VoxEngine.NodePool;
+import com.simreal.VoxEngine.VoxTree;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.Assert;
+import org.testng.annotations.*;
+
+import javax.vecmath.Point3i;
+import java.io.File;
+import java.util.List;
+
+public class EventsTest {
+
+    @Test
+    public void editTest() throws Exception {
+        File file = File.createTempFile("EventsTest", ".jfr");
+        file.deleteOnExit();
+
+        Recording recording = new Recording();
+        recording.enable("com.simreal.VoxEngine.Edit");
+        recording.enable("com.simreal.VoxEngine.PoolGrowth");
+        recording.start();
+
+        // A pool too small for one voxel at depth 4, so it must grow
+        VoxTree tree = new VoxTree(4, new NodePool(16));
+        tree.setVoxelPoint(new Point3i(8, 8, 8), (int)Color.setColor(255, 0, 0, 255));
+        tree.setVoxelPoint(new Point3i(8, 8, 8), 0);
+
+        recording.stop();
+        recording.dump(file.toPath());
+        recording.close();
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+        file.delete();
+
+        int sets = 0;
+        int split = 0;
+        int merged = 0;
+        int growths = 0;
+        for (RecordedEvent event : events) {
+            String type = event.getEventType().getName();
+            if (type.equals("com.simreal.VoxEngine.Edit") && event.getString("operation").equals(EditEvent.SET)) {
+                ++sets;
+                split += event.getInt("split");
+                merged += event.getInt("merged");
+            } else if (type.equals("com.simreal.VoxEngine.PoolGrowth")) {
+                ++growths;
+                Assert.assertTrue(event.getInt("newSize") > event.getInt("oldSize"));
+            }
+        }
+        Assert.assertEquals(sets, 2);
+        Assert.assertEquals(split, 4);
+        Assert.assertEquals(merged, 4);
+        Assert.assertTrue(growths > 0);
+    }
+}